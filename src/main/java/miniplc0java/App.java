@@ -1,18 +1,38 @@
 package miniplc0java;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import miniplc0java.analyser.Analyser;
 import miniplc0java.error.CompileError;
+import miniplc0java.error.TokenizeError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.optimizer.Inliner;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.program.O0Writer;
+import miniplc0java.program.Program;
+import miniplc0java.tokenizer.ParallelTokenizer;
 import miniplc0java.tokenizer.StringIter;
-import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.Trace;
+import miniplc0java.vm.Fusion;
+import miniplc0java.vm.Image;
+import miniplc0java.vm.Interpreter;
+import miniplc0java.vm.Loader;
+import miniplc0java.vm.VmException;
 
 import net.sourceforge.argparse4j.*;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -32,29 +52,50 @@ public class App {
             return;
         }
 
+        Trace.setLevel(result.getString("trace"));
+        if (result.getString("dump") != null) {
+            Trace.enableDumps(result.getString("dump"));
+        }
+
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
+        boolean run = result.getBoolean("run");
+        if (outputFileName == null && !run) {
+            argparse.handleError(new ArgumentParserException("argument -o/--output is required", argparse));
+            return;
+        }
+        Set<Fusion> fusions;
+        try {
+            fusions = Fusion.parse(result.getString("fuse"));
+        } catch (IllegalArgumentException e) {
+            argparse.handleError(new ArgumentParserException("argument --fuse: " + e.getMessage(), argparse));
+            return;
+        }
 
-        InputStream input;
+        StringIter iter;
         if (inputFileName.equals("-")) {
-            input = System.in;
+            iter = new StringIter(System.in);
         } else {
-            try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
+            Path inputPath = Paths.get(inputFileName);
+            if (!Files.isReadable(inputPath)) {
                 System.err.println("Cannot find input file.");
-                e.printStackTrace();
                 System.exit(2);
                 return;
             }
+            iter = new StringIter(inputPath);
         }
 
         PrintStream output;
-        if (outputFileName.equals("-")) {
+        FileOutputStream outputFile = null;
+        if (outputFileName == null) {
+            // 只运行，不输出 o0
+            output = null;
+        } else if (outputFileName.equals("-")) {
             output = System.out;
         } else {
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
+                outputFile = new FileOutputStream(outputFileName);
+                output = new PrintStream(outputFile);
             } catch (FileNotFoundException e) {
                 System.err.println("Cannot open output file.");
                 e.printStackTrace();
@@ -63,22 +104,33 @@ public class App {
             }
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
-        var tokenizer = tokenize(iter);
+        // -t 和 -l 共用同一个 token 流，-l 时按需读取
+        TokenBuffer tokens;
+        int jobs = result.getInt("jobs");
+        if (jobs > 1) {
+            // 并行时一次读完全部 token，读完就关掉线程池
+            ForkJoinPool pool = new ForkJoinPool(jobs);
+            try {
+                long begin = Trace.begin();
+                tokens = new ParallelTokenizer(pool).tokenize(iter);
+                Trace.end("tokenize", begin);
+            } catch (TokenizeError e) {
+                System.err.println(e);
+                System.exit(-1);
+                return;
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            tokens = new TokenBuffer(tokenize(iter));
+        }
 
         if (result.getBoolean("tokenize")) {
             // tokenize
-            var tokens = new ArrayList<Token>();
             try {
-                while (true) {
-                    var token = tokenizer.nextToken();
-                    if (token.getTokenType().equals(TokenType.EOF)) {
-                        break;
-                    }
-                    tokens.add(token);
-                }
+                long begin = Trace.begin();
+                tokens.lexAll();
+                Trace.end("tokenize", begin);
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
                 for(StackTraceElement s:e.getStackTrace()){
@@ -87,24 +139,39 @@ public class App {
                 System.exit(-1);
                 return;
             }
-            for (Token token : tokens) {
-                output.println(token.toString());
+            try {
+                for (int i = 0; tokens.type(i) != TokenType.EOF; i++) {
+                    output.println(tokens.get(i).toString());
+                }
+            } catch (TokenizeError e) {
+                // lexAll 之后不会再出错
+                throw new Error(e);
             }
-        } else if (result.getBoolean("analyse")) {
+        } else if (result.getBoolean("analyse") || run) {
 //            while (scanner.hasNextLine()){
 //                String str = scanner.nextLine();
 //                System.out.println(str);
 //            }
 //            System.out.println("!@#!#!#!");
             // analyze
-            var analyzer = new Analyser(tokenizer);
-            List<Instruction> instructions;
+            var analyzer = new Analyser(tokens, result.getInt("optimize"));
+            analyzer.setInlineLimits(result.getInt("inlineSize"), result.getInt("inlineBudget"));
+            Program program;
             try {
-                instructions = analyzer.analyse();
+                long begin = Trace.begin();
+                program = analyzer.analyse();
+                Trace.end("analyse", begin);
+                begin = Trace.begin();
+                new Optimizer(result.getInt("optimize")).optimize(program);
+                Trace.end("optimize", begin);
+                if (Trace.dumps(Trace.Dump.IR)) {
+                    Trace.dump(Trace.Dump.IR, program.toString());
+                }
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
-                output.close();
-                scanner.close();
+                if (output != null) {
+                    output.close();
+                }
                 System.err.println(e);
                 for(StackTraceElement s:e.getStackTrace()){
                     System.err.println(s);
@@ -112,19 +179,64 @@ public class App {
                 System.exit(-1);
                 return;
             }
-            try {
-                //byte[] tmp = new byte[]{114, 48, 59, 62, 0, 0, 0, 1, 0, 0, 0, 2, 1, 0, 0, 0, 6, 95, 115, 116, 97, 114, 116, 1, 0, 0, 0, 4, 109, 97, 105, 110, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 72, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 33, 10, 0, 0, 0, 0, 80, 23, 10, 0, 0, 0, 0, 19, 1, 0, 0, 0, 0, 0, 0, 0, 0, 48, 58, 66, 0, 0, 0, 23, 10, 0, 0, 0, 1, 80, 23, 10, 0, 0, 0, 2, 80, 23, 10, 0, 0, 0, 1, 19, 84, 1, 0, 0, 0, 0, 0, 0, 0, 10, 85, 10, 0, 0, 0, 2, 19, 84, 1, 0, 0, 0, 0, 0, 0, 0, 10, 85, 10, 0, 0, 0, 0, 10, 0, 0, 0, 0, 19, 1, 0, 0, 0, 0, 0, 0, 0, 1, 33, 23, 65, -1, -1, -1, -29, 73};
-                //output.write(tmp);
-                output.write(analyzer.program.toBytes());
-                output.close();
-                scanner.close();
-            } catch (Exception e) {
-                // 遇到错误不输出，直接退出
-                output.close();
-                scanner.close();
-                System.err.println(e.getStackTrace());
-                System.exit(-1);
-                return;
+            // 要转储或者运行时先生成到内存里，写文件、转储和运行都用这一份
+            byte[] bytes = Trace.dumps(Trace.Dump.BYTES) || run ? program.toBytes() : null;
+            if (Trace.dumps(Trace.Dump.BYTES)) {
+                Trace.dump(Trace.Dump.BYTES, bytes);
+            }
+            if (output != null) {
+                try {
+                    //byte[] tmp = new byte[]{114, 48, 59, 62, 0, 0, 0, 1, 0, 0, 0, 2, 1, 0, 0, 0, 6, 95, 115, 116, 97, 114, 116, 1, 0, 0, 0, 4, 109, 97, 105, 110, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 72, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 33, 10, 0, 0, 0, 0, 80, 23, 10, 0, 0, 0, 0, 19, 1, 0, 0, 0, 0, 0, 0, 0, 0, 48, 58, 66, 0, 0, 0, 23, 10, 0, 0, 0, 1, 80, 23, 10, 0, 0, 0, 2, 80, 23, 10, 0, 0, 0, 1, 19, 84, 1, 0, 0, 0, 0, 0, 0, 0, 10, 85, 10, 0, 0, 0, 2, 19, 84, 1, 0, 0, 0, 0, 0, 0, 0, 10, 85, 10, 0, 0, 0, 0, 10, 0, 0, 0, 0, 19, 1, 0, 0, 0, 0, 0, 0, 0, 1, 33, 23, 65, -1, -1, -1, -29, 73};
+                    //output.write(tmp);
+                    // 写文件时直接写到文件的 channel 里
+                    long begin = Trace.begin();
+                    WritableByteChannel channel = outputFile != null ? outputFile.getChannel() : Channels.newChannel(output);
+                    if (bytes != null) {
+                        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } else {
+                        new O0Writer(channel).write(program);
+                    }
+                    Trace.end("emit", begin);
+                    if (run && outputFile == null) {
+                        // 运行时还要用标准输出
+                        output.flush();
+                    } else {
+                        output.close();
+                    }
+                } catch (Exception e) {
+                    // 遇到错误不输出，直接退出
+                    output.close();
+                    System.err.println(e.getStackTrace());
+                    System.exit(-1);
+                    return;
+                }
+            }
+            if (run) {
+                // 在同一个 JVM 里直接运行编译结果
+                PrintStream stdout = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false, StandardCharsets.UTF_8);
+                String profileName = result.getString("profile");
+                String stacksName = result.getString("profileStacks");
+                boolean profile = profileName != null || stacksName != null;
+                Image image = null;
+                try {
+                    long begin = Trace.begin();
+                    image = profile ? Loader.loadProfiled(bytes) : Loader.load(bytes, fusions);
+                    Interpreter interpreter = new Interpreter(image, System.in, stdout);
+                    interpreter.setJitThreshold(result.getInt("jit"));
+                    interpreter.run();
+                    Trace.end("run", begin);
+                } catch (VmException e) {
+                    stdout.flush();
+                    System.err.println(e.getMessage());
+                    // 出错时也写出到目前为止的剖析结果
+                    writeProfile(image, profileName, stacksName);
+                    System.exit(1);
+                    return;
+                }
+                writeProfile(image, profileName, stacksName);
             }
             /*
 //            for (Instruction instruction : instructions) {
@@ -146,13 +258,56 @@ public class App {
         }
     }
 
+    private static void writeProfile(Image image, String reportName, String stacksName) {
+        if (image == null || image.getProfile() == null) {
+            return;
+        }
+        try {
+            if (reportName != null) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(reportName), false, StandardCharsets.UTF_8)) {
+                    image.getProfile().writeReport(out);
+                }
+            }
+            if (stacksName != null) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(stacksName), false, StandardCharsets.UTF_8)) {
+                    image.getProfile().writeStacks(out);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("Cannot open profile file.");
+            System.exit(2);
+        }
+    }
+
     private static ArgumentParser buildArgparse() {
         var builder = ArgumentParsers.newFor("miniplc0-java");
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
+        parser.addArgument("-o", "--output").help("Set the output file, optional with --run").dest("output")
                 .action(Arguments.store());
+        parser.addArgument("--run").help("Compile the input and run it in the built-in virtual machine").dest("run")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--fuse").help("Instruction sequences --run fuses when loading: all, none or a comma separated subset of " + Fusion.all())
+                .setDefault("all").dest("fuse").action(Arguments.store());
+        parser.addArgument("--jit").help("With --run, compile a function to JVM bytecode once it has been called or looped this many times, 0 never compiles").type(Integer.class)
+                .setDefault(Interpreter.DEFAULT_JIT_THRESHOLD).dest("jit").action(Arguments.store());
+        parser.addArgument("--profile").help("With --run, count executed instructions per function, opcode and offset and write a report to this file")
+                .dest("profile").action(Arguments.store());
+        parser.addArgument("--profile-stacks").help("With --run, write the profiled call stacks in collapsed form for flame graphs to this file")
+                .dest("profileStacks").action(Arguments.store());
+        parser.addArgument("-j", "--jobs").help("Tokenize large inputs with this many threads").type(Integer.class)
+                .setDefault(1).dest("jobs").action(Arguments.store());
+        parser.addArgument("-O", "--optimize").help("Optimization level: 0 disables all optimizations; 1 folds constants, turns self tail calls into jumps, cleans up jumps and runs peephole rewrites; 2 also inlines small functions and shares local slots by liveness").type(Integer.class)
+                .setDefault(0).dest("optimize").action(Arguments.store());
+        parser.addArgument("--inline-size").help("At -O2, inline functions with at most this many instructions").type(Integer.class)
+                .setDefault(Inliner.DEFAULT_SIZE).dest("inlineSize").action(Arguments.store());
+        parser.addArgument("--inline-budget").help("At -O2, the most instructions inlining may add to one function").type(Integer.class)
+                .setDefault(Inliner.DEFAULT_BUDGET).dest("inlineBudget").action(Arguments.store());
+        parser.addArgument("--trace").help("Trace level written to stderr").choices("off", "phase", "detail")
+                .setDefault("off").dest("trace").action(Arguments.store());
+        parser.addArgument("--dump").help("Dump symbols, ir and/or bytes to stderr, comma separated")
+                .dest("dump").action(Arguments.store());
         parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
         return parser;
     }
@@ -5,28 +5,46 @@ import miniplc0java.error.CompileError;
 import miniplc0java.error.ErrorCode;
 import miniplc0java.error.ExpectedTokenError;
 import miniplc0java.error.TokenizeError;
-import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.CodeBuffer;
 import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.Inliner;
+import miniplc0java.optimizer.SlotAllocator;
 import miniplc0java.program.Functiondef;
 import miniplc0java.program.Globaldef;
 import miniplc0java.program.Program;
+import miniplc0java.tokenizer.Interner;
 import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
-import miniplc0java.util.Pos;
+import miniplc0java.util.LineIndex;
+import miniplc0java.util.Trace;
 
 import java.util.*;
 
 public final class Analyser {
 
-    Tokenizer tokenizer;
-    ArrayList<Instruction> instructions;
+    TokenBuffer tokens;
+    /** 正在生成指令的 CodeBuffer，分析函数时是这个函数自己的，否则是 _start 的 */
+    CodeBuffer code;
+
+    /** _start 的指令，也就是全局变量的初始化 */
+    CodeBuffer startCode = new CodeBuffer();
+
+    /** 下一个要读取的 token 的下标 */
+    int cursor = 0;
 
     /** 当前偷看的 token */
     Token peekedToken = null;
 
+    /** 标识符表 */
+    Interner interner;
+
+    /** 源码的行首偏移表，只在报错时使用 */
+    LineIndex lines;
+
     /** 符号表 */
-    Symboler symboler = new Symboler();
+    Symboler symboler;
 
     /** 程序 */
     public Program program = new Program();
@@ -44,19 +62,63 @@ public final class Analyser {
     /** 当前是int还是double */
     Stack<ExperType> experTypeStack = new Stack<>();
 
+    /** 是否在编译期计算常量表达式 */
+    boolean fold;
+
+    /** 是否把 return 自己的调用换成跳回函数开头 */
+    boolean tailCalls;
+
+    /** 当前函数里尾调用跳回开头的 br 的位置 */
+    List<Integer> tailCallPoses = new ArrayList<>();
+
+    /** 当前 CodeBuffer 中哪些 PUSH 单独构成一个常量值 */
+    BitSet constPush = new BitSet();
+
+    /** 内联小函数，-O2 及以上才有 */
+    Inliner inliner;
+
     public Analyser(Tokenizer tokenizer) {
-        this.tokenizer = tokenizer;
-        this.instructions = new ArrayList<>();
+        this(new TokenBuffer(tokenizer));
     }
 
-    public List<Instruction> analyse() throws CompileError {
-        analyseProgram();
-        System.out.println("\n"+symboler);
+    public Analyser(TokenBuffer tokens) {
+        this(tokens, 0);
+    }
+
+    /**
+     * @param optimize 优化级别，1 及以上时折叠常量表达式、消除尾递归，2 及以上时内联小函数
+     */
+    public Analyser(TokenBuffer tokens, int optimize) {
+        this.tokens = tokens;
+        this.fold = optimize >= 1;
+        this.tailCalls = optimize >= 1;
+        this.interner = tokens.getInterner();
+        this.lines = tokens.getSource().getLineIndex();
+        this.symboler = new Symboler(interner, lines);
+        this.code = startCode;
+        if(optimize >= 2){
+            this.inliner = new Inliner(program);
+        }
+    }
+
+    /**
+     * 设置内联的阈值，没有打开内联时不起作用
+     *
+     * @param maxSize 只内联不超过这么多条指令的函数
+     * @param budget  每个函数因为内联最多增加的指令数
+     */
+    public void setInlineLimits(int maxSize, int budget) {
+        if(inliner != null){
+            inliner.setLimits(maxSize, budget);
+        }
+    }
 
-        System.out.println(program);
-//        System.out.println(program.toByteString());
-        System.out.println(Arrays.toString(program.toBytes()));
-        return instructions;
+    public Program analyse() throws CompileError {
+        analyseProgram();
+        if(Trace.dumps(Trace.Dump.SYMBOLS)){
+            Trace.dump(Trace.Dump.SYMBOLS, symboler.toString());
+        }
+        return program;
     }
 
     /**
@@ -65,7 +127,7 @@ public final class Analyser {
      */
     private Token peek() throws TokenizeError {
         if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
+            peekedToken = tokens.get(cursor);
         }
         return peekedToken;
     }
@@ -75,13 +137,10 @@ public final class Analyser {
      *
      */
     private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+        var token = peek();
+        peekedToken = null;
+        cursor++;
+        return token;
     }
 
     /**
@@ -89,8 +148,7 @@ public final class Analyser {
      *
      */
     private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+        return tokens.type(cursor) == tt;
     }
 
     /**
@@ -98,8 +156,7 @@ public final class Analyser {
      *
      */
     private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+        if (check(tt)) {
             return next();
         } else {
             return null;
@@ -111,18 +168,21 @@ public final class Analyser {
      *
      */
     private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+        if (check(tt)) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, peek());
         }
     }
 
+    private AnalyzeError error(ErrorCode code, int offset) {
+        return new AnalyzeError(code, offset, lines);
+    }
+
     private void analyseProgram() throws CompileError {
         // 先给_start占个坑
-        symboler.addSymbol("_start",SymbolType.FUN_NAME,
-                false,false,0,true,false,null);
+        symboler.addSymbol(Interner.START,SymbolType.FUN_NAME,
+                false,false,0,true,false,0);
         while (!check(TokenType.EOF)){
             if(check(TokenType.LET_KW)){
                 analyseDeclLetStmt(0);
@@ -141,10 +201,8 @@ public final class Analyser {
     }
 
     private void addGloName(){
-        for(SymbolEntry symbol:symboler.symbolTable){
-            if(symbol.isGlobal && symbol.type != SymbolType.FUN_NAME){
-                program.addGlobal(new Globaldef(symbol.isConstant,"00000000"));
-            }
+        for(SymbolEntry symbol:symboler.getGlobals()){
+            program.addGlobal(new Globaldef(symbol.isConstant,"00000000"));
         }
     }
 
@@ -156,7 +214,7 @@ public final class Analyser {
     }
 
     private void addMain()throws AnalyzeError{
-        Functiondef mainFun = program.find("main");
+        Functiondef mainFun = program.find(Interner.MAIN);
         if(mainFun == null){
             throw new AnalyzeError(ErrorCode.NoMain,null);
         }
@@ -167,16 +225,14 @@ public final class Analyser {
         addMain();
         Functiondef functiondef = new Functiondef();
         functiondef.name = "_start";
+        functiondef.identId = Interner.START;
         functiondef.id = 0;
         functiondef.returnSize = 0;
         functiondef.params = new ArrayList<>();
         functiondef.localSize = 0;
-        functiondef.instructions.addAll(instructions);
-        functiondef.bodySize = instructions.size(); //(length+7)/8;
-        while(instructions.size() > 0){
-            instructions.remove(0);
-        }
-        program.functiondefList.add(0,functiondef);
+        functiondef.code = startCode;
+        functiondef.bodySize = startCode.size(); //(length+7)/8;
+        program.addStartFunc(functiondef);
     }
 
     private void analyseDeclStmt(int level,boolean isConst) throws CompileError{
@@ -185,31 +241,36 @@ public final class Analyser {
         else
             expect(TokenType.LET_KW);
         Token ident = expect(TokenType.IDENT);
-        String name = (String)ident.getValue();
+        int identId = ident.getLiteral();
         expect(TokenType.COLON);
         Token type = expect(TokenType.IDENT);
         // 符号表相关
         SymbolType symbolType = tokenToSymbolType(type);
         if(symbolType == SymbolType.VOID_NAME){
-            throw new AnalyzeError(ErrorCode.TypeError,type.getStartPos());
+            throw error(ErrorCode.TypeError, type.getStartOffset());
         }
-        symboler.addSymbol(name,tokenToSymbolType(type),isConst,false,level,
-                level==0,false,ident.getStartPos());
+        SymbolEntry symbol = symboler.addSymbol(identId,tokenToSymbolType(type),isConst,false,level,
+                level==0,false,ident.getStartOffset());
         if(isConst && peek().getTokenType() != TokenType.ASSIGN){
-            throw new AnalyzeError(ErrorCode.InvalidInput,ident.getStartPos());
+            throw error(ErrorCode.InvalidInput, ident.getStartOffset());
         }
         if(nextIf(TokenType.ASSIGN) != null){
             pushVar(ident,false);
             analyseExpr();
+            // 初值是常量的 const，之后的使用直接 push 这个值
+            if(isConst && isConst(1)){
+                symbol.constValue = constAt(1);
+            }
             newIns(Operation.STORE64);
 
             ExperType experType = experTypeStack.pop();
             if(symbolType == SymbolType.INT_NAME && experType != ExperType.INT ||
                     symbolType == SymbolType.DOUBLE_NAME && experType != ExperType.DOUBLE){
-                throw new AnalyzeError(ErrorCode.TypeError,ident.getStartPos());
+                throw error(ErrorCode.TypeError, ident.getStartOffset());
             }
         }
-        if(level > 0)nowFunc.localSize++;
+        // 离开作用域的变量的位置会被之后的变量重用，所以只要同时存在的变量的最大数量
+        if(level > 0)nowFunc.localSize = Math.max(nowFunc.localSize, symbol.stackOffset + 1);
         expect(TokenType.SEMICOLON);
     }
 
@@ -222,19 +283,18 @@ public final class Analyser {
     }
 
     private void anslyseFn() throws CompileError{
-        Pos startPos;
+        int startOffset;
         // fn关键字
-        startPos = expect(TokenType.FN_KW).getStartPos();
+        startOffset = expect(TokenType.FN_KW).getStartOffset();
 
         // 获取函数名字
         Functiondef funEntry = new Functiondef();
         nowFunc = funEntry;
         nowFunc.localSize = 0;
-        funEntry.name = (String)expect(TokenType.IDENT).getValue();
+        funEntry.identId = expect(TokenType.IDENT).getLiteral();
+        funEntry.name = interner.name(funEntry.identId);
         expect(TokenType.L_PAREN);
 
-        int beforeParamSize = symboler.symbolTable.size();
-
         // 获取函数参数列表
         while (!check(TokenType.R_PAREN)){
             boolean isConst = false;
@@ -242,11 +302,11 @@ public final class Analyser {
                 isConst = true;
             }
             Token param = expect(TokenType.IDENT);
-            String paramName = (String)param.getValue();
+            int paramId = param.getLiteral();
             expect(TokenType.COLON);
             Token paramType = expect(TokenType.IDENT);
-            SymbolEntry symbol = new SymbolEntry(paramName,tokenToSymbolType(paramType),
-                    isConst,true,1,false,true,funEntry.params.size());
+            SymbolEntry symbol = new SymbolEntry(interner.name(paramId),paramId,tokenToSymbolType(paramType),
+                    isConst,true,1,false,true,funEntry.params.size(),param.getStartOffset());
             funEntry.params.add(symbol);
             symboler.addSymbol(symbol);
             if(peek().getTokenType() != TokenType.COMMA){
@@ -271,24 +331,26 @@ public final class Analyser {
                 funEntry.returnSize = 1;
                 funEntry.returnType = ExperType.INT;
             }
-            default -> throw new AnalyzeError(ErrorCode.UnknowError, returnType.getStartPos());
+            default -> throw error(ErrorCode.UnknowError, returnType.getStartOffset());
         }
 
         // 如果函数有返回值，需要把所有参数+1
 
         if(funEntry.returnSize == 1){
-            for(int i=beforeParamSize;i<symboler.symbolTable.size();i++){
-                symboler.symbolTable.get(i).stackOffset++;
+            for(SymbolEntry param:funEntry.params){
+                param.stackOffset++;
             }
         }
 
-        // 获取函数的总长度
-        int oriSize = instructions.size();
+        // 函数的指令生成到它自己的 CodeBuffer 里
+        code = funEntry.code;
+        constPush.clear();
+        tailCallPoses.clear();
 
         // 解决递归问题，提前加入符号表和函数列表
 
-        SymbolEntry symbol = symboler.addSymbol(funEntry.name,SymbolType.FUN_NAME,
-                false,false,0,true,false,startPos);
+        SymbolEntry symbol = symboler.addSymbol(funEntry.identId,SymbolType.FUN_NAME,
+                false,false,0,true,false,startOffset);
 
         funEntry.id = symbol.stackOffset;
         program.addFunc(funEntry);
@@ -301,20 +363,20 @@ public final class Analyser {
         // 检查返回路径
         if(!funEntry.canReturn){
             if(funEntry.returnSize == 1){
-                throw new AnalyzeError(ErrorCode.ReturnError,startPos);
+                throw error(ErrorCode.ReturnError,startOffset);
             }else if(funEntry.returnSize == 0){
                 // 最后加上return
                 newIns(Operation.RET);
             }
         }
+        resetLocalsForTailCalls();
 
         // 获取函数中新增的指令数量
-        for(int i=oriSize;i<instructions.size();i++){
-            funEntry.instructions.add(instructions.get(i));
-        }
-        funEntry.bodySize = instructions.size() - oriSize; //(length+7)/8;
-        while(instructions.size() > oriSize){
-            instructions.remove(oriSize);
+        funEntry.bodySize = code.size(); //(length+7)/8;
+        code = startCode;
+        constPush.clear();
+        if(Trace.detail()){
+            Trace.detail("fn " + funEntry.name + " id=" + funEntry.id + " body=" + funEntry.bodySize);
         }
 
         // 获取函数中需要的局部变量数量减掉自己占用的空间
@@ -324,10 +386,10 @@ public final class Analyser {
 
         //symboler.popAllLevel(0);
         if(break_levels.size() > 0){
-            throw new AnalyzeError(ErrorCode.BreakError,startPos);
+            throw error(ErrorCode.BreakError,startOffset);
         }
         if(continue_levels.size() >0){
-            throw new AnalyzeError(ErrorCode.ContinueError,startPos);
+            throw error(ErrorCode.ContinueError,startOffset);
         }
     }
 
@@ -390,41 +452,42 @@ public final class Analyser {
         expect(TokenType.IF_KW);
         analyseExpr();
         int br_false_pos,br_pos;
-        br_false_pos = instructions.size();
+        br_false_pos = code.size();
         newIns(Operation.BR_FALSE);
         analyseBlockStmt(level,false);// if后面的肯定不能保证执行
-        br_pos = instructions.size();
+        br_pos = code.size();
         if(nextIf(TokenType.ELSE_KW) != null){
             newIns(Operation.BR);
-            instructions.get(br_false_pos).setX(br_pos - br_false_pos);
+            code.patch(br_false_pos, br_pos - br_false_pos);
             if(check(TokenType.IF_KW)){ // else if
                 analyseIfStmt(level,canExec); // else if 后面也不一定执行
             }else{
                 analyseBlockStmt(level,canExec); // else
             }
-            instructions.get(br_pos).setX(instructions.size() - br_pos-1);
+            code.patch(br_pos, code.size() - br_pos-1);
         }else{
-            instructions.get(br_false_pos).setX(br_pos - br_false_pos-1);
+            code.patch(br_false_pos, br_pos - br_false_pos-1);
         }
     }
 
     private void analyseWhile(int level) throws CompileError{
         while_level++;
         expect(TokenType.WHILE_KW);
-        int start = instructions.size();
+        int start = code.size();
         analyseExpr();
-        int br_pos = instructions.size();
+        int br_pos = code.size();
         newIns(Operation.BR_FALSE);
         analyseBlockStmt(level,false);
-        newIns(Operation.BR,(start - instructions.size() - 1));
+        newIns(Operation.BR,(start - code.size() - 1));
 
-        instructions.get(br_pos).setX(instructions.size() - br_pos-1);
-        System.out.println("while");
+        code.patch(br_pos, code.size() - br_pos-1);
         //break
         for(int i=0;i<break_levels.size();i++){
-            System.out.println(break_levels.get(i)+" "+break_poses.get(i));
             if(break_levels.get(i) == while_level){
-                instructions.get(break_poses.get(i)).setX(instructions.size()-break_poses.get(i)-1);
+                if(Trace.detail()){
+                    Trace.detail("break at " + break_poses.get(i) + " -> " + code.size());
+                }
+                code.patch(break_poses.get(i), code.size()-break_poses.get(i)-1);
                 break_levels.remove(i);
                 break_poses.remove(i);
                 i--;
@@ -434,8 +497,10 @@ public final class Analyser {
         //continue
         for(int i=0;i<continue_levels.size();i++){
             if(continue_levels.get(i) == while_level){
-                System.out.println("continue "+level +" "+ continue_levels.get(i) );
-                instructions.get(continue_poses.get(i)).setX((start - continue_poses.get(i) - 1));
+                if(Trace.detail()){
+                    Trace.detail("continue at " + continue_poses.get(i) + " -> " + start);
+                }
+                code.patch(continue_poses.get(i), (start - continue_poses.get(i) - 1));
                 continue_levels.remove(i);
                 continue_poses.remove(i);
                 i--;
@@ -447,13 +512,13 @@ public final class Analyser {
     private void analyseBreak()throws CompileError{
         expect(TokenType.BREAK_KW);
         break_levels.add(while_level);
-        break_poses.add(instructions.size());
+        break_poses.add(code.size());
         newIns(Operation.BR,0);
     }
     private void analyseContinue()throws CompileError{
         expect(TokenType.CONTINUE_KW);
         continue_levels.add(while_level);
-        continue_poses.add(instructions.size());
+        continue_poses.add(code.size());
         newIns(Operation.BR,0);
     }
     private void analyseReturn() throws CompileError{
@@ -462,7 +527,12 @@ public final class Analyser {
             expect(TokenType.SEMICOLON);
         }else {
             if(peek().getValue() == TokenType.SEMICOLON){
-                throw new AnalyzeError(ErrorCode.ReturnError,peek().getStartPos());
+                throw error(ErrorCode.ReturnError, peek().getStartOffset());
+            }
+            int[] tailCallArgs = tailCalls ? selfTailCallArgs() : null;
+            if(tailCallArgs != null){
+                analyseSelfTailCall(tailCallArgs);
+                return;
             }
             newIns(Operation.ARGA,0);
             analyseExpr();
@@ -470,16 +540,184 @@ public final class Analyser {
 
             if(nowFunc.returnType == ExperType.INT && experTypeStack.peek() != ExperType.INT ||
                     nowFunc.returnType == ExperType.DOUBLE && experTypeStack.peek() != ExperType.DOUBLE ){
-                throw new AnalyzeError(ErrorCode.ReturnError,peek().getStartPos());
+                throw error(ErrorCode.ReturnError, peek().getStartOffset());
             }
         }
 
         newIns(Operation.RET);
     }
 
+    /**
+     * return 后面是否正好是对当前函数的一次调用，调用之后就是分号
+     *
+     * @return 各个参数第一个 token 的下标，最后再加上右括号的下标；不是时返回 null
+     */
+    private int[] selfTailCallArgs() throws TokenizeError {
+        if(tokens.type(cursor) != TokenType.IDENT || tokens.literal(cursor) != nowFunc.identId
+                || tokens.type(cursor + 1) != TokenType.L_PAREN){
+            return null;
+        }
+        // 名字可能被同名的局部变量遮住
+        SymbolEntry symbol = symboler.findSymbol(nowFunc.identId);
+        if(symbol == null || symbol.type != SymbolType.FUN_NAME){
+            return null;
+        }
+        List<Integer> bounds = new ArrayList<>();
+        if(tokens.type(cursor + 2) != TokenType.R_PAREN){
+            bounds.add(cursor + 2);
+        }
+        int depth = 0;
+        for(int i = cursor + 1; ; i++){
+            TokenType type = tokens.type(i);
+            if(type == TokenType.EOF){
+                return null;
+            }
+            if(type == TokenType.L_PAREN){
+                depth++;
+            }else if(type == TokenType.COMMA && depth == 1){
+                bounds.add(i + 1);
+            }else if(type == TokenType.R_PAREN && --depth == 0){
+                // 参数个数不对时按普通调用分析并报错
+                if(tokens.type(i + 1) != TokenType.SEMICOLON || bounds.size() != nowFunc.params.size()){
+                    return null;
+                }
+                bounds.add(i);
+                int[] res = new int[bounds.size()];
+                for(int j = 0; j < res.length; j++){
+                    res[j] = bounds.get(j);
+                }
+                return res;
+            }
+        }
+    }
+
+    /**
+     * return f(...) 中 f 就是当前函数：把新的参数写回参数的位置，再跳回函数开头，栈不会增长。
+     *
+     * 一个参数写回之后，还没有计算的参数就读不到原来的值了，这样的参数先算到新加的局部变量里，
+     * 最后再写回。参数里没有调用和赋值时，计算的顺序不影响结果，按顺序找一个不会被剩下的参数读的先算，
+     * 尽量少用局部变量
+     */
+    private void analyseSelfTailCall(int[] bounds) throws CompileError{
+        List<SymbolEntry> params = nowFunc.params;
+        int n = params.size();
+
+        // reads[j][i]：第 j 个参数里是否出现了第 i 个参数的名字
+        boolean[][] reads = new boolean[n][n];
+        boolean pure = true;
+        for(int j = 0; j < n; j++){
+            for(int t = bounds[j]; t < bounds[j + 1]; t++){
+                TokenType type = tokens.type(t);
+                if(type == TokenType.ASSIGN || (type == TokenType.IDENT && tokens.type(t + 1) == TokenType.L_PAREN)){
+                    pure = false;
+                }
+                if(type == TokenType.IDENT){
+                    for(int i = 0; i < n; i++){
+                        reads[j][i] |= tokens.literal(t) == params.get(i).identId;
+                    }
+                }
+            }
+        }
+
+        int[] order = new int[n];
+        boolean[] toTemp = new boolean[n];
+        boolean[] done = new boolean[n];
+        for(int k = 0; k < n; k++){
+            int pick = -1;
+            for(int i = 0; i < n && pick < 0; i++){
+                if(done[i] || (!pure && i != k)){
+                    continue;
+                }
+                boolean readLater = false;
+                for(int j = 0; j < n; j++){
+                    readLater |= j != i && !done[j] && reads[j][i];
+                }
+                if(!readLater){
+                    pick = i;
+                }
+            }
+            if(pick < 0){
+                pick = pure ? firstNotDone(done) : k;
+                toTemp[pick] = true;
+            }
+            order[k] = pick;
+            done[pick] = true;
+        }
+
+        int tmpBase = nowFunc.localSize;
+        int temps = 0;
+        int[] tmpSlot = new int[n];
+        for(int i = 0; i < n; i++){
+            if(toTemp[i]){
+                tmpSlot[i] = tmpBase + temps++;
+            }
+        }
+        nowFunc.localSize = tmpBase + temps;
+
+        for(int i : order){
+            cursor = bounds[i];
+            peekedToken = null;
+            if(toTemp[i]){
+                newIns(Operation.LOCA, tmpSlot[i]);
+            }else{
+                newIns(Operation.ARGA, params.get(i).stackOffset);
+            }
+            analyseExpr();
+            newIns(Operation.STORE64);
+            expect(i == n - 1 ? TokenType.R_PAREN : TokenType.COMMA);
+        }
+        cursor = bounds[n] + 1;
+        peekedToken = null;
+        for(int i = 0; i < n; i++){
+            if(toTemp[i]){
+                newIns(Operation.ARGA, params.get(i).stackOffset);
+                newIns(Operation.LOCA, tmpSlot[i]);
+                newIns(Operation.LOAD64);
+                newIns(Operation.STORE64);
+            }
+        }
+        if(Trace.detail()){
+            Trace.detail("tail call in " + nowFunc.name + " at " + code.size() + ", " + temps + " temps");
+        }
+        tailCallPoses.add(code.size());
+        newIns(Operation.BR, -code.size() - 1);
+    }
+
+    /**
+     * 每次调用开始时局部变量都是 0，跳回开头也要这样。
+     * 有可能没有写就读的局部变量时，在函数最后加上把它们清零再跳回开头的指令，尾调用改成跳到这里
+     */
+    private void resetLocalsForTailCalls(){
+        if(tailCallPoses.isEmpty()){
+            return;
+        }
+        BitSet live = new SlotAllocator(program).liveAtEntry(nowFunc);
+        if(live.isEmpty()){
+            return;
+        }
+        int reset = code.size();
+        for(int k = live.nextSetBit(0); k >= 0; k = live.nextSetBit(k + 1)){
+            newIns(Operation.LOCA, k);
+            newIns(0);
+            newIns(Operation.STORE64);
+        }
+        newIns(Operation.BR, -code.size() - 1);
+        for(int pos : tailCallPoses){
+            code.patch(pos, reset - pos - 1);
+        }
+    }
+
+    private static int firstNotDone(boolean[] done){
+        int i = 0;
+        while(done[i]){
+            i++;
+        }
+        return i;
+    }
+
     private void analyseExpr() throws CompileError{
         if(!isExprBegin(peek().getTokenType())){
-            throw new AnalyzeError(ErrorCode.InvalidInput,peekedToken.getStartPos());
+            throw error(ErrorCode.InvalidInput, peekedToken.getStartOffset());
         }
         analyseExprCmp();
 
@@ -503,6 +741,9 @@ public final class Analyser {
             TokenType type = peek().getTokenType();
             next();
             analyseExprPM();
+            if(foldCmp(type)){
+                continue;
+            }
             switch (type) {
                 case GT -> {
                     newInsCmpIF();
@@ -539,7 +780,7 @@ public final class Analyser {
         ExperType first = experTypeStack.pop();
         ExperType second = experTypeStack.pop();
         if(first != second){
-            throw new AnalyzeError(ErrorCode.TypeError,peek().getStartPos());
+            throw error(ErrorCode.TypeError, peek().getStartOffset());
         }
         return first;
     }
@@ -569,14 +810,14 @@ public final class Analyser {
 
             if(op.getTokenType() == TokenType.PLUS) {
                 if(nowExperType == ExperType.INT)
-                    newIns(Operation.ADD_I);
+                    newArith(Operation.ADD_I);
                 else
-                    newIns(Operation.ADD_F);
+                    newArith(Operation.ADD_F);
             }else{
                 if(nowExperType == ExperType.INT)
-                    newIns(Operation.SUB_I);
+                    newArith(Operation.SUB_I);
                 else
-                    newIns(Operation.SUB_F);
+                    newArith(Operation.SUB_F);
             }
 
             type = peek().getTokenType();
@@ -600,14 +841,14 @@ public final class Analyser {
 
             if(type == TokenType.MUL){
                 if(nowExperType == ExperType.INT)
-                    newIns(Operation.MUL_I);
+                    newArith(Operation.MUL_I);
                 else
-                    newIns(Operation.MUL_F);
+                    newArith(Operation.MUL_F);
             }else{
                 if(nowExperType == ExperType.INT)
-                    newIns(Operation.DIV_I);
+                    newArith(Operation.DIV_I);
                 else
-                    newIns(Operation.DIV_F);
+                    newArith(Operation.DIV_F);
             }
             type = peek().getTokenType();
         }
@@ -616,18 +857,18 @@ public final class Analyser {
     private void analyseExprAS() throws CompileError{
         analyseExprSign();
         while (nextIf(TokenType.AS_KW) != null){
-            String type = next().getValueString();
-            if(type.equals("int")){
+            int type = next().getLiteral();
+            if(type == Interner.INT){
                 if(experTypeStack.peek() == ExperType.DOUBLE){ // double to int
-                    newIns(Operation.FTOI);
+                    newConvert(Operation.FTOI);
                     experTypeStack.pop();
                     experTypeStack.push(ExperType.INT);
                 }
                 // int to int忽略
             }
-            if(type.equals("double")){
+            if(type == Interner.DOUBLE){
                 if(experTypeStack.peek() == ExperType.INT){ // int to double
-                    newIns(Operation.ITOF);
+                    newConvert(Operation.ITOF);
                     experTypeStack.pop();
                     experTypeStack.push(ExperType.DOUBLE);
                 }
@@ -636,21 +877,22 @@ public final class Analyser {
         }
     }
 
+    // 负号在每个优化级别都是 0 - x，常量折叠也这样算，所以 double 的 -(0.0) 是 0.0
     private void analyseExprSign() throws CompileError{
         TokenType type = peek().getTokenType();
         int minusCnt = 0;
         while(type == TokenType.MINUS){
             next();
             minusCnt++;
-            newIns(Operation.PUSH,0);
+            pushConst(0);
             type = peek().getTokenType();
         }
         analyseExprItem();
         while ((minusCnt--) !=0){
             if(experTypeStack.peek() == ExperType.INT)
-                newIns(Operation.SUB_I);
+                newArith(Operation.SUB_I);
             else
-                newIns(Operation.SUB_F);
+                newArith(Operation.SUB_F);
         }
     }
 
@@ -680,24 +922,28 @@ public final class Analyser {
     }
     private void pushUint(Token token) throws CompileError {
         expect(TokenType.UINT_LITERAL);
-        newIns(Long.parseLong((String)token.getValue()));
+        pushConst(Long.parseLong((String)token.getValue()));
         experTypeStack.push(ExperType.INT);
     }
     private void pushDouble(Token token) throws CompileError {
         expect(TokenType.DOUBLE_LITERAL);
         double dou = Double.parseDouble((String)token.getValue());
-        newIns(Double.doubleToRawLongBits(dou));
+        pushConst(Double.doubleToRawLongBits(dou));
         experTypeStack.push(ExperType.DOUBLE);
     }
     private void pushFun(Token token) throws CompileError{
-        String name = (String)token.getValue();
-        Functiondef function = program.find(name);
+        int identId = token.getLiteral();
+        Functiondef function = program.find(identId);
         if(function == null){
-            System.out.println("Err");
-            if(isStd(name)){
-                pushStd(name);
+            if(isStd(identId)){
+                pushStd(identId);
             }
-            throw new AnalyzeError(ErrorCode.NotDeclared,token.getStartPos());
+            throw error(ErrorCode.NotDeclared, token.getStartOffset());
+        }
+        // 全局变量的初始化不在任何函数里，没有地方放内联的局部变量
+        if(inliner != null && code != startCode && inliner.shouldInline(nowFunc, function)){
+            inlineFun(function);
+            return;
         }
 
         // 申请返回空间
@@ -725,15 +971,52 @@ public final class Analyser {
 
         expect(TokenType.R_PAREN);
     }
+    /**
+     * 把 function 的指令复制到这里，参数、返回值和 function 的局部变量放在当前函数新加的局部变量里
+     */
+    private void inlineFun(Functiondef function) throws CompileError{
+        int argBase = nowFunc.localSize;
+        int localBase = argBase + function.returnSize + function.params.size();
+        // 先占住位置，参数里的调用再内联时放在后面
+        nowFunc.localSize = localBase + function.localSize;
+
+        expect(TokenType.IDENT);
+        expect(TokenType.L_PAREN);
+        for(int i=0;i<function.params.size();i++){
+            if(i != 0){
+                expect(TokenType.COMMA);
+            }
+            newIns(Operation.LOCA, argBase + function.returnSize + i);
+            analyseExpr();
+            newIns(Operation.STORE64);
+        }
+        boolean onStack = inliner.inline(code, nowFunc, function, argBase, localBase);
+        if(Trace.detail()){
+            Trace.detail("inline " + function.name + " into " + nowFunc.name);
+        }
+        if(function.returnSize == 1 && !onStack){
+            newIns(Operation.LOCA, argBase);
+            newIns(Operation.LOAD64);
+        }
+
+        if(function.returnType == ExperType.INT){
+            experTypeStack.push(ExperType.INT);
+        }else if(function.returnType == ExperType.DOUBLE){
+            experTypeStack.push(ExperType.DOUBLE);
+        }
+
+        expect(TokenType.R_PAREN);
+    }
+
     private void pushIdent(Token token) throws CompileError {
-        String name = (String) token.getValue();
-        SymbolEntry symbol = symboler.findSymbol(name);
+        int identId = token.getLiteral();
+        SymbolEntry symbol = symboler.findSymbol(identId);
         if(symbol == null){
-            if(isStd(name)){
-                pushStd(name);
+            if(isStd(identId)){
+                pushStd(identId);
                 return;
             }else {
-                throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
+                throw error(ErrorCode.NotDeclared, token.getStartOffset());
             }
         }
         if(symbol.type == SymbolType.FUN_NAME){
@@ -742,7 +1025,7 @@ public final class Analyser {
             expect(TokenType.IDENT);
             if(nextIf(TokenType.ASSIGN) != null) {
                 if(symbol.isConstant){
-                    throw new AnalyzeError(ErrorCode.AssignToConstant,token.getStartPos());
+                    throw error(ErrorCode.AssignToConstant, token.getStartOffset());
                 }
                 pushVar(token,false);
                 analyseExpr();
@@ -755,9 +1038,18 @@ public final class Analyser {
 
     // 变量，不是函数的变量
     private void pushVar(Token token,boolean needToLoad) throws CompileError {
-        SymbolEntry symbol = symboler.findSymbol((String) token.getValue());
+        SymbolEntry symbol = symboler.findSymbol(token.getLiteral());
         if(symbol == null){
-            throw new AnalyzeError(ErrorCode.NoError,token.getStartPos());
+            throw error(ErrorCode.NoError, token.getStartOffset());
+        }
+        if(needToLoad && fold && symbol.constValue != null){
+            pushConst(symbol.constValue);
+            if(symbol.type == SymbolType.INT_NAME){
+                experTypeStack.push(ExperType.INT);
+            }else{
+                experTypeStack.push(ExperType.DOUBLE);
+            }
+            return;
         }
         if (symbol.isGlobal) {
             newIns(Operation.GLOBA, symbol.stackOffset);
@@ -783,61 +1075,54 @@ public final class Analyser {
     }
 
     private SymbolType tokenToSymbolType(Token token) throws CompileError{
-        String tokenName = (String)token.getValue();
-        switch (tokenName) {
-            case "int":
+        switch (token.getLiteral()) {
+            case Interner.INT:
                 return SymbolType.INT_NAME;
-            case "double":
+            case Interner.DOUBLE:
                 return SymbolType.DOUBLE_NAME;
-            case "void":
+            case Interner.VOID:
                 return SymbolType.VOID_NAME;
         }
-        throw new AnalyzeError(ErrorCode.InvalidInput,token.getStartPos());
+        throw error(ErrorCode.InvalidInput, token.getStartOffset());
     }
 
-    private boolean isStd(String name){
-        String[] stds = new String[]{"getint","getdouble","getchar",
-                "putint","putdouble","putchar","putstr","putln"};
-        for(String std:stds){
-            if(name.equals(std))
-                return true;
-        }
-        return false;
+    private boolean isStd(int identId){
+        return Interner.isStd(identId);
     }
-    private void pushStd(String name) throws CompileError {
+    private void pushStd(int identId) throws CompileError {
         expect(TokenType.IDENT);
-        switch (name) {
-            case "getint" -> {
+        switch (identId) {
+            case Interner.GETINT -> {
                 expect(TokenType.L_PAREN);
                 expect(TokenType.R_PAREN);
                 newIns(Operation.SCAN_I);
             }
-            case "getdouble" -> {
+            case Interner.GETDOUBLE -> {
                 expect(TokenType.L_PAREN);
                 expect(TokenType.R_PAREN);
                 newIns(Operation.SCAN_F);
             }
-            case "getchar" -> {
+            case Interner.GETCHAR -> {
                 expect(TokenType.L_PAREN);
                 newIns(Operation.SCAN_C);
                 expect(TokenType.R_PAREN);
             }
-            case "putint" -> {
+            case Interner.PUTINT -> {
                 expect(TokenType.L_PAREN);
                 analyseExpr();
                 expect(TokenType.R_PAREN);
                 newIns(Operation.PRINT_I);
             }
-            case "putdouble" -> {
+            case Interner.PUTDOUBLE -> {
                 expect(TokenType.L_PAREN);
                 analyseExpr();
                 expect(TokenType.R_PAREN);
                 newIns(Operation.PRINT_F);
             }
-            case "putstr" -> {
+            case Interner.PUTSTR -> {
                 expect(TokenType.L_PAREN);
                 if (peek().getTokenType() != TokenType.STRING_LITERAL) {
-                    throw new AnalyzeError(ErrorCode.InvalidInput, peekedToken.getStartPos());
+                    throw error(ErrorCode.InvalidInput, peekedToken.getStartOffset());
                 }
                 String str = (String) peek().getValue();
                 analyseExprItem();
@@ -846,13 +1131,13 @@ public final class Analyser {
                 }
                 expect(TokenType.R_PAREN);
             }
-            case "putchar" -> {
+            case Interner.PUTCHAR -> {
                 expect(TokenType.L_PAREN);
                 analyseExpr();
                 newIns(Operation.PRINT_C);
                 expect(TokenType.R_PAREN);
             }
-            case "putln" -> {
+            case Interner.PUTLN -> {
                 expect(TokenType.L_PAREN);
                 newIns(Operation.PUSH, (int) '\n');
                 newIns(Operation.PRINT_C);
@@ -861,13 +1146,82 @@ public final class Analyser {
         }
     }
     
-    private void newIns(Operation opt, Integer x){
-        instructions.add(new Instruction(opt,(long)x));
+    private void newIns(Operation opt, int x){
+        code.add(opt, x);
     }
-    private void newIns(Long x){
-        instructions.add(new Instruction(Operation.PUSH, x));
+    private void newIns(long x){
+        code.add(Operation.PUSH, x);
     }
     private void newIns(Operation opt){
-        instructions.add(new Instruction(opt));
+        code.add(opt);
+    }
+
+    /** push 一个常量，之后可以参与折叠 */
+    private void pushConst(long x){
+        constPush.set(code.size());
+        newIns(x);
+    }
+
+    /** 最后 n 条指令是否都是常量的 push，不折叠时总是 false */
+    private boolean isConst(int n){
+        int size = code.size();
+        return fold && size >= n && constPush.nextClearBit(size - n) >= size;
+    }
+
+    /** 倒数第 back 条 push 的值 */
+    private long constAt(int back){
+        return code.operand(code.size() - back);
+    }
+
+    /** 删掉最后 n 条常量的 push */
+    private void dropConst(int n){
+        int size = code.size() - n;
+        constPush.clear(size, code.size());
+        code.truncate(size);
+    }
+
+    /** 二元运算，两个操作数都是常量时换成结果 */
+    private void newArith(Operation opt){
+        if(isConst(2)){
+            Long res = ConstFold.binary(opt, constAt(2), constAt(1));
+            if(res != null){
+                dropConst(2);
+                pushConst(res);
+                return;
+            }
+        }
+        newIns(opt);
+    }
+
+    /** 类型转换，操作数是常量时换成结果 */
+    private void newConvert(Operation opt){
+        if(isConst(1)){
+            Long res = ConstFold.convert(opt, constAt(1));
+            if(res != null){
+                code.patch(code.size() - 1, res);
+                return;
+            }
+        }
+        newIns(opt);
+    }
+
+    /**
+     * 两边都是常量的比较，直接 push 0 或 1
+     *
+     * @return 是否已经折叠
+     */
+    private boolean foldCmp(TokenType type) throws TokenizeError, AnalyzeError {
+        if(!isConst(2) || experTypeStack.size() < 2){
+            return false;
+        }
+        Long res = ConstFold.compare(type, experTypeStack.peek(), constAt(2), constAt(1));
+        if(res == null){
+            return false;
+        }
+        getNowExperType();
+        dropConst(2);
+        // 比较的结果不是 int 或 double，不再参与折叠
+        newIns(res);
+        return true;
     }
 }
@@ -0,0 +1,105 @@
+package miniplc0java.analyser;
+
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 编译期计算常量表达式，结果和虚拟机运行时算出的相同。
+ * 整数按 64 位补码回绕，浮点数按 IEEE-754 double；运行时会出错或结果不确定的情况不折叠
+ */
+final class ConstFold {
+    private ConstFold() {
+    }
+
+    /**
+     * 计算 a op b，a、b 和结果都是 PUSH 的参数，浮点数是它的位模式
+     *
+     * @return 结果，不能折叠时返回 null
+     */
+    static Long binary(Operation op, long a, long b) {
+        switch (op) {
+            case ADD_I:
+                return a + b;
+            case SUB_I:
+                return a - b;
+            case MUL_I:
+                return a * b;
+            case DIV_I:
+                // 除零和溢出的除法留给运行时报错
+                if (b == 0 || (a == Long.MIN_VALUE && b == -1)) {
+                    return null;
+                }
+                return a / b;
+            case ADD_F:
+                return bits(real(a) + real(b));
+            case SUB_F:
+                return bits(real(a) - real(b));
+            case MUL_F:
+                return bits(real(a) * real(b));
+            case DIV_F:
+                return bits(real(a) / real(b));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 计算 itof / ftoi
+     *
+     * @return 结果，不能折叠时返回 null
+     */
+    static Long convert(Operation op, long x) {
+        switch (op) {
+            case ITOF:
+                return bits((double) x);
+            case FTOI: {
+                // 超出范围和 NaN 转换的结果由虚拟机决定
+                double d = real(x);
+                if (!(d >= -0x1p63 && d < 0x1p63)) {
+                    return null;
+                }
+                return (long) d;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 比较两个常量，结果和 cmp 之后接 set / not 相同
+     *
+     * @return 1 或 0，不能折叠时返回 null
+     */
+    static Long compare(TokenType op, ExperType type, long a, long b) {
+        int c;
+        if (type == ExperType.INT) {
+            c = Long.compare(a, b);
+        } else {
+            double x = real(a), y = real(b);
+            if (Double.isNaN(x) || Double.isNaN(y)) {
+                return null;
+            }
+            // 不用 Double.compare，0.0 和 -0.0 相等
+            c = x < y ? -1 : (x > y ? 1 : 0);
+        }
+        boolean res;
+        switch (op) {
+            case GT: res = c > 0; break;
+            case LT: res = c < 0; break;
+            case GE: res = c >= 0; break;
+            case LE: res = c <= 0; break;
+            case EQ: res = c == 0; break;
+            case NEQ: res = c != 0; break;
+            default: return null;
+        }
+        return res ? 1L : 0L;
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double x) {
+        return Double.doubleToRawLongBits(x);
+    }
+}
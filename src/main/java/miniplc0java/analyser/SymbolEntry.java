@@ -3,6 +3,8 @@ package miniplc0java.analyser;
 public class SymbolEntry {
 
     String name;
+    /** 名字在 Interner 中的编号 */
+    int identId;
     SymbolType type;
     boolean isConstant;
     boolean isInitialized;
@@ -10,11 +12,20 @@ public class SymbolEntry {
     boolean isGlobal;
     boolean isParam;
     int stackOffset;
+    /** 声明在源码中的偏移 */
+    int pos;
+    /** 被这个符号遮蔽的同名符号 */
+    SymbolEntry shadowed;
+    /** 加入符号表的顺序 */
+    int seq;
+    /** 初值是常量的 const 的值，浮点数是位模式；其他符号为 null */
+    Long constValue;
 
-    public SymbolEntry(String name,SymbolType type, boolean isConstant,
+    public SymbolEntry(String name,int identId,SymbolType type, boolean isConstant,
                        boolean isInitialized,int level,
-                       boolean isGlobal,boolean isParam,int stackOffset) {
+                       boolean isGlobal,boolean isParam,int stackOffset,int pos) {
         this.name = name;
+        this.identId = identId;
         this.type = type;
         this.isConstant = isConstant;
         this.isInitialized = isInitialized;
@@ -22,6 +33,7 @@ public class SymbolEntry {
         this.isGlobal = isGlobal;
         this.isParam = isParam;
         this.stackOffset = stackOffset;
+        this.pos = pos;
     }
 
     @Override
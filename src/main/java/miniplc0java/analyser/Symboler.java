@@ -2,94 +2,165 @@ package miniplc0java.analyser;
 
 import miniplc0java.error.AnalyzeError;
 import miniplc0java.error.ErrorCode;
-import miniplc0java.util.Pos;
+import miniplc0java.tokenizer.Interner;
+import miniplc0java.util.LineIndex;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * 符号表。名字已经是 Interner 的编号，所以直接按编号存每个名字的遮蔽链，链头是最近声明的那个；
+ * 每一层记录在这一层加入的符号，离开作用域时按记录撤销。
+ */
 public class Symboler {
-    /** 符号表 */
-    List<SymbolEntry> symbolTable = new ArrayList<>();
+    // heads[identId] 是这个名字当前可见的符号，更早的同名符号通过 shadowed 串起来
+    private SymbolEntry[] heads = new SymbolEntry[64];
 
-    public SymbolEntry addSymbol(String name, SymbolType type,
+    // undoLogs.get(level) 是在这一层加入、还没有撤销的符号
+    private final List<List<SymbolEntry>> undoLogs = new ArrayList<>();
+
+    // 全局变量，按声明顺序
+    private final List<SymbolEntry> globals = new ArrayList<>();
+
+    // 各类符号现有的数量，新符号的 stackOffset 就是同类符号的数量
+    private int funCount = 0;
+    private int globalCount = 0;
+    private int localCount = 0;
+    private int paramCount = 0;
+
+    // 加入的顺序，只用于 toString
+    private int seq = 0;
+
+    Interner interner;
+
+    LineIndex lines;
+
+    public Symboler(Interner interner, LineIndex lines) {
+        this.interner = interner;
+        this.lines = lines;
+    }
+
+    public SymbolEntry addSymbol(int identId, SymbolType type,
                           boolean isConstant, boolean isInitialized,
                           int level,
                           boolean isGlobal,boolean isParam,
-                          Pos curPos) throws AnalyzeError {
-        if(findSymbol(name) != null && findSymbol(name).level == level){
+                          int offset) throws AnalyzeError {
+        SymbolEntry old = findSymbol(identId);
+        if(old != null && old.level == level){
             // 重定义
-            throw new AnalyzeError(ErrorCode.DuplicateDeclaration,curPos);
+            throw new AnalyzeError(ErrorCode.DuplicateDeclaration,offset,lines);
         }
-        SymbolEntry symbol =new SymbolEntry(
-                name,type,isConstant,isInitialized,level,isGlobal,isParam,0);
+        SymbolEntry symbol =new SymbolEntry(interner.name(identId),
+                identId,type,isConstant,isInitialized,level,isGlobal,isParam,0,offset);
         symbol.stackOffset = getOffset(symbol);
-        symbolTable.add(symbol);
+        addSymbol(symbol);
         return symbol;
     }
+
     public void addSymbol(SymbolEntry symbolEntry){
-        symbolTable.add(symbolEntry);
+        int id = symbolEntry.identId;
+        if(id >= heads.length){
+            heads = Arrays.copyOf(heads, Math.max(id + 1, heads.length * 2));
+        }
+        symbolEntry.shadowed = heads[id];
+        heads[id] = symbolEntry;
+        symbolEntry.seq = seq++;
+
+        while(undoLogs.size() <= symbolEntry.level){
+            undoLogs.add(new ArrayList<>());
+        }
+        undoLogs.get(symbolEntry.level).add(symbolEntry);
+        if(symbolEntry.isGlobal && symbolEntry.type != SymbolType.FUN_NAME){
+            globals.add(symbolEntry);
+        }
+        count(symbolEntry, 1);
     }
+
+    /**
+     * 删除所有层数大于 level 的符号
+     */
     public void popAllLevel(int level){
-        for(int i=0;i<symbolTable.size();i++) {
-            SymbolEntry symbol = symbolTable.get(i);
-            if(symbol.level > level){
-                symbolTable.remove(i);
-                i--;
+        for(int lv = undoLogs.size() - 1; lv > level; lv--){
+            List<SymbolEntry> log = undoLogs.get(lv);
+            for(int i = log.size() - 1; i >= 0; i--){
+                remove(log.get(i));
             }
+            log.clear();
         }
     }
 
+    private void remove(SymbolEntry symbol){
+        int id = symbol.identId;
+        if(heads[id] == symbol){
+            heads[id] = symbol.shadowed;
+        }else{
+            // 参数比函数名先加入但层数更高，同名时要从链的中间删除
+            SymbolEntry prev = heads[id];
+            while(prev.shadowed != symbol){
+                prev = prev.shadowed;
+            }
+            prev.shadowed = symbol.shadowed;
+        }
+        symbol.shadowed = null;
+        count(symbol, -1);
+    }
+
+    private void count(SymbolEntry symbol, int delta){
+        if(symbol.type == SymbolType.FUN_NAME){
+            funCount += delta;
+        }else if(symbol.isParam){
+            paramCount += delta;
+        }else if(symbol.isGlobal){
+            globalCount += delta;
+        }else{
+            localCount += delta;
+        }
+    }
+
+    /**
+     * 按声明顺序的全部全局变量（不包括函数）
+     */
+    public List<SymbolEntry> getGlobals(){
+        return globals;
+    }
+
     public String toString(){
-        String res = "";
-        for(int i=0;i<symbolTable.size();i++) {
-            SymbolEntry symbol = symbolTable.get(i);
-            res += "name = " + symbol.name +
-                    "\ttype  = " + symbol.type +
-                    "\tisConst = "+symbol.isConstant +
-                    "\tisInit = " + symbol.isInitialized +
-                    "\tlevel = " + symbol.level +
-                    "\tisGlo = " + symbol.isGlobal +
-                    "\tisParam = " + symbol.isParam +
-                    "\toffset = " + symbol.stackOffset +
-                    "\n"
-            ;
+        List<SymbolEntry> live = new ArrayList<>();
+        for(List<SymbolEntry> log : undoLogs){
+            live.addAll(log);
+        }
+        live.sort((a, b) -> Integer.compare(a.seq, b.seq));
+        StringBuilder res = new StringBuilder();
+        for(SymbolEntry symbol : live) {
+            res.append("name = ").append(symbol.name)
+                    .append("\ttype  = ").append(symbol.type)
+                    .append("\tisConst = ").append(symbol.isConstant)
+                    .append("\tisInit = ").append(symbol.isInitialized)
+                    .append("\tlevel = ").append(symbol.level)
+                    .append("\tisGlo = ").append(symbol.isGlobal)
+                    .append("\tisParam = ").append(symbol.isParam)
+                    .append("\toffset = ").append(symbol.stackOffset)
+                    .append("\n");
         }
-        return res;
+        return res.toString();
     }
 
     // 找到这个名字的变量是啥
-    public SymbolEntry findSymbol(String name){
-        for(int i = symbolTable.size()-1;i>=0;i--){
-            SymbolEntry symbol = symbolTable.get(i);
-            if(symbol.name.equals(name)){
-                return symbol;
-            }
-        }
-        return null;
+    public SymbolEntry findSymbol(int identId){
+        return identId < heads.length ? heads[identId] : null;
     }
 
     private int getOffset(SymbolEntry symbolEntry){
-        int res = 0;
         // 如果是函数
         if(symbolEntry.type == SymbolType.FUN_NAME){
-            for(int i=symbolTable.size()-1;i>=0;i--){
-                SymbolEntry symbol = symbolTable.get(i);
-                if(symbol.type == SymbolType.FUN_NAME)res++;
-            }
-            return res;
+            return funCount;
         }
-        // 如果不是函数
-
-        for(int i=symbolTable.size()-1;i>=0;i--){
-            SymbolEntry symbol = symbolTable.get(i);
-            if(symbol.type != SymbolType.FUN_NAME &&
-            symbol.isGlobal == symbolEntry.isGlobal &&
-            symbol.isParam == symbolEntry.isParam)
-                res ++;
+        // 如果不是函数，数同类的变量
+        if(symbolEntry.isParam){
+            return paramCount;
         }
-        //System.out.println("get offset :"+symbolTable.size() +" "+ res);
-        //System.out.println(toString());
-        return res;
+        return symbolEntry.isGlobal ? globalCount : localCount;
     }
 
 }
@@ -1,5 +1,6 @@
 package miniplc0java.error;
 
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 public class AnalyzeError extends CompileError {
@@ -8,6 +9,10 @@ public class AnalyzeError extends CompileError {
     ErrorCode code;
     Pos pos;
 
+    // 出错位置先只记偏移，用到时再换算成行列
+    int offset;
+    LineIndex lines;
+
     @Override
     public ErrorCode getErr() {
         return code;
@@ -15,6 +20,9 @@ public class AnalyzeError extends CompileError {
 
     @Override
     public Pos getPos() {
+        if (pos == null && lines != null) {
+            pos = lines.posAt(offset);
+        }
         return pos;
     }
 
@@ -28,8 +36,19 @@ public class AnalyzeError extends CompileError {
         this.pos = pos;
     }
 
+    /**
+     * @param code
+     * @param offset 出错位置在源码中的偏移
+     * @param lines  源码的行首偏移表
+     */
+    public AnalyzeError(ErrorCode code, int offset, LineIndex lines) {
+        this.code = code;
+        this.offset = offset;
+        this.lines = lines;
+    }
+
     @Override
     public String toString() {
-        return new StringBuilder().append("Analyze Error: ").append(code).append(", at: ").append(pos).toString();
+        return new StringBuilder().append("Analyze Error: ").append(code).append(", at: ").append(getPos()).toString();
     }
 }
@@ -1,5 +1,6 @@
 package miniplc0java.error;
 
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 public class TokenizeError extends CompileError {
@@ -9,6 +10,17 @@ public class TokenizeError extends CompileError {
     private ErrorCode err;
     private Pos pos;
 
+    // 出错位置先只记偏移，用到时再换算成行列
+    private int offset;
+    private LineIndex lines;
+
+    public TokenizeError(ErrorCode err, int offset, LineIndex lines) {
+        super();
+        this.err = err;
+        this.offset = offset;
+        this.lines = lines;
+    }
+
     public TokenizeError(ErrorCode err, Pos pos) {
         super();
         this.err = err;
@@ -26,11 +38,14 @@ public class TokenizeError extends CompileError {
     }
 
     public Pos getPos() {
+        if (pos == null && lines != null) {
+            pos = lines.posAt(offset);
+        }
         return pos;
     }
 
     @Override
     public String toString() {
-        return new StringBuilder().append("Tokenize Error: ").append(err).append(", at: ").append(pos).toString();
+        return new StringBuilder().append("Tokenize Error: ").append(err).append(", at: ").append(getPos()).toString();
     }
 }
@@ -0,0 +1,102 @@
+package miniplc0java.instruction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个函数的指令序列，紧凑地存成两个并列数组：操作（Operation 的 ordinal）和参数。
+ * 加入指令不创建对象，跳转的偏移可以在之后按下标回填
+ */
+public class CodeBuffer {
+    private byte[] ops;
+    private long[] operands;
+    private int size = 0;
+
+    public CodeBuffer() {
+        this(16);
+    }
+
+    public CodeBuffer(int capacity) {
+        ops = new byte[Math.max(capacity, 1)];
+        operands = new long[Math.max(capacity, 1)];
+    }
+
+    private void grow(int capacity) {
+        if (capacity > ops.length) {
+            capacity = Math.max(capacity, ops.length * 2);
+            ops = Arrays.copyOf(ops, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+        }
+    }
+
+    /**
+     * @return 新指令的下标
+     */
+    public int add(Operation op) {
+        return add(op, 0);
+    }
+
+    public int add(Operation op, long x) {
+        grow(size + 1);
+        ops[size] = (byte) op.ordinal();
+        operands[size] = x;
+        return size++;
+    }
+
+    /**
+     * 把 from 的 [begin, end) 接到后面
+     */
+    public void addAll(CodeBuffer from, int begin, int end) {
+        int n = end - begin;
+        grow(size + n);
+        System.arraycopy(from.ops, begin, ops, size, n);
+        System.arraycopy(from.operands, begin, operands, size, n);
+        size += n;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 只保留前 size 条指令
+     */
+    public void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    public Operation op(int i) {
+        return Operation.of(ops[i]);
+    }
+
+    public long operand(int i) {
+        return operands[i];
+    }
+
+    /**
+     * 回填第 i 条指令的参数
+     */
+    public void patch(int i, long x) {
+        operands[i] = x;
+    }
+
+    public void setOp(int i, Operation op) {
+        ops[i] = (byte) op.ordinal();
+    }
+
+    /**
+     * 生成第 i 条指令对应的 Instruction 对象
+     */
+    public Instruction get(int i) {
+        return new Instruction(op(i), operands[i]);
+    }
+
+    public List<Instruction> toInstructions() {
+        List<Instruction> res = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            res.add(get(i));
+        }
+        return res;
+    }
+}
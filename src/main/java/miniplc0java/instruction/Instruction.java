@@ -97,57 +97,18 @@ public class Instruction {
         return  res;
     }
 
+    /**
+     * 参数占用的字节数，push 是 8，其他带参数的指令是 4，没有参数是 0
+     */
+    public int getParamSize(){
+        return opt.getParamSize();
+    }
+
     private boolean haveParam(){
-        int opyByte = getOptByte();
-        boolean haParam = false;
-        switch (this.opt){
-            case PUSH:
-            case POPN:
-            case LOCA:
-            case ARGA:
-            case GLOBA:
-            case STACK_ALLOC:
-            case BR:
-            case BR_FALSE:
-            case BR_TRUE:
-            case CALL:
-            case CALL_NAME:
-                haParam = true;
-        }
-        return haParam;
+        return opt.hasParam();
     }
-    private byte getOptByte(){
-        byte offset = 0;
-        if(this.opt.ordinal() >= Operation.LOCA.ordinal()){
-            offset = 5;
-        }
-        if(this.opt.ordinal() >= Operation.LOAD8.ordinal()){
-            offset = (byte) (0x10-Operation.LOAD8.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.ADD_I.ordinal()){
-            offset = (byte) (0x20-Operation.ADD_I.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.CMP_I.ordinal()){
-            offset = (byte) (0x30-Operation.CMP_I.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.NEG_I.ordinal()){
-            offset = (byte) (0x34-Operation.NEG_I.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.BR.ordinal()){
-            offset = (byte) (0x41-Operation.BR.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.CALL.ordinal()){
-            offset = (byte)(0x48 - Operation.CALL.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.SCAN_I.ordinal()){
-            offset = (byte)(0x50 - Operation.SCAN_I.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.PRINT_I.ordinal()){
-            offset = (byte)(0x54 - Operation.PRINT_I.ordinal());
-        }
-        if(this.opt.ordinal() >= Operation.PANIC.ordinal()){
-            offset = (byte)(0xfe - Operation.PANIC.ordinal());
-        }
-        return (byte)(this.opt.ordinal() + offset);
+
+    public byte getOptByte(){
+        return opt.getOpcode();
     }
 }
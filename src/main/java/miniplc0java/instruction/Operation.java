@@ -1,22 +1,82 @@
 package miniplc0java.instruction;
 
+/**
+ * 指令，附带它在 o0 中的操作码和参数的字节数
+ */
 public enum Operation {
-    NOP,PUSH,POP,POPN,DUP,LOCA,ARGA,GLOBA,LOAD8,LOAD16,LOAD32,LOAD64,
-    STORE8,STORE16,STORE32,STORE64,ALLOC,FREE,STACK_ALLOC,
+    NOP(0x00),PUSH(0x01,8),POP(0x02),POPN(0x03,4),DUP(0x04),
+    LOCA(0x0a,4),ARGA(0x0b,4),GLOBA(0x0c,4),
+    LOAD8(0x10),LOAD16(0x11),LOAD32(0x12),LOAD64(0x13),
+    STORE8(0x14),STORE16(0x15),STORE32(0x16),STORE64(0x17),
+    ALLOC(0x18),FREE(0x19),STACK_ALLOC(0x1a,4),
 
-    ADD_I,SUB_I,MUL_I,DIV_I,
-    ADD_F,SUB_F,MUL_F,DIV_F,DIV_U,
-    SHL,SHR,AND,OR,XOR,NOT,
+    ADD_I(0x20),SUB_I(0x21),MUL_I(0x22),DIV_I(0x23),
+    ADD_F(0x24),SUB_F(0x25),MUL_F(0x26),DIV_F(0x27),DIV_U(0x28),
+    SHL(0x29),SHR(0x2a),AND(0x2b),OR(0x2c),XOR(0x2d),NOT(0x2e),
 
-    CMP_I,CMP_U,CMP_F,
-    NEG_I,NEG_F,
+    CMP_I(0x30),CMP_U(0x31),CMP_F(0x32),
+    NEG_I(0x34),NEG_F(0x35),
 
-    ITOF,FTOI,
+    ITOF(0x36),FTOI(0x37),
 
-    SHRL,SET_LT,SET_GT,
+    SHRL(0x38),SET_LT(0x39),SET_GT(0x3a),
 
-    BR,BR_FALSE, BR_TRUE,CALL,RET,CALL_NAME,
-    SCAN_I,SCAN_C,SCAN_F,
-    PRINT_I,PRINT_C,PRINT_F,PRINT_S,PRINT_LN,
-    PANIC,
+    BR(0x41,4),BR_FALSE(0x42,4), BR_TRUE(0x43,4),CALL(0x48,4),RET(0x49),CALL_NAME(0x4a,4),
+    SCAN_I(0x50),SCAN_C(0x51),SCAN_F(0x52),
+    PRINT_I(0x54),PRINT_C(0x55),PRINT_F(0x56),PRINT_S(0x57),PRINT_LN(0x58),
+    PANIC(0xfe),
+    ;
+
+    private static final Operation[] VALUES = values();
+    private static final Operation[] BY_OPCODE = new Operation[256];
+
+    static {
+        for (Operation op : VALUES) {
+            BY_OPCODE[op.opcode & 0xff] = op;
+        }
+    }
+
+    private final byte opcode;
+    private final int paramSize;
+
+    Operation(int opcode) {
+        this(opcode, 0);
+    }
+
+    Operation(int opcode, int paramSize) {
+        this.opcode = (byte) opcode;
+        this.paramSize = paramSize;
+    }
+
+    /**
+     * o0 中的操作码
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * 参数占用的字节数，没有参数时为 0
+     */
+    public int getParamSize() {
+        return paramSize;
+    }
+
+    public boolean hasParam() {
+        return paramSize != 0;
+    }
+
+    /**
+     * 按 ordinal 取，不用每次 values() 复制数组
+     */
+    public static Operation of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * 按 o0 中的操作码取，没有这个操作码时返回 null
+     */
+    public static Operation byOpcode(int opcode) {
+        return BY_OPCODE[opcode & 0xff];
+    }
 }
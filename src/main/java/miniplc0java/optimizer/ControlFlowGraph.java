@@ -0,0 +1,178 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一个函数的控制流图。基本块按指令顺序排列，第一个是入口；
+ * 跳到函数末尾（下标等于指令数）的边不记录
+ */
+public class ControlFlowGraph {
+    private final CodeBuffer code;
+    private final List<BasicBlock> blocks = new ArrayList<>();
+    // 每条指令所在的基本块
+    private final BasicBlock[] blockOf;
+
+    public ControlFlowGraph(CodeBuffer code) {
+        this.code = code;
+        int n = code.size();
+        this.blockOf = new BasicBlock[n];
+
+        // 块的开头：第一条指令、跳转的目标、跳转和返回之后的指令
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        for (int i = 0; i < n; i++) {
+            Operation op = code.op(i);
+            if (isBranch(op)) {
+                int target = target(code, i);
+                if (target >= 0 && target <= n) {
+                    leader[target] = true;
+                }
+            }
+            if (isBranch(op) || isTerminator(op)) {
+                leader[i + 1] = true;
+            }
+        }
+        for (int i = 0; i < n; ) {
+            int end = i + 1;
+            while (end < n && !leader[end]) {
+                end++;
+            }
+            BasicBlock block = new BasicBlock(blocks.size(), i, end);
+            blocks.add(block);
+            for (int j = i; j < end; j++) {
+                blockOf[j] = block;
+            }
+            i = end;
+        }
+
+        for (BasicBlock block : blocks) {
+            Operation last = code.op(block.end - 1);
+            if (isBranch(last)) {
+                link(block, target(code, block.end - 1));
+            }
+            if (last != Operation.BR && !isTerminator(last)) {
+                link(block, block.end);
+            }
+        }
+    }
+
+    private void link(BasicBlock from, int target) {
+        if (target < 0 || target >= code.size()) {
+            return;
+        }
+        BasicBlock to = blockOf[target];
+        if (!from.succs.contains(to)) {
+            from.succs.add(to);
+            to.preds.add(from);
+        }
+    }
+
+    public CodeBuffer getCode() {
+        return code;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * @return 第 i 条指令所在的基本块
+     */
+    public BasicBlock blockOf(int i) {
+        return blockOf[i];
+    }
+
+    /**
+     * 从入口出发能到达的块
+     *
+     * @return 按块的编号索引
+     */
+    public boolean[] reachable() {
+        boolean[] seen = new boolean[blocks.size()];
+        if (blocks.isEmpty()) {
+            return seen;
+        }
+        List<BasicBlock> stack = new ArrayList<>();
+        stack.add(blocks.get(0));
+        seen[0] = true;
+        while (!stack.isEmpty()) {
+            BasicBlock block = stack.remove(stack.size() - 1);
+            for (BasicBlock succ : block.succs) {
+                if (!seen[succ.id]) {
+                    seen[succ.id] = true;
+                    stack.add(succ);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * 连续的一段指令 [start, end)，只有第一条可以是跳转目标，只有最后一条可以跳转
+     */
+    public static class BasicBlock {
+        final int id;
+        final int start;
+        final int end;
+        final List<BasicBlock> succs = new ArrayList<>(2);
+        final List<BasicBlock> preds = new ArrayList<>(2);
+
+        BasicBlock(int id, int start, int end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public List<BasicBlock> getSuccessors() {
+            return Collections.unmodifiableList(succs);
+        }
+
+        public List<BasicBlock> getPredecessors() {
+            return Collections.unmodifiableList(preds);
+        }
+
+        @Override
+        public String toString() {
+            return "B" + id + "[" + start + "," + end + ")";
+        }
+    }
+
+    /**
+     * @return 第 i 条跳转指令的目标下标
+     */
+    static int target(CodeBuffer code, int i) {
+        return i + 1 + (int) code.operand(i);
+    }
+
+    static boolean isBranch(Operation op) {
+        return op == Operation.BR || isCondBranch(op);
+    }
+
+    static boolean isCondBranch(Operation op) {
+        return op == Operation.BR_FALSE || op == Operation.BR_TRUE;
+    }
+
+    /**
+     * 执行之后不会落到下一条指令，也不是跳转
+     */
+    static boolean isTerminator(Operation op) {
+        return op == Operation.RET || op == Operation.PANIC;
+    }
+}
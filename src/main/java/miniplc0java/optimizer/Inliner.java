@@ -0,0 +1,254 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Program;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static miniplc0java.optimizer.ControlFlowGraph.isBranch;
+import static miniplc0java.optimizer.ControlFlowGraph.isCondBranch;
+import static miniplc0java.optimizer.ControlFlowGraph.target;
+
+/**
+ * 把小函数的指令复制到调用处。
+ *
+ * 被调用的函数的参数和返回值（arga）、局部变量（loca）都换成调用者新加的局部变量，
+ * ret 换成跳到复制的指令之后。参数由调用者在复制之前写进对应的局部变量，
+ * 返回值在复制之后从局部变量里读出来；只在最后返回的函数直接把返回值留在栈上。
+ * 和真的调用一样，可能没有写就读的局部变量在复制的指令之前清零
+ */
+public class Inliner {
+    /** 默认只内联不超过这么多条指令的函数 */
+    public static final int DEFAULT_SIZE = 24;
+    /** 默认每个函数因为内联最多增加这么多条指令 */
+    public static final int DEFAULT_BUDGET = 256;
+
+    private final Program program;
+    private int maxSize;
+    private int budget;
+
+    // 按函数的 id 缓存能不能内联
+    private final Map<Integer, Boolean> inlinable = new HashMap<>();
+    // 按函数的 id 缓存要清零的局部变量
+    private final Map<Integer, BitSet> liveAtEntry = new HashMap<>();
+    // 每个调用者已经内联进来的指令数
+    private final Map<Integer, Integer> grown = new HashMap<>();
+
+    public Inliner(Program program) {
+        this(program, DEFAULT_SIZE, DEFAULT_BUDGET);
+    }
+
+    public Inliner(Program program, int maxSize, int budget) {
+        this.program = program;
+        this.maxSize = maxSize;
+        this.budget = budget;
+    }
+
+    public void setLimits(int maxSize, int budget) {
+        this.maxSize = maxSize;
+        this.budget = budget;
+    }
+
+    /**
+     * 调用者里的这次调用是否内联。callee 的指令必须已经生成完，所以递归调用不会内联
+     */
+    public boolean shouldInline(Functiondef caller, Functiondef callee) {
+        if (caller == callee || callee.code.size() > maxSize) {
+            return false;
+        }
+        if (grown.getOrDefault(caller.id, 0) + callee.code.size() > budget) {
+            return false;
+        }
+        return inlinable.computeIfAbsent(callee.id, id -> balanced(callee));
+    }
+
+    /**
+     * 把 callee 的指令接到 into 后面
+     *
+     * @param argBase   callee 的 arga 0 对应的局部变量
+     * @param localBase callee 的 loca 0 对应的局部变量
+     * @return 返回值是否直接留在了栈上，否则在 argBase 这个局部变量里
+     */
+    public boolean inline(CodeBuffer into, Functiondef caller, Functiondef callee, int argBase, int localBase) {
+        CodeBuffer code = callee.code;
+        int n = code.size();
+
+        // 只有最后一条 ret、并且紧接在返回值的 store64 之后时，返回值不经过局部变量
+        boolean[] skip = new boolean[n];
+        int store = returnStore(callee);
+        if (store >= 0) {
+            skip[store] = skip[n - 2] = skip[n - 1] = true;
+        }
+        int[] pos = new int[n + 1];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            pos[i] = size;
+            if (!skip[i]) {
+                size++;
+            }
+        }
+        pos[n] = size;
+
+        BitSet zero = liveAtEntry.computeIfAbsent(callee.id, id -> new SlotAllocator(program).liveAtEntry(callee));
+        for (int k = zero.nextSetBit(0); k >= 0; k = zero.nextSetBit(k + 1)) {
+            into.add(Operation.LOCA, localBase + k);
+            into.add(Operation.PUSH, 0);
+            into.add(Operation.STORE64);
+        }
+        for (int i = 0; i < n; i++) {
+            if (skip[i]) {
+                continue;
+            }
+            Operation op = code.op(i);
+            switch (op) {
+                case ARGA:
+                    into.add(Operation.LOCA, argBase + code.operand(i));
+                    break;
+                case LOCA:
+                    into.add(Operation.LOCA, localBase + code.operand(i));
+                    break;
+                case RET:
+                    // 跳到复制的指令之后，最后一条 ret 会变成 br 0
+                    into.add(Operation.BR, size - pos[i] - 1);
+                    break;
+                case BR:
+                case BR_FALSE:
+                case BR_TRUE:
+                    into.add(op, pos[target(code, i)] - pos[i] - 1);
+                    break;
+                default:
+                    into.add(op, code.operand(i));
+                    break;
+            }
+        }
+        grown.merge(caller.id, size + 3 * zero.cardinality(), Integer::sum);
+        return store >= 0;
+    }
+
+    /**
+     * 函数以 arga 0; 表达式; store64; ret 结束，并且只有这一条 ret、没有跳到 store64 和 ret 的跳转时，
+     * 返回 arga 0 的下标，否则返回 -1
+     */
+    private int returnStore(Functiondef fun) {
+        CodeBuffer code = fun.code;
+        int n = code.size();
+        if (fun.returnSize != 1 || n < 3
+                || code.op(n - 1) != Operation.RET || code.op(n - 2) != Operation.STORE64) {
+            return -1;
+        }
+        int arga = -1;
+        for (int i = 0; i < n; i++) {
+            Operation op = code.op(i);
+            if (op == Operation.RET && i != n - 1) {
+                return -1;
+            }
+            if (isBranch(op) && target(code, i) >= n - 2) {
+                return -1;
+            }
+            if (op == Operation.ARGA && code.operand(i) == 0) {
+                if (arga >= 0) {
+                    return -1;
+                }
+                arga = i;
+            }
+        }
+        if (arga < 0) {
+            return -1;
+        }
+        // arga 0 的地址要正好被最后的 store64 用掉，中间不能有跳转
+        int depth = 1;
+        for (int j = arga + 1; j < n - 2; j++) {
+            int pops = StackEffect.pops(program, code, j);
+            if (pops < 0 || depth - pops < 1) {
+                return -1;
+            }
+            depth += StackEffect.pushes(program, code, j) - pops;
+        }
+        return depth == 2 ? arga : -1;
+    }
+
+    /**
+     * 每条 ret 之前操作数栈都是空的，也就是复制过去之后不会在调用者的栈上留下多余的值；
+     * 并且不调用自己
+     */
+    private boolean balanced(Functiondef fun) {
+        CodeBuffer code = fun.code;
+        int n = code.size();
+        int args = fun.returnSize + fun.params.size();
+        if (n == 0) {
+            return false;
+        }
+        int[] depth = new int[n];
+        Arrays.fill(depth, -1);
+        Deque<Integer> work = new ArrayDeque<>();
+        depth[0] = 0;
+        work.push(0);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            Operation op = code.op(i);
+            int d = depth[i];
+            if (op == Operation.CALL && code.operand(i) == fun.id) {
+                return false;
+            }
+            if ((op == Operation.ARGA && code.operand(i) >= args)
+                    || (op == Operation.LOCA && code.operand(i) >= fun.localSize)) {
+                return false;
+            }
+            if (op == Operation.RET) {
+                if (d != 0) {
+                    return false;
+                }
+                continue;
+            }
+            if (op == Operation.PANIC) {
+                continue;
+            }
+            int next;
+            if (isBranch(op)) {
+                if (isCondBranch(op)) {
+                    d--;
+                }
+                if (d < 0 || !flow(depth, work, target(code, i), d, n)) {
+                    return false;
+                }
+                if (op == Operation.BR) {
+                    continue;
+                }
+                next = d;
+            } else {
+                int pops = StackEffect.pops(program, code, i);
+                if (pops < 0 || d < pops) {
+                    return false;
+                }
+                next = d - pops + StackEffect.pushes(program, code, i);
+            }
+            if (!flow(depth, work, i + 1, next, n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 深度为 d 时流到第 i 条指令，同一条指令的深度必须一致
+     */
+    private static boolean flow(int[] depth, Deque<Integer> work, int i, int d, int n) {
+        if (i < 0 || i >= n) {
+            // 跳出函数或者从最后一条指令之后继续执行
+            return false;
+        }
+        if (depth[i] < 0) {
+            depth[i] = d;
+            work.push(i);
+            return true;
+        }
+        return depth[i] == d;
+    }
+}
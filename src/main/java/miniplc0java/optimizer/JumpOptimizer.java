@@ -0,0 +1,185 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Program;
+
+import static miniplc0java.optimizer.ControlFlowGraph.isBranch;
+import static miniplc0java.optimizer.ControlFlowGraph.isCondBranch;
+import static miniplc0java.optimizer.ControlFlowGraph.target;
+
+/**
+ * 整理跳转：条件是常量的跳转换成 br 或删掉，跳到 br 的跳转直接跳到最终目标，
+ * 只跳过一条 br 的条件跳转反过来，删掉到达不了的基本块和跳到下一条指令的 br，
+ * 最后重新计算跳转的偏移
+ */
+public class JumpOptimizer {
+    private final Program program;
+
+    public JumpOptimizer(Program program) {
+        this.program = program;
+    }
+
+    /**
+     * 优化所有函数
+     *
+     * @return 减少的指令数
+     */
+    public int run() {
+        int removed = 0;
+        for (Functiondef fun : program.functiondefList) {
+            int before = fun.code.size();
+            CodeBuffer code = fun.code;
+            while (true) {
+                CodeBuffer next = optimize(code);
+                if (next == null) {
+                    break;
+                }
+                code = next;
+            }
+            fun.code = code;
+            fun.bodySize = code.size();
+            removed += before - code.size();
+        }
+        return removed;
+    }
+
+    /**
+     * 整理一遍
+     *
+     * @return 整理后的指令，没有变化时返回 null
+     */
+    CodeBuffer optimize(CodeBuffer code) {
+        int n = code.size();
+        CodeBuffer work = new CodeBuffer(n);
+        work.addAll(code, 0, n);
+        boolean changed = false;
+
+        boolean[] isTarget = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (isBranch(code.op(i))) {
+                isTarget[target(code, i)] = true;
+            }
+        }
+
+        // 先把要删的指令换成 nop，最后统一删掉
+        for (int i = 0; i + 1 < n; i++) {
+            if (work.op(i) == Operation.PUSH && isCondBranch(work.op(i + 1)) && !isTarget[i + 1]) {
+                boolean taken = (work.operand(i) != 0) == (work.op(i + 1) == Operation.BR_TRUE);
+                work.setOp(i, Operation.NOP);
+                work.setOp(i + 1, taken ? Operation.BR : Operation.NOP);
+                changed = true;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            Operation op = work.op(i);
+            if (!isBranch(op)) {
+                continue;
+            }
+            int to = resolve(work, target(work, i));
+            if (to != target(work, i)) {
+                work.patch(i, to - i - 1);
+                changed = true;
+            }
+            if (op == Operation.BR && to < n && work.op(to) == Operation.RET) {
+                work.setOp(i, Operation.RET);
+                work.patch(i, 0);
+                changed = true;
+            }
+        }
+
+        // 条件跳转只跳过一条 br 时，反过来直接跳到 br 的目标
+        for (int i = 0; i + 1 < n; i++) {
+            Operation op = work.op(i);
+            if (isCondBranch(op) && target(work, i) == i + 2
+                    && work.op(i + 1) == Operation.BR && !isTarget[i + 1]) {
+                work.setOp(i, op == Operation.BR_FALSE ? Operation.BR_TRUE : Operation.BR_FALSE);
+                work.patch(i, target(work, i + 1) - i - 1);
+                work.setOp(i + 1, Operation.NOP);
+                changed = true;
+            }
+        }
+
+        ControlFlowGraph cfg = new ControlFlowGraph(work);
+        boolean[] reachable = cfg.reachable();
+        boolean[] keep = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            keep[i] = work.op(i) != Operation.NOP && reachable[cfg.blockOf(i).id];
+            if (!keep[i]) {
+                changed = true;
+            }
+        }
+
+        // next[i] 是 i 之后（包括 i）第一条保留的指令，从后往前算，
+        // 这样删掉一条 br 之后，前面跳到它的跳转也能看到
+        int[] next = new int[n + 1];
+        next[n] = n;
+        for (int i = n - 1; i >= 0; i--) {
+            Operation op = work.op(i);
+            if (keep[i] && isBranch(op)) {
+                int to = target(work, i);
+                if (to > i && next[to] == next[i + 1]) {
+                    if (op == Operation.BR) {
+                        keep[i] = false;
+                    } else {
+                        // 两个方向相同，只需要弹出条件
+                        work.setOp(i, Operation.POP);
+                    }
+                    changed = true;
+                }
+            }
+            next[i] = keep[i] ? i : next[i + 1];
+        }
+        if (!changed) {
+            return null;
+        }
+
+        int[] pos = new int[n + 1];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            pos[i] = size;
+            if (keep[i]) {
+                size++;
+            }
+        }
+        pos[n] = size;
+
+        CodeBuffer out = new CodeBuffer(size);
+        for (int i = 0; i < n; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            Operation op = work.op(i);
+            if (isBranch(op)) {
+                out.add(op, pos[next[target(work, i)]] - pos[i] - 1);
+            } else {
+                out.add(op, work.operand(i));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 跳过 nop，沿着 br 找到最终执行的指令。br 成环时不改
+     */
+    private static int resolve(CodeBuffer code, int to) {
+        int n = code.size();
+        int from = to;
+        for (int steps = 0; to < n; steps++) {
+            if (steps > n) {
+                return from;
+            }
+            Operation op = code.op(to);
+            if (op == Operation.NOP) {
+                to++;
+            } else if (op == Operation.BR) {
+                to = target(code, to);
+            } else {
+                break;
+            }
+        }
+        return to;
+    }
+}
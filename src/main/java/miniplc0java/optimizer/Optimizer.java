@@ -0,0 +1,34 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.program.Program;
+import miniplc0java.util.Trace;
+
+/**
+ * 按优化级别依次运行各个优化，级别 0 不做任何改动
+ */
+public class Optimizer {
+    private final int level;
+
+    public Optimizer(int level) {
+        this.level = level;
+    }
+
+    public void optimize(Program program) {
+        if (level >= 1) {
+            int jumps = new JumpOptimizer(program).run();
+            if (Trace.detail()) {
+                Trace.detail("jump optimizer removed " + jumps + " instructions");
+            }
+            int removed = new Peephole(program).run();
+            if (Trace.detail()) {
+                Trace.detail("peephole removed " + removed + " instructions");
+            }
+        }
+        if (level >= 2) {
+            int saved = new SlotAllocator(program).run();
+            if (Trace.detail()) {
+                Trace.detail("slot allocator saved " + saved + " local slots");
+            }
+        }
+    }
+}
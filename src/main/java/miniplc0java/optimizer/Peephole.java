@@ -0,0 +1,244 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Program;
+
+/**
+ * 窥孔优化，按模式改写每个函数的指令，改写之后重新计算跳转的偏移。
+ *
+ * 一段被改写的指令中，只有第一条允许是跳转的目标，跳到它的跳转改为跳到改写结果的开头；
+ * 中间有跳转目标的模式不改写。
+ */
+public class Peephole {
+    private final Program program;
+
+    // 当前函数的指令和跳转目标
+    private CodeBuffer code;
+    private boolean[] isTarget;
+
+    // 改写结果，以及每条旧指令对应的新下标
+    private CodeBuffer out;
+    private int[] map;
+    // 新指令是跳转时，跳转目标在旧指令中的下标
+    private int[] oldTarget;
+
+    public Peephole(Program program) {
+        this.program = program;
+    }
+
+    /**
+     * 优化所有函数
+     *
+     * @return 减少的指令数
+     */
+    public int run() {
+        int removed = 0;
+        for (Functiondef fun : program.functiondefList) {
+            int before = fun.code.size();
+            CodeBuffer code = fun.code;
+            // 一次改写可能让另一个模式出现，改到没有变化为止
+            while (true) {
+                CodeBuffer next = optimize(code);
+                if (next == null) {
+                    break;
+                }
+                code = next;
+            }
+            fun.code = code;
+            fun.bodySize = code.size();
+            removed += before - code.size();
+        }
+        return removed;
+    }
+
+    /**
+     * 改写一遍
+     *
+     * @return 改写后的指令，没有可以改写的地方时返回 null
+     */
+    CodeBuffer optimize(CodeBuffer code) {
+        int n = code.size();
+        this.code = code;
+        this.isTarget = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (isBranch(code.op(i))) {
+                isTarget[target(code, i)] = true;
+            }
+        }
+        this.out = new CodeBuffer(n);
+        this.map = new int[n + 1];
+        this.oldTarget = new int[n];
+
+        boolean changed = false;
+        int i = 0;
+        while (i < n) {
+            int next = rewrite(i);
+            if (next > i) {
+                changed = true;
+                i = next;
+            } else {
+                copy(i);
+                i++;
+            }
+        }
+        map[n] = out.size();
+        if (!changed) {
+            return null;
+        }
+
+        // 重新计算跳转的偏移
+        for (int j = 0; j < out.size(); j++) {
+            if (isBranch(out.op(j))) {
+                out.patch(j, map[oldTarget[j]] - j - 1);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 尝试从第 i 条指令开始改写
+     *
+     * @return 改写了的话返回模式之后的下一条指令的下标，否则返回 i
+     */
+    private int rewrite(int i) {
+        int n = code.size();
+        Operation op = code.op(i);
+
+        // br 0 什么也不做
+        if (op == Operation.BR && code.operand(i) == 0) {
+            return emit(i, i + 1);
+        }
+
+        if (op == Operation.NOT && i + 1 < n) {
+            Operation next = code.op(i + 1);
+            // not not 之后直接跳转时，两个 not 不影响跳转
+            if (next == Operation.NOT && i + 2 < n && isCondBranch(code.op(i + 2)) && noTargetIn(i + 1, i + 2)) {
+                return emit(i, i + 2);
+            }
+            // not + br.false 就是 br.true，反过来也一样
+            if (isCondBranch(next) && noTargetIn(i + 1, i + 1)) {
+                int end = emit(i, i + 2);
+                branch(next == Operation.BR_FALSE ? Operation.BR_TRUE : Operation.BR_FALSE, i + 1);
+                return end;
+            }
+        }
+
+        // 同一个位置连续加载两次，第二次换成 dup
+        if (isAddress(op) && i + 3 < n
+                && code.op(i + 1) == Operation.LOAD64
+                && code.op(i + 2) == op && code.operand(i + 2) == code.operand(i)
+                && code.op(i + 3) == Operation.LOAD64
+                && noTargetIn(i + 1, i + 3)) {
+            int end = emit(i, i + 4);
+            out.add(op, code.operand(i));
+            out.add(Operation.LOAD64);
+            out.add(Operation.DUP);
+            return end;
+        }
+
+        // push 0; x; sub.i 就是 x; neg.i。
+        // sub.f 不改：0.0 - 0.0 是 0.0，neg.f 0.0 是 -0.0，打印出来不一样
+        if (op == Operation.PUSH && code.operand(i) == 0) {
+            int sub = findMatchingSub(i);
+            if (sub > 0) {
+                emit(i, i + 1);
+                for (int j = i + 1; j < sub; j++) {
+                    copy(j);
+                }
+                map[sub] = out.size();
+                out.add(Operation.NEG_I);
+                return sub + 1;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * 模拟栈的深度，找到把第 i 条的 push 0 作为左操作数的 sub.i。
+     * 中间的指令只能用 push 0 之上的栈，不能有跳转和跳转目标
+     *
+     * @return sub 的下标，没有时返回 -1
+     */
+    private int findMatchingSub(int i) {
+        int depth = 1;
+        for (int j = i + 1; j < code.size(); j++) {
+            if (isTarget[j]) {
+                return -1;
+            }
+            Operation op = code.op(j);
+            if (op == Operation.SUB_I && depth == 2) {
+                return j;
+            }
+            int pops = pops(j);
+            if (pops < 0 || depth - pops < 1) {
+                return -1;
+            }
+            depth += pushes(j) - pops;
+        }
+        return -1;
+    }
+
+    private int pops(int j) {
+        return StackEffect.pops(program, code, j);
+    }
+
+    private int pushes(int j) {
+        return StackEffect.pushes(program, code, j);
+    }
+
+    /**
+     * 删掉 [from, to) 这些旧指令，它们都对应到改写结果的开头
+     *
+     * @return to
+     */
+    private int emit(int from, int to) {
+        for (int j = from; j < to; j++) {
+            map[j] = out.size();
+        }
+        return to;
+    }
+
+    private void copy(int i) {
+        map[i] = out.size();
+        if (isBranch(code.op(i))) {
+            branch(code.op(i), i);
+        } else {
+            out.add(code.op(i), code.operand(i));
+        }
+    }
+
+    /**
+     * 加入一条跳转，目标和第 i 条旧指令相同
+     */
+    private void branch(Operation op, int i) {
+        int j = out.add(op, 0);
+        oldTarget[j] = target(code, i);
+    }
+
+    private boolean noTargetIn(int from, int to) {
+        for (int j = from; j <= to; j++) {
+            if (isTarget[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int target(CodeBuffer code, int i) {
+        return i + 1 + (int) code.operand(i);
+    }
+
+    private static boolean isBranch(Operation op) {
+        return op == Operation.BR || isCondBranch(op);
+    }
+
+    private static boolean isCondBranch(Operation op) {
+        return op == Operation.BR_FALSE || op == Operation.BR_TRUE;
+    }
+
+    private static boolean isAddress(Operation op) {
+        return op == Operation.LOCA || op == Operation.ARGA || op == Operation.GLOBA;
+    }
+}
@@ -0,0 +1,241 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Program;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 按活跃区间重新分配局部变量的位置，活跃区间不重叠的变量共用一个位置。
+ *
+ * 局部变量只通过 loca 访问：loca 之后紧跟 load64 是读，loca 的地址被 store64 用掉是写。
+ * 其他用法、以及可能没有写就读的变量，不和任何变量共用位置
+ */
+public class SlotAllocator {
+    private final Program program;
+
+    public SlotAllocator(Program program) {
+        this.program = program;
+    }
+
+    /**
+     * 重新分配所有函数的局部变量
+     *
+     * @return 减少的位置数
+     */
+    public int run() {
+        int saved = 0;
+        for (Functiondef fun : program.functiondefList) {
+            int before = fun.localSize;
+            allocate(fun);
+            saved += before - fun.localSize;
+        }
+        return saved;
+    }
+
+    /**
+     * 函数开始时可能还没有写就被读的局部变量，以及不只用来读写的局部变量。
+     * 这些变量要和每次调用刚开始时一样是 0
+     */
+    public BitSet liveAtEntry(Functiondef fun) {
+        if (fun.localSize == 0 || fun.code.size() == 0) {
+            return new BitSet();
+        }
+        Liveness live = liveness(fun.code, fun.localSize);
+        if (live == null) {
+            BitSet all = new BitSet(fun.localSize);
+            all.set(0, fun.localSize);
+            return all;
+        }
+        BitSet entry = (BitSet) live.pinned.clone();
+        if (!live.blocks.isEmpty()) {
+            entry.or(live.liveIn[0]);
+        }
+        return entry;
+    }
+
+    void allocate(Functiondef fun) {
+        int slots = fun.localSize;
+        CodeBuffer code = fun.code;
+        int n = code.size();
+        if (slots <= 1 || n == 0) {
+            return;
+        }
+        Liveness liveness = liveness(code, slots);
+        if (liveness == null) {
+            return;
+        }
+        int[] useAt = liveness.useAt;
+        int[] defAt = liveness.defAt;
+        BitSet pinned = liveness.pinned;
+        List<ControlFlowGraph.BasicBlock> blocks = liveness.blocks;
+        BitSet[] liveIn = liveness.liveIn;
+
+        // 写一个变量时还活跃的其他变量和它冲突
+        boolean[][] conflict = new boolean[slots][slots];
+        for (ControlFlowGraph.BasicBlock block : blocks) {
+            BitSet live = liveOut(block, liveIn);
+            for (int j = block.end - 1; j >= block.start; j--) {
+                int def = defAt[j];
+                if (def >= 0) {
+                    for (int k = live.nextSetBit(0); k >= 0; k = live.nextSetBit(k + 1)) {
+                        conflict[def][k] = conflict[k][def] = true;
+                    }
+                    live.clear(def);
+                }
+                if (useAt[j] >= 0) {
+                    live.set(useAt[j]);
+                }
+            }
+        }
+        if (!blocks.isEmpty()) {
+            pinned.or(liveIn[0]);
+        }
+        for (int k = pinned.nextSetBit(0); k >= 0; k = pinned.nextSetBit(k + 1)) {
+            for (int other = 0; other < slots; other++) {
+                conflict[k][other] = conflict[other][k] = true;
+            }
+        }
+
+        // 按原来的顺序，每个变量用和它冲突的变量都没用的最小位置
+        int[] color = new int[slots];
+        int size = 0;
+        for (int k = 0; k < slots; k++) {
+            BitSet taken = new BitSet();
+            for (int other = 0; other < k; other++) {
+                if (conflict[k][other]) {
+                    taken.set(color[other]);
+                }
+            }
+            color[k] = taken.nextClearBit(0);
+            size = Math.max(size, color[k] + 1);
+        }
+        if (size >= slots) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (code.op(i) == Operation.LOCA) {
+                code.patch(i, color[(int) code.operand(i)]);
+            }
+        }
+        fun.localSize = size;
+    }
+
+    /**
+     * 每条指令读和写的局部变量、各个块入口处活跃的变量
+     *
+     * @return 有超出范围的 loca 时返回 null
+     */
+    private Liveness liveness(CodeBuffer code, int slots) {
+        int n = code.size();
+        // 每条指令读和写的位置，没有时为 -1
+        int[] useAt = new int[n];
+        int[] defAt = new int[n];
+        Arrays.fill(useAt, -1);
+        Arrays.fill(defAt, -1);
+        BitSet pinned = new BitSet(slots);
+        for (int i = 0; i < n; i++) {
+            if (code.op(i) != Operation.LOCA) {
+                continue;
+            }
+            int slot = (int) code.operand(i);
+            if (slot < 0 || slot >= slots) {
+                return null;
+            }
+            if (i + 1 < n && code.op(i + 1) == Operation.LOAD64) {
+                useAt[i] = slot;
+                continue;
+            }
+            int store = findStore(code, i);
+            if (store < 0) {
+                pinned.set(slot);
+            } else {
+                defAt[store] = slot;
+            }
+        }
+
+        // 各个块入口处活跃的变量，反复计算到不再变化
+        ControlFlowGraph cfg = new ControlFlowGraph(code);
+        List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+        BitSet[] liveIn = new BitSet[blocks.size()];
+        for (int b = 0; b < liveIn.length; b++) {
+            liveIn[b] = new BitSet(slots);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                BitSet live = liveOut(blocks.get(b), liveIn);
+                ControlFlowGraph.BasicBlock block = blocks.get(b);
+                for (int j = block.end - 1; j >= block.start; j--) {
+                    if (defAt[j] >= 0) {
+                        live.clear(defAt[j]);
+                    }
+                    if (useAt[j] >= 0) {
+                        live.set(useAt[j]);
+                    }
+                }
+                if (!live.equals(liveIn[b])) {
+                    liveIn[b] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        return new Liveness(useAt, defAt, pinned, blocks, liveIn);
+    }
+
+    private static final class Liveness {
+        // 每条指令读和写的位置，没有时为 -1
+        final int[] useAt;
+        final int[] defAt;
+        // 不和任何变量共用位置的变量
+        final BitSet pinned;
+        final List<ControlFlowGraph.BasicBlock> blocks;
+        final BitSet[] liveIn;
+
+        Liveness(int[] useAt, int[] defAt, BitSet pinned, List<ControlFlowGraph.BasicBlock> blocks, BitSet[] liveIn) {
+            this.useAt = useAt;
+            this.defAt = defAt;
+            this.pinned = pinned;
+            this.blocks = blocks;
+            this.liveIn = liveIn;
+        }
+    }
+
+    private static BitSet liveOut(ControlFlowGraph.BasicBlock block, BitSet[] liveIn) {
+        BitSet live = new BitSet();
+        for (ControlFlowGraph.BasicBlock succ : block.succs) {
+            live.or(liveIn[succ.id]);
+        }
+        return live;
+    }
+
+    /**
+     * 模拟栈的深度，找到用掉第 i 条 loca 的地址的 store64。
+     * 中间不能有跳转，地址之上的值也不能被取走
+     *
+     * @return store64 的下标，找不到时返回 -1
+     */
+    private int findStore(CodeBuffer code, int i) {
+        int depth = 1;
+        for (int j = i + 1; j < code.size(); j++) {
+            int pops = StackEffect.pops(program, code, j);
+            if (pops < 0) {
+                return -1;
+            }
+            if (code.op(j) == Operation.STORE64 && depth == 2) {
+                return j;
+            }
+            if (depth - pops < 1) {
+                return -1;
+            }
+            depth += StackEffect.pushes(program, code, j) - pops;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,71 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Program;
+
+/**
+ * 指令对操作数栈的影响，用来在一段没有跳转的指令里模拟栈的深度
+ */
+final class StackEffect {
+    private StackEffect() {
+    }
+
+    /**
+     * 第 j 条指令从栈上取走的值的个数，不确定时返回 -1
+     */
+    static int pops(Program program, CodeBuffer code, int j) {
+        Operation op = code.op(j);
+        switch (op) {
+            case NOP: case PUSH: case LOCA: case ARGA: case GLOBA: case STACK_ALLOC:
+            case SCAN_I: case SCAN_C: case SCAN_F: case PRINT_LN:
+                return 0;
+            case DUP: case POP: case LOAD8: case LOAD16: case LOAD32: case LOAD64:
+            case ALLOC: case FREE: case NOT: case NEG_I: case NEG_F: case ITOF: case FTOI:
+            case SET_LT: case SET_GT:
+            case PRINT_I: case PRINT_C: case PRINT_F: case PRINT_S:
+                return 1;
+            case STORE8: case STORE16: case STORE32: case STORE64:
+            case ADD_I: case SUB_I: case MUL_I: case DIV_I:
+            case ADD_F: case SUB_F: case MUL_F: case DIV_F: case DIV_U:
+            case SHL: case SHR: case AND: case OR: case XOR: case SHRL:
+            case CMP_I: case CMP_U: case CMP_F:
+                return 2;
+            case POPN:
+                return (int) code.operand(j);
+            case CALL: {
+                // 调用会写返回值的位置，它在参数下面
+                Functiondef fun = program.findById((int) code.operand(j));
+                return fun == null ? -1 : fun.params.size() + fun.returnSize;
+            }
+            default:
+                // 跳转、返回等
+                return -1;
+        }
+    }
+
+    /**
+     * 第 j 条指令放到栈上的值的个数
+     */
+    static int pushes(Program program, CodeBuffer code, int j) {
+        Operation op = code.op(j);
+        switch (op) {
+            case PUSH: case LOCA: case ARGA: case GLOBA:
+            case LOAD8: case LOAD16: case LOAD32: case LOAD64: case ALLOC:
+            case ADD_I: case SUB_I: case MUL_I: case DIV_I:
+            case ADD_F: case SUB_F: case MUL_F: case DIV_F: case DIV_U:
+            case SHL: case SHR: case AND: case OR: case XOR: case SHRL:
+            case CMP_I: case CMP_U: case CMP_F:
+            case NOT: case NEG_I: case NEG_F: case ITOF: case FTOI: case SET_LT: case SET_GT:
+            case SCAN_I: case SCAN_C: case SCAN_F:
+                return 1;
+            case DUP:
+                return 2;
+            case CALL:
+                return program.findById((int) code.operand(j)).returnSize;
+            default:
+                return 0;
+        }
+    }
+}
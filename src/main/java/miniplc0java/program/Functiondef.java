@@ -2,14 +2,15 @@ package miniplc0java.program;
 
 import miniplc0java.analyser.ExperType;
 import miniplc0java.analyser.SymbolEntry;
-import miniplc0java.instruction.Instruction;
-import miniplc0java.util.MyByte;
+import miniplc0java.instruction.CodeBuffer;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class Functiondef {
     public String name;
+    /** 函数名在 Interner 中的编号 */
+    public int identId;
     public int id;
     public int name_id;
     public List<SymbolEntry> params = new ArrayList<>();
@@ -18,7 +19,8 @@ public class Functiondef {
     public boolean canReturn;
     public int localSize;
     public int bodySize;
-    public ArrayList<Instruction> instructions = new ArrayList<>();
+    /** 函数体的指令 */
+    public CodeBuffer code = new CodeBuffer();
 
     @Override
     public String toString() {
@@ -29,22 +31,9 @@ public class Functiondef {
                 "\tlocalSize=" + localSize +
                 "\tbodySize=" + bodySize +
                 "\tid=" + id + "\n");
-        for (Instruction ins : instructions) {
-            res.append("\t\t").append(ins.toString());
+        for (int i = 0; i < code.size(); i++) {
+            res.append("\t\t").append(code.get(i).toString());
         }
         return res.toString();
     }
-
-    public byte[] toBytes(){
-        byte[] res = new byte[0];
-        res = MyByte.merge(res,name_id,4);
-        res = MyByte.merge(res,returnSize,4);
-        res = MyByte.merge(res,params.size(),4);
-        res = MyByte.merge(res,localSize,4);
-        res = MyByte.merge(res,bodySize,4);
-        for (Instruction ins : instructions) {
-            res = MyByte.merge(res,ins.toBytes());
-        }
-        return res;
-    }
 }
@@ -0,0 +1,148 @@
+package miniplc0java.program;
+
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * 把 Program 按 o0 格式一次写出，所有整数都是大端序。
+ * 不给 channel 时写进一个按需扩容的缓冲区，给了 channel 时缓冲区写满就刷到 channel 里
+ */
+public class O0Writer {
+    private static final byte[] MAGIC = new byte[]{0x72,0x30,0x3b,0x3e};
+    private static final int VERSION = 1;
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+
+    public O0Writer() {
+        this(null);
+    }
+
+    public O0Writer(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(channel == null ? 4096 : 1 << 16);
+    }
+
+    public void write(Program program) throws IOException {
+        ensure(MAGIC.length + 4);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+
+        putInt(program.globaldefList.size());
+        for (Globaldef globaldef : program.globaldefList) {
+            putByte(globaldef.isConst ? 1 : 0);
+            // 长度按字符数计，内容按默认编码，和原来的输出保持一致
+            putInt(globaldef.value.length());
+            putBytes(globaldef.value.getBytes());
+        }
+
+        putInt(program.functiondefList.size());
+        for (Functiondef fun : program.functiondefList) {
+            write(fun);
+        }
+        flush();
+    }
+
+    public void write(Functiondef fun) throws IOException {
+        ensure(20);
+        buffer.putInt(fun.name_id);
+        buffer.putInt(fun.returnSize);
+        buffer.putInt(fun.params.size());
+        buffer.putInt(fun.localSize);
+        buffer.putInt(fun.bodySize);
+        CodeBuffer code = fun.code;
+        for (int i = 0; i < code.size(); i++) {
+            Operation op = code.op(i);
+            ensure(9);
+            buffer.put(op.getOpcode());
+            switch (op.getParamSize()) {
+                case 8:
+                    buffer.putLong(code.operand(i));
+                    break;
+                case 4:
+                    buffer.putInt((int) code.operand(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 写到内存里时，返回已经写出的全部内容
+     */
+    public byte[] toByteArray() {
+        if (channel != null) {
+            throw new IllegalStateException("output has been written to a channel");
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * 把缓冲区里的内容刷到 channel，没有 channel 时什么也不做
+     */
+    public void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putByte(int x) throws IOException {
+        ensure(1);
+        buffer.put((byte) x);
+    }
+
+    private void putInt(int x) throws IOException {
+        ensure(4);
+        buffer.putInt(x);
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        int written = 0;
+        while (written < bytes.length) {
+            ensure(1);
+            int n = Math.min(buffer.remaining(), bytes.length - written);
+            buffer.put(bytes, written, n);
+            written += n;
+        }
+    }
+
+    // 保证缓冲区里至少还有 n 个字节的空间
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return;
+        }
+        if (channel != null) {
+            flush();
+            return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+    /**
+     * 写到内存里，不会抛出 IOException
+     */
+    static byte[] toBytes(Program program) {
+        O0Writer writer = new O0Writer();
+        try {
+            writer.write(program);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toByteArray();
+    }
+}
@@ -1,7 +1,5 @@
 package miniplc0java.program;
 
-import miniplc0java.instruction.Instruction;
-import miniplc0java.util.MyByte;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -13,21 +11,47 @@ public class Program {
     public List<Globaldef> globaldefList = new ArrayList<>();
     public List<Functiondef> functiondefList = new ArrayList<>();
 
+    // 按名字编号和函数编号索引的函数表，和 functiondefList 同步维护
+    private Functiondef[] byIdent = new Functiondef[64];
+    private Functiondef[] byId = new Functiondef[16];
+
     public void addFunc(Functiondef functiondef){
         functiondefList.add(functiondef);
+        index(functiondef);
+    }
+
+    /**
+     * _start 放在函数列表的最前面，编号为 0
+     */
+    public void addStartFunc(Functiondef functiondef){
+        functiondefList.add(0,functiondef);
+        index(functiondef);
+    }
+
+    private void index(Functiondef functiondef){
+        if(functiondef.identId >= byIdent.length){
+            byIdent = Arrays.copyOf(byIdent, Math.max(functiondef.identId + 1, byIdent.length * 2));
+        }
+        byIdent[functiondef.identId] = functiondef;
+        if(functiondef.id >= byId.length){
+            byId = Arrays.copyOf(byId, Math.max(functiondef.id + 1, byId.length * 2));
+        }
+        byId[functiondef.id] = functiondef;
     }
 
     public void addGlobal(Globaldef globaldef){
         globaldefList.add(globaldef);
     }
 
-    public Functiondef find(String name){
-        for(Functiondef functiondef:functiondefList){
-            if(functiondef.name.equals(name)){
-                return functiondef;
-            }
-        }
-        return null;
+    public Functiondef find(int identId){
+        return identId < byIdent.length ? byIdent[identId] : null;
+    }
+
+    /**
+     * 按函数编号查找，编号就是 call 指令的参数
+     */
+    public Functiondef findById(int id){
+        return id >= 0 && id < byId.length ? byId[id] : null;
     }
 
     @Override
@@ -37,20 +61,7 @@ public class Program {
     }
 
     public byte[] toBytes(){
-        byte[] bytes = new byte[0];
-        bytes = MyByte.merge(bytes,magic);
-        bytes = MyByte.merge(bytes,version);
-        bytes = MyByte.merge(bytes,globaldefList.size(),4);
-        for(Globaldef globaldef:globaldefList){
-            bytes = MyByte.merge(bytes,globaldef.isConst?1:0,1);
-            bytes = MyByte.merge(bytes,globaldef.value.length(),4);
-            bytes = MyByte.merge(bytes,globaldef.value);
-        }
-        bytes = MyByte.merge(bytes,functiondefList.size(),4);
-        for(Functiondef fun:functiondefList){
-            bytes = MyByte.merge(bytes,fun.toBytes());
-        }
-        return bytes;
+        return O0Writer.toBytes(this);
     }
 
     public String toByteString(){
@@ -65,8 +76,8 @@ public class Program {
         for(Functiondef fun:functiondefList){
             str += String.format("%s\n%08x\n%08x\n%08x\n%08x\n",
                     fun.name,fun.returnSize,fun.params.size(),fun.localSize,fun.bodySize);
-            for(Instruction ins : fun.instructions){
-                str += ins.toByteString() + "\n";
+            for(int i=0;i<fun.code.size();i++){
+                str += fun.code.get(i).toByteString() + "\n";
             }
         }
         str += "\nend";
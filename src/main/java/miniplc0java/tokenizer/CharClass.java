@@ -0,0 +1,33 @@
+package miniplc0java.tokenizer;
+
+/**
+ * ASCII 字符的分类表，按字节下标查询，用于按字节扫描的词法分析
+ */
+final class CharClass {
+    static final byte SPACE = 1;
+    static final byte DIGIT = 2;
+    static final byte IDENT_START = 4;
+    static final byte IDENT_PART = 8;
+
+    static final byte[] TABLE = new byte[256];
+
+    static {
+        // 和 Character.isWhitespace / isDigit / isAlphabetic 在 ASCII 范围内的结果保持一致
+        for (int ch = 0; ch < 128; ch++) {
+            byte cls = 0;
+            if (Character.isWhitespace(ch)) {
+                cls |= SPACE;
+            }
+            if (Character.isDigit(ch)) {
+                cls |= DIGIT | IDENT_PART;
+            }
+            if (Character.isAlphabetic(ch) || ch == '_') {
+                cls |= IDENT_START | IDENT_PART;
+            }
+            TABLE[ch] = cls;
+        }
+    }
+
+    private CharClass() {
+    }
+}
@@ -0,0 +1,155 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+import java.util.List;
+
+/**
+ * 增量的词法分析，给编辑器每次按键后重新编译用。
+ *
+ * 一组修改只影响新文本中的一段 [lo, hi)。从 lo 之前最后一个完整 token 的结尾开始重新分析，
+ * 一旦新 token 的起点在 hi 之后，并且恰好是某个旧 token 的起点平移之后的位置，
+ * 由于 token 之间的状态只有位置，之后的 token 一定和旧的一样，直接平移接上即可。
+ */
+public class IncrementalTokenizer {
+    private StringIter source;
+
+    // 最近一次的结果，上次分析出错时为 null，下次会整体重新分析
+    private TokenBuffer tokens;
+
+    private final Interner interner;
+
+    // 最近一次实际重新分析的 token 数
+    private int relexed = 0;
+
+    public IncrementalTokenizer(TokenBuffer tokens) {
+        this.source = tokens.getSource();
+        this.tokens = tokens;
+        this.interner = tokens.getInterner();
+    }
+
+    public StringIter getSource() {
+        return source;
+    }
+
+    public TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    public int getRelexed() {
+        return relexed;
+    }
+
+    /**
+     * 依次应用 edits，每个修改的偏移都相对于应用了前面的修改之后的文本
+     *
+     * @return 新文本的完整 token 流
+     * @throws TokenizeError 新文本中的第一个词法错误
+     */
+    public TokenBuffer apply(List<TextEdit> edits) throws TokenizeError {
+        source.readAll();
+        int oldLength = source.length();
+        StringBuilder text = new StringBuilder(source.slice(0, oldLength));
+
+        // 受影响的区间 [lo, hi)，按新文本计算；delta 是新旧长度之差
+        int lo = Integer.MAX_VALUE, hi = -1, delta = 0;
+        boolean normalized = true;
+        for (TextEdit edit : edits) {
+            int off = edit.offset, r = edit.removed, s = edit.inserted.length();
+            if (off < 0 || r < 0 || off + r > text.length()) {
+                throw new IllegalArgumentException("edit out of range: " + edit);
+            }
+            text.replace(off, off + r, edit.inserted);
+            lo = Math.min(lo, off);
+            hi = Math.max(hi, off + r) - r + s;
+            delta += s - r;
+            if (edit.inserted.indexOf('\r') >= 0) {
+                normalized = false;
+            }
+        }
+
+        StringIter next = new StringIter(text);
+        next.readAll();
+        if (edits.isEmpty()) {
+            lo = hi = next.length();
+        }
+        if (next.length() != oldLength + delta) {
+            // 补上了结尾的换行，把它也算作修改的一部分
+            hi = next.length();
+            delta = next.length() - oldLength;
+        }
+
+        TokenBuffer previous = tokens;
+        source = next;
+        tokens = null;
+        if (previous != null && normalized) {
+            try {
+                previous.lexAll();
+            } catch (TokenizeError e) {
+                previous = null;
+            }
+        } else {
+            previous = null;
+        }
+
+        TokenBuffer result = previous == null ? relexAll(next) : relex(previous, next, lo, hi, delta);
+        tokens = result;
+        return result;
+    }
+
+    private TokenBuffer relexAll(StringIter next) throws TokenizeError {
+        TokenBuffer result = new TokenBuffer(new Tokenizer(next, interner)).lexAll();
+        relexed = result.size();
+        return result;
+    }
+
+    private TokenBuffer relex(TokenBuffer previous, StringIter next, int lo, int hi, int delta) throws TokenizeError {
+        // 保留结尾在 lo 之前的 token，结尾正好是 lo 的 token 可能和插入的内容连在一起
+        int keep = firstEndingAtOrAfter(previous, lo);
+        int from = keep == 0 ? 0 : previous.endAt(keep - 1);
+
+        TokenBuffer result = new TokenBuffer(next, interner);
+        result.appendRange(previous, 0, keep, 0);
+
+        Tokenizer tokenizer = new Tokenizer(next.fork(from), interner);
+        int j = keep;
+        int count = 0;
+        while (true) {
+            TokenType type = tokenizer.lex();
+            int start = tokenizer.getTokenStart();
+            count++;
+            if (start >= hi) {
+                // 在旧 token 中找起点平移之后等于 start 的
+                while (j < previous.size() && previous.startAt(j) + delta < start) {
+                    j++;
+                }
+                if (j < previous.size() && previous.startAt(j) + delta == start) {
+                    result.appendRange(previous, j, previous.size(), delta);
+                    break;
+                }
+            }
+            result.append(type, start, tokenizer.getTokenEnd(), tokenizer.getTokenLiteral());
+            if (type == TokenType.EOF) {
+                break;
+            }
+        }
+        relexed = count;
+        return result;
+    }
+
+    /**
+     * 第一个结尾不小于 offset 的 token 的下标
+     */
+    private static int firstEndingAtOrAfter(TokenBuffer tokens, int offset) {
+        int l = 0, r = tokens.size();
+        while (l < r) {
+            int mid = (l + r) >>> 1;
+            if (tokens.endAt(mid) < offset) {
+                l = mid + 1;
+            } else {
+                r = mid;
+            }
+        }
+        return l;
+    }
+}
@@ -0,0 +1,131 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * 标识符表，给每个不同的名字分配一个从 0 开始的连续编号，
+ * 之后符号表、函数表都只用编号比较名字。
+ * 类型名和标准库函数名预先登记，编号是固定的。
+ */
+public class Interner {
+    public static final int INT = 0;
+    public static final int DOUBLE = 1;
+    public static final int VOID = 2;
+    public static final int GETINT = 3;
+    public static final int GETDOUBLE = 4;
+    public static final int GETCHAR = 5;
+    public static final int PUTINT = 6;
+    public static final int PUTDOUBLE = 7;
+    public static final int PUTCHAR = 8;
+    public static final int PUTSTR = 9;
+    public static final int PUTLN = 10;
+    public static final int START = 11;
+    public static final int MAIN = 12;
+
+    private static final String[] PREDEFINED = new String[]{
+            "int", "double", "void",
+            "getint", "getdouble", "getchar", "putint", "putdouble", "putchar", "putstr", "putln",
+            "_start", "main"
+    };
+
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int size = 0;
+
+    // 开放寻址的哈希表，存 id + 1，0 表示空位
+    private int[] table = new int[128];
+
+    public Interner() {
+        for (String name : PREDEFINED) {
+            intern(name);
+        }
+    }
+
+    /**
+     * @return 标准库函数的名字返回 true
+     */
+    public static boolean isStd(int id) {
+        return id >= GETINT && id <= PUTLN;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0) {
+                return add(name, hash, i);
+            }
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * 登记源码中 [start, end) 这一段名字，已经登记过时不会创建新的字符串
+     */
+    public int intern(StringIter it, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + it.charAt(i);
+        }
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0) {
+                return add(it.slice(start, end), hash, i);
+            }
+            if (hashes[id] == hash && matches(names[id], it, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean matches(String name, StringIter it, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (name.charAt(i - start) != it.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hashes[id] & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 把很大的输入按行切成若干段，在 ForkJoinPool 上并行做词法分析，再按顺序拼成一个 TokenBuffer。
+ *
+ * 切分点只取行首。注释一定在行尾结束，所以行首不会落在注释里，但字符串和字符字面量里可以有换行，
+ * 某一段的起点有可能落在字面量中间。因此每段都是"猜测"的：拼接时检查前面已经确认的 token
+ * 是否恰好在这一段的起点之前结束，并且下一个 token 从起点之后才开始，满足时这一段的结果和顺序分析完全一致；
+ * 否则丢掉这一段，从前一个 token 的结尾开始顺序重新分析这一段。
+ */
+public class ParallelTokenizer {
+    // 小于这个长度的输入直接顺序分析
+    static final int MIN_CHUNK = 1 << 18;
+
+    private final ForkJoinPool pool;
+    private final int minChunk;
+
+    public ParallelTokenizer(ForkJoinPool pool) {
+        this(pool, MIN_CHUNK);
+    }
+
+    public ParallelTokenizer(ForkJoinPool pool, int minChunk) {
+        this.pool = pool;
+        this.minChunk = Math.max(1, minChunk);
+    }
+
+    /**
+     * 分析全部输入，得到的 token 和 Tokenizer 顺序分析的结果相同
+     *
+     * @throws TokenizeError 输入中第一个词法错误
+     */
+    public TokenBuffer tokenize(StringIter source) throws TokenizeError {
+        return tokenize(source, new Interner());
+    }
+
+    public TokenBuffer tokenize(StringIter source, Interner interner) throws TokenizeError {
+        source.readAll();
+        int[] bounds = split(source);
+        int chunks = bounds.length - 1;
+        if (chunks == 1) {
+            return new TokenBuffer(new Tokenizer(source, interner)).lexAll();
+        }
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            int start = bounds[i];
+            int limit = i + 1 == chunks ? Integer.MAX_VALUE : bounds[i + 1];
+            tasks.add(pool.submit(() -> lexChunk(source, start, limit)));
+        }
+
+        TokenBuffer result = new TokenBuffer(source, interner);
+        // 已经确认的最后一个 token 的结尾
+        int lastEnd = 0;
+        for (int i = 0; i < chunks; i++) {
+            int start = bounds[i];
+            int limit = i + 1 == chunks ? Integer.MAX_VALUE : bounds[i + 1];
+            Chunk chunk = join(tasks.get(i));
+            if (lastEnd <= start) {
+                chunk.appendTo(result, interner);
+            } else {
+                // 上一个 token 跨过了这一段的起点，这一段猜错了
+                chunk = relex(source, interner, lastEnd, limit);
+                chunk.appendTo(result, null);
+            }
+            if (chunk.tokens.size() > 0) {
+                lastEnd = chunk.tokens.endAt(chunk.tokens.size() - 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 切分点：每段大约等长，起点都在行首。bounds[0] 为 0，最后一个元素是输入长度
+     */
+    int[] split(StringIter source) {
+        int length = source.length();
+        int parts = Math.max(1, Math.min(pool.getParallelism() * 4, length / minChunk));
+        int[] bounds = new int[parts + 1];
+        int count = 1;
+        for (int i = 1; i < parts; i++) {
+            int p = Math.max((int) ((long) length * i / parts), bounds[count - 1]);
+            while (p < length && source.charAt(p - 1) != '\n') {
+                p++;
+            }
+            if (p < length && p > bounds[count - 1]) {
+                bounds[count++] = p;
+            }
+        }
+        bounds[count++] = length;
+        return count == bounds.length ? bounds : Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * 一段的分析结果：起点在 [start, limit) 内的 token，以及分析时遇到的错误
+     */
+    private static class Chunk {
+        TokenBuffer tokens;
+        TokenizeError error;
+
+        void appendTo(TokenBuffer result, Interner interner) throws TokenizeError {
+            // 各段有自己的标识符表，编号要换成全局的
+            Interner local = tokens.getInterner();
+            int[] remap = null;
+            if (interner != null && local != interner) {
+                remap = new int[local.size()];
+                for (int id = 0; id < remap.length; id++) {
+                    remap[id] = interner.intern(local.name(id));
+                }
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                TokenType type = tokens.typeAt(i);
+                int literal = tokens.literalAt(i);
+                if (remap != null && type == TokenType.IDENT) {
+                    literal = remap[literal];
+                }
+                result.append(type, tokens.startAt(i), tokens.endAt(i), literal);
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private static Chunk lexChunk(StringIter source, int start, int limit) {
+        StringIter it = source.fork(start);
+        Interner interner = new Interner();
+        return lex(new Tokenizer(it, interner), new TokenBuffer(it, interner), limit);
+    }
+
+    private static Chunk relex(StringIter source, Interner interner, int start, int limit) {
+        StringIter it = source.fork(start);
+        return lex(new Tokenizer(it, interner), new TokenBuffer(it, interner), limit);
+    }
+
+    private static Chunk lex(Tokenizer tokenizer, TokenBuffer tokens, int limit) {
+        Chunk chunk = new Chunk();
+        chunk.tokens = tokens;
+        try {
+            while (true) {
+                TokenType type = tokenizer.lex();
+                if (tokenizer.getTokenStart() >= limit) {
+                    // 属于下一段
+                    break;
+                }
+                tokens.append(type, tokenizer.getTokenStart(), tokenizer.getTokenEnd(), tokenizer.getTokenLiteral());
+                if (type == TokenType.EOF) {
+                    break;
+                }
+            }
+        } catch (TokenizeError e) {
+            // 出错的 token 如果从下一段开始，就不算这一段的错误
+            if (tokenizer.getTokenStart() < limit) {
+                chunk.error = e;
+            }
+        }
+        return chunk;
+    }
+
+    private static Chunk join(ForkJoinTask<Chunk> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
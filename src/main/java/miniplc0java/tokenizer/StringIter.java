@@ -1,54 +1,277 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
-import java.util.Scanner;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个输入的平坦缓冲区，换行统一为 \n
+    // 输入全是 ASCII 时只用 bytes，否则只用 buffer
+    char[] buffer = new char[0];
+    byte[] bytes = null;
+    int length = 0;
 
-    Scanner scanner;
-    // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    // 行首偏移表，读入时建立
+    LineIndex lines = new LineIndex();
+
+    Path path;
+    InputStream input;
+    CharSequence source;
 
-    Pos ptr = new Pos(0, 0);
+    // 指向下一个要读取的字符
+    int ptr = 0;
 
     boolean initialized = false;
 
-    Optional<Character> peeked = Optional.empty();
+    /**
+     * 从文件读入，文件通过内存映射一次性读进来
+     */
+    public StringIter(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 从输入流读入，用于 `-` 代表的标准输入
+     */
+    public StringIter(InputStream input) {
+        this.input = input;
+    }
 
-    public StringIter(Scanner scanner) {
-        this.scanner = scanner;
+    public StringIter(CharSequence source) {
+        this.source = source;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    /**
+     * 在同一份已读入的缓冲区上新建一个从 offset 开始的指针，用于多个线程分段读取
+     */
+    StringIter fork(int offset) {
+        readAll();
+        StringIter copy = new StringIter((CharSequence) null);
+        copy.buffer = buffer;
+        copy.bytes = bytes;
+        copy.length = length;
+        copy.lines = lines;
+        copy.ptr = offset;
+        copy.initialized = true;
+        return copy;
+    }
+
+    // 从这里开始其实是一个基于偏移的缓冲区的实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
-    // 1.缓冲区包括 \n
+    // 1.缓冲区包括 \n，且最后一行一定以 \n 结尾
     // 2.指针始终指向下一个要读取的 char
-    // 3.行号和列号从 0 开始
+    // 3.行号和列号从 0 开始，只在需要的时候由偏移换算
 
     // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
     public void readAll() {
         if (initialized) {
             return;
         }
-        while (scanner.hasNext()) {
-            String str = scanner.nextLine();
-            System.out.println(str);
-            linesBuffer.add(str + '\n');
+        try {
+            if (path != null) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE - 1) {
+                        throw new IOException("input file too large: " + size + " bytes");
+                    }
+                    byte[] raw = new byte[(int) size];
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size).get(raw);
+                    load(raw);
+                }
+            } else if (input != null) {
+                load(new BufferedInputStream(input).readAllBytes());
+            } else {
+                load(source);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        // todo:check read \n?
         initialized = true;
     }
 
+    private void load(CharSequence source) {
+        int n = source.length();
+        byte[] raw = new byte[n];
+        for (int i = 0; i < n; i++) {
+            char ch = source.charAt(i);
+            if (ch >= 0x80) {
+                load(CharBuffer.wrap(source));
+                return;
+            }
+            raw[i] = (byte) ch;
+        }
+        load(raw);
+    }
+
+    private void load(byte[] raw) {
+        int n = raw.length;
+        for (int i = 0; i < n; i++) {
+            if (raw[i] < 0) {
+                // 有非 ASCII 字符，按 UTF-8 解码后走字符缓冲区
+                load(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(raw)));
+                return;
+            }
+        }
+        byte[] buf = new byte[n + 1];
+        int len = new LineCopy() {
+            @Override
+            int get(int i) {
+                return raw[i];
+            }
+
+            @Override
+            void put(int i, int ch) {
+                buf[i] = (byte) ch;
+            }
+        }.copy(n, lines);
+        this.bytes = buf;
+        this.buffer = null;
+        this.length = len;
+    }
+
+    private void load(CharBuffer chars) {
+        int n = chars.remaining();
+        char[] buf = new char[n + 1];
+        int len = new LineCopy() {
+            @Override
+            int get(int i) {
+                return chars.get(i);
+            }
+
+            @Override
+            void put(int i, int ch) {
+                buf[i] = (char) ch;
+            }
+        }.copy(n, lines);
+        this.buffer = buf;
+        this.bytes = null;
+        this.length = len;
+    }
+
+    /**
+     * 两种缓冲区共用的复制：换行统一成 \n，补上最后一行的 \n，边复制边记下行首偏移
+     */
+    private abstract static class LineCopy {
+        abstract int get(int i);
+
+        abstract void put(int i, int ch);
+
+        /**
+         * 复制 get 的前 n 个字符到 put，行首偏移放进 index
+         *
+         * @return 复制之后的长度，最多 n + 1
+         */
+        int copy(int n, LineIndex index) {
+            int[] starts = new int[16];
+            int lines = 1;
+            int len = 0;
+            int ch = 0;
+            for (int i = 0; i < n; i++) {
+                ch = get(i);
+                if (ch == '\r') {
+                    // \r\n 和单独的 \r 都当作 \n
+                    if (i + 1 < n && get(i + 1) == '\n') {
+                        i++;
+                    }
+                    ch = '\n';
+                }
+                put(len++, ch);
+                if (ch == '\n') {
+                    if (lines == starts.length) {
+                        starts = Arrays.copyOf(starts, lines * 2);
+                    }
+                    starts[lines++] = len;
+                }
+            }
+            // 补上最后一行的 \n
+            if (len > 0 && ch != '\n') {
+                put(len++, '\n');
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines + 1);
+                }
+                starts[lines++] = len;
+            }
+            index.set(starts, lines);
+            return len;
+        }
+    }
+
+    /**
+     * 输入的总长度（字符数）
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return 输入全是 ASCII 时返回 true，这时可以直接按字节扫描 getBytes()
+     */
+    public boolean isAscii() {
+        return bytes != null;
+    }
+
+    /**
+     * ASCII 输入的字节缓冲区，有效长度是 length()
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 按偏移获取字符，越界时返回 0
+     */
+    public char charAt(int offset) {
+        if (offset < 0 || offset >= length) {
+            return 0;
+        }
+        return bytes != null ? (char) bytes[offset] : buffer[offset];
+    }
+
+    /**
+     * 截取 [start, end) 之间的内容
+     */
+    public String slice(int start, int end) {
+        if (bytes != null) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        return new String(buffer, start, end - start);
+    }
+
+    /**
+     * 当前指针的偏移
+     */
+    public int offset() {
+        return ptr;
+    }
+
+    /**
+     * 行首偏移表，在 readAll() 之后才有内容
+     */
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * 把偏移换算成行列
+     */
+    public Pos posAt(int offset) {
+        return lines.posAt(offset);
+    }
+
     // 一个简单的总结
     // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
     // | = | = | = | = | = | = | = | = | = | = |
@@ -64,80 +287,59 @@ public class StringIter {
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (ptr >= length) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return posAt(ptr + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return posAt(ptr);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posAt(ptr - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
-        }
-    }
-
-    private char getNextChar() {
-        if (isEOF()) {
+        if (ptr >= length) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return bytes != null ? (char) bytes[ptr++] : buffer[ptr++];
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (ptr >= length) {
+            return 0;
         }
+        return bytes != null ? (char) bytes[ptr] : buffer[ptr];
     }
 
     public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+        return ptr >= length;
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        if (ptr == 0) {
+            throw new Error("previous position from beginning");
+        }
+        ptr--;
     }
 
 }
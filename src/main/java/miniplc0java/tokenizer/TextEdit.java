@@ -0,0 +1,22 @@
+package miniplc0java.tokenizer;
+
+/**
+ * 一次文本修改：把从 offset 开始的 removed 个字符替换成 inserted。
+ * offset 和 token 的偏移一样，按换行规范化之后的缓冲区计算
+ */
+public class TextEdit {
+    public final int offset;
+    public final int removed;
+    public final String inserted;
+
+    public TextEdit(int offset, int removed, String inserted) {
+        this.offset = offset;
+        this.removed = removed;
+        this.inserted = inserted;
+    }
+
+    @Override
+    public String toString() {
+        return "TextEdit{offset=" + offset + ", removed=" + removed + ", inserted='" + inserted + "'}";
+    }
+}
@@ -1,6 +1,5 @@
 package miniplc0java.tokenizer;
 
-import miniplc0java.error.TokenizeError;
 import miniplc0java.util.Pos;
 
 import java.util.Objects;
@@ -8,21 +7,43 @@ import java.util.Objects;
 public class Token {
     private TokenType tokenType;
     private Object value;
-    private Pos startPos;
-    private Pos endPos;
 
-    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+    // token 只记录它在源码缓冲区中的起止偏移，值和行列在用到时才计算
+    private StringIter source;
+    private int start;
+    private int end;
+    private int literal = -1;
+
+    public Token(TokenType tokenType, Object value, StringIter source, int start, int end) {
         this.tokenType = tokenType;
         this.value = value;
-        this.startPos = startPos;
-        this.endPos = endPos;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 值就是源码 [start, end) 这一段的 token
+     */
+    public Token(TokenType tokenType, StringIter source, int start, int end) {
+        this(tokenType, null, source, start, end);
+    }
+
+    /**
+     * @param literal 字符字面量的值或标识符的编号，没有时为 -1
+     */
+    public Token(TokenType tokenType, StringIter source, int start, int end, int literal) {
+        this(tokenType, null, source, start, end);
+        this.literal = literal;
     }
 
     public Token(Token token) {
         this.tokenType = token.tokenType;
         this.value = token.value;
-        this.startPos = token.startPos;
-        this.endPos = token.endPos;
+        this.source = token.source;
+        this.start = token.start;
+        this.end = token.end;
+        this.literal = token.literal;
     }
 
     @Override
@@ -32,16 +53,17 @@ public class Token {
         if (o == null || getClass() != o.getClass())
             return false;
         Token token = (Token) o;
-        return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+        return tokenType == token.tokenType && Objects.equals(getValue(), token.getValue())
+                && start == token.start && end == token.end;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tokenType, value, startPos, endPos);
+        return Objects.hash(tokenType, getValue(), start, end);
     }
 
     public String getValueString() {
+        Object value = getValue();
         if (value instanceof Integer || value instanceof String || value instanceof Character) {
             return value.toString();
         }
@@ -57,6 +79,15 @@ public class Token {
     }
 
     public Object getValue() {
+        if (value == null && source != null) {
+            if (tokenType == TokenType.STRING_LITERAL) {
+                value = Tokenizer.unescape(source, start, end);
+            } else if (tokenType == TokenType.UINT_LITERAL && literal >= 0) {
+                value = String.valueOf(literal);
+            } else {
+                value = source.slice(start, end);
+            }
+        }
         return value;
     }
 
@@ -64,34 +95,59 @@ public class Token {
         this.value = value;
     }
 
+    /**
+     * 起始位置的行列，每次调用都会重新换算，只应在报错和输出时使用
+     */
     public Pos getStartPos() {
-        return startPos;
+        return source.posAt(start);
+    }
+
+    public Pos getEndPos() {
+        return source.posAt(end);
     }
 
-    public void setStartPos(Pos startPos) {
-        this.startPos = startPos;
+    /**
+     * @return 字符字面量的值或标识符在 Interner 中的编号，没有时为 -1
+     */
+    public int getLiteral() {
+        return literal;
     }
 
-    public Pos getEndPos() {
-        return endPos;
+    /**
+     * @return token 在源码中的起始偏移
+     */
+    public int getStartOffset() {
+        return start;
+    }
+
+    /**
+     * @return token 在源码中的结束偏移（不包含）
+     */
+    public int getEndOffset() {
+        return end;
+    }
+
+    public void setStartOffset(int start) {
+        this.start = start;
     }
 
-    public void setEndPos(Pos endPos) {
-        this.endPos = endPos;
+    public void setEndOffset(int end) {
+        this.end = end;
     }
 
     @Override
     public String toString() {
         var sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        Pos startPos = getStartPos();
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
-        sb.append("Value: ").append(this.value);
+        sb.append("Value: ").append(getValue());
         return sb.toString();
     }
 
     public String toStringAlt() {
-        return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+        return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(getValue())
+                .append("at: ").append(getStartPos()).toString();
     }
 }
@@ -0,0 +1,176 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+import java.util.Arrays;
+
+/**
+ * 整个 token 流的紧凑存储，每个 token 只占用几个并列数组中的一格：
+ * 类型序号、起始偏移、结束偏移和附加值（字符字面量的值或标识符的编号，没有时为 -1）。
+ * 需要 Token 对象时再用 get(i) 现场生成。
+ */
+public class TokenBuffer {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final Tokenizer tokenizer;
+    private final StringIter source;
+    private final Interner interner;
+
+    private byte[] types = new byte[256];
+    private int[] starts = new int[256];
+    private int[] ends = new int[256];
+    private int[] literals = new int[256];
+    private int size = 0;
+
+    // 是否已经读到了 EOF，EOF 本身也存在缓冲区里
+    private boolean complete = false;
+
+    /**
+     * token 会在第一次被访问时才从 tokenizer 中读出来
+     */
+    public TokenBuffer(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+        this.source = tokenizer.getSource();
+        this.interner = tokenizer.getInterner();
+    }
+
+    /**
+     * 不带 tokenizer 的缓冲区，内容由 append 填入，用于分段并行的词法分析
+     */
+    TokenBuffer(StringIter source, Interner interner) {
+        this.tokenizer = null;
+        this.source = source;
+        this.interner = interner;
+    }
+
+    /**
+     * 一次读完全部 token
+     *
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public TokenBuffer lexAll() throws TokenizeError {
+        while (!complete) {
+            lexOne();
+        }
+        return this;
+    }
+
+    private void lexOne() throws TokenizeError {
+        TokenType type = tokenizer.lex();
+        append(type, tokenizer.getTokenStart(), tokenizer.getTokenEnd(), tokenizer.getTokenLiteral());
+    }
+
+    private void grow(int capacity) {
+        if (capacity > types.length) {
+            capacity = Math.max(capacity, types.length * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+        }
+    }
+
+    void append(TokenType type, int start, int end, int literal) {
+        grow(size + 1);
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        literals[size] = literal;
+        size++;
+        if (type == TokenType.EOF) {
+            complete = true;
+        }
+    }
+
+    /**
+     * 把 from 中已经读入的 [begin, end) 这些 token 接到后面，偏移整体加上 delta
+     */
+    void appendRange(TokenBuffer from, int begin, int end, int delta) {
+        int n = end - begin;
+        grow(size + n);
+        System.arraycopy(from.types, begin, types, size, n);
+        System.arraycopy(from.literals, begin, literals, size, n);
+        for (int i = 0; i < n; i++) {
+            starts[size + i] = from.starts[begin + i] + delta;
+            ends[size + i] = from.ends[begin + i] + delta;
+        }
+        size += n;
+        if (n > 0 && typeAt(size - 1) == TokenType.EOF) {
+            complete = true;
+        }
+    }
+
+    /**
+     * 已经读入的第 i 个 token 的类型，不会触发读取
+     */
+    TokenType typeAt(int i) {
+        return TOKEN_TYPES[types[i]];
+    }
+
+    int startAt(int i) {
+        return starts[i];
+    }
+
+    int endAt(int i) {
+        return ends[i];
+    }
+
+    int literalAt(int i) {
+        return literals[i];
+    }
+
+    /**
+     * 保证第 i 个 token 已经读入，并返回它实际所在的下标，EOF 之后的下标都指向 EOF
+     */
+    private int ensure(int i) throws TokenizeError {
+        while (i >= size && !complete) {
+            lexOne();
+        }
+        return i < size ? i : size - 1;
+    }
+
+    /**
+     * 已经读入的 token 数量（包括 EOF）
+     */
+    public int size() {
+        return size;
+    }
+
+    public StringIter getSource() {
+        return source;
+    }
+
+    public Interner getInterner() {
+        return interner;
+    }
+
+    // 注意先 ensure 再取数组，ensure 可能会让数组扩容
+
+    public TokenType type(int i) throws TokenizeError {
+        i = ensure(i);
+        return TOKEN_TYPES[types[i]];
+    }
+
+    public int start(int i) throws TokenizeError {
+        i = ensure(i);
+        return starts[i];
+    }
+
+    public int end(int i) throws TokenizeError {
+        i = ensure(i);
+        return ends[i];
+    }
+
+    public int literal(int i) throws TokenizeError {
+        i = ensure(i);
+        return literals[i];
+    }
+
+    /**
+     * 生成第 i 个 token 对应的 Token 对象
+     */
+    public Token get(int i) throws TokenizeError {
+        i = ensure(i);
+        return new Token(TOKEN_TYPES[types[i]], source, starts[i], ends[i], literals[i]);
+    }
+}
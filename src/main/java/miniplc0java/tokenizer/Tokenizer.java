@@ -2,14 +2,33 @@ package miniplc0java.tokenizer;
 
 import miniplc0java.error.TokenizeError;
 import miniplc0java.error.ErrorCode;
-import miniplc0java.util.Pos;
 
 public class Tokenizer {
 
     private StringIter it;
 
+    private Interner interner;
+
+    // 最近一次 lex() 得到的 token 的位置和附加值
+    private int tokenStart;
+    private int tokenEnd;
+    private int tokenLiteral;
+
     public Tokenizer(StringIter it) {
+        this(it, new Interner());
+    }
+
+    public Tokenizer(StringIter it, Interner interner) {
         this.it = it;
+        this.interner = interner;
+    }
+
+    public StringIter getSource() {
+        return it;
+    }
+
+    public Interner getInterner() {
+        return interner;
     }
 
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
@@ -20,17 +39,34 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        TokenType type = lex();
+        return new Token(type, it, tokenStart, tokenEnd, tokenLiteral);
+    }
+
+    /**
+     * 分析下一个 token，但只返回它的类型，位置和附加值通过 getTokenStart() 等获取，
+     * 这样 TokenBuffer 可以不为每个 token 创建对象
+     *
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    TokenType lex() throws TokenizeError {
         it.readAll();
+        if (it.isAscii()) {
+            return lexAscii();
+        }
 
-        // 跳过之前的所有空白字符
+        // 跳过之前的所有空白字符和注释
         skipSpaceCharacters();
 
+        tokenStart = it.offset();
+        tokenLiteral = -1;
         if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            tokenEnd = tokenStart;
+            return TokenType.EOF;
         }
 
         char peek = it.peekChar();
-        Token res = null;
+        TokenType res;
         if (Character.isDigit(peek)) {
             res = lexNum();
         } else if (Character.isAlphabetic(peek) || peek == '_') {
@@ -38,244 +74,368 @@ public class Tokenizer {
         } else {
             res = lexOperatorOrUnknown();
         }
+        tokenEnd = it.offset();
         return res;
     }
 
-    private Token lexNum() throws TokenizeError{
-        String value = "";
-        Pos startPos = it.currentPos();
-        char peek = it.peekChar();
-        while(Character.isDigit(peek)){
-            value += it.nextChar();
-            peek = it.peekChar();
+    /**
+     * 输入全是 ASCII 时的快速路径：空白、注释、整数和标识符直接在字节数组上扫描，
+     * 其余情况把指针交回 StringIter 走普通的路径
+     */
+    private TokenType lexAscii() throws TokenizeError {
+        byte[] src = it.getBytes();
+        byte[] table = CharClass.TABLE;
+        int len = it.length();
+        int p = it.ptr;
+        while (true) {
+            while (p < len && (table[src[p] & 0xff] & CharClass.SPACE) != 0) {
+                p++;
+            }
+            if (p + 1 < len && src[p] == '/' && src[p + 1] == '/') {
+                p += 2;
+                while (p < len && src[p] != '\n') {
+                    p++;
+                }
+                continue;
+            }
+            break;
         }
-        if(peek == '.'){
-            value += it.nextChar();
-            peek = it.peekChar();
-            if(!Character.isDigit(peek)){
-                throw new TokenizeError(ErrorCode.ExpectedToken,it.currentPos());
+
+        tokenStart = p;
+        tokenLiteral = -1;
+        if (p >= len) {
+            it.ptr = p;
+            tokenEnd = p;
+            return TokenType.EOF;
+        }
+
+        int cls = table[src[p] & 0xff];
+        TokenType res;
+        if ((cls & CharClass.DIGIT) != 0) {
+            p++;
+            while (p < len && (table[src[p] & 0xff] & CharClass.DIGIT) != 0) {
+                p++;
             }
-            while(Character.isDigit(peek)){
-                value += it.nextChar();
-                peek = it.peekChar();
+            it.ptr = p;
+            if (p < len && src[p] == '.') {
+                // 浮点数比较少见，交给普通路径
+                it.ptr = tokenStart;
+                res = lexNum();
+            } else {
+                res = TokenType.UINT_LITERAL;
+            }
+        } else if ((cls & CharClass.IDENT_START) != 0) {
+            p++;
+            while (p < len && (table[src[p] & 0xff] & CharClass.IDENT_PART) != 0) {
+                p++;
             }
+            it.ptr = p;
+            res = lexIdentOrKeyword(tokenStart, p);
+        } else {
+            it.ptr = p;
+            res = lexOperatorOrUnknown();
+        }
+        tokenEnd = it.offset();
+        return res;
+    }
+
+    int getTokenStart() {
+        return tokenStart;
+    }
+
+    int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    /**
+     * 字符字面量的值或标识符的编号，其他 token 为 -1
+     */
+    int getTokenLiteral() {
+        return tokenLiteral;
+    }
+
+    // 数字、标识符和字符串都只记录在缓冲区中的起止偏移，值在真正用到时才生成
+    private TokenType lexNum() throws TokenizeError{
+        skipDigits();
+        char peek = it.peekChar();
+        if(peek == '.'){
+            it.nextChar();
+            if(!Character.isDigit(it.peekChar())){
+                throw error(ErrorCode.ExpectedToken,it.offset());
+            }
+            skipDigits();
+            peek = it.peekChar();
             if(peek == 'e' || peek == 'E'){
-                value += it.nextChar();
+                it.nextChar();
                 peek = it.peekChar();
                 if(peek == '+' || peek == '-'){
-                    value += it.nextChar();
+                    it.nextChar();
                     peek = it.peekChar();
                 }
                 if(!Character.isDigit(peek)){
-                    throw new TokenizeError(ErrorCode.ExpectedToken,it.currentPos());
-                }
-                while(Character.isDigit(peek)){
-                    value += it.nextChar();
-                    peek = it.peekChar();
+                    throw error(ErrorCode.ExpectedToken,it.offset());
                 }
+                skipDigits();
             }
-            return new Token(TokenType.DOUBLE_LITERAL,value,startPos,it.currentPos());
+            return TokenType.DOUBLE_LITERAL;
         }else{
-            return new Token(TokenType.UINT_LITERAL,value,startPos,it.currentPos());
+            return TokenType.UINT_LITERAL;
         }
     }
 
-    private Token lexIdentOrKeyword() throws TokenizeError {
-        String value = "";
-        Pos startPos = it.currentPos();
+    private void skipDigits(){
+        while(Character.isDigit(it.peekChar())){
+            it.nextChar();
+        }
+    }
+
+    private TokenType lexIdentOrKeyword() throws TokenizeError {
+        int start = it.offset();
         char peek = it.peekChar();
         while (Character.isDigit(peek) || Character.isAlphabetic(peek) || peek == '_'){
-            value += it.nextChar();
+            it.nextChar();
             peek = it.peekChar();
         }
-        return new Token(lexIdentOrKeyword(value),value,startPos,it.currentPos());
+        return lexIdentOrKeyword(start, it.offset());
     }
 
-    private TokenType lexIdentOrKeyword(String value){
-        switch (value){
-            case "fn":return TokenType.FN_KW;
-            case "let":return TokenType.LET_KW;
-            case "const":return TokenType.CONST_KW;
-            case "as":return TokenType.AS_KW;
-            case "while":return TokenType.WHILE_KW;
-            case "if":return TokenType.IF_KW;
-            case "else":return TokenType.ELSE_KW;
-            case "return":return TokenType.RETURN_KW;
-            case "break":return TokenType.BREAK_KW;
-            case "continue":return TokenType.CONTINUE_KW;
-            default:return TokenType.IDENT;
+    private static final String[] KEYWORDS = new String[]{
+            "fn","let","const","as","while","if","else","return","break","continue"
+    };
+
+    // 关键字的完美哈希：(首字母 + 2 * 尾字母) & 15 对这十个关键字互不冲突
+    private static final String[] KEYWORD_TABLE = new String[16];
+    private static final TokenType[] KEYWORD_TYPES = new TokenType[16];
+
+    static {
+        TokenType[] types = TokenType.values();
+        for(int i=0;i<KEYWORDS.length;i++){
+            String keyword = KEYWORDS[i];
+            int h = keywordHash(keyword.charAt(0), keyword.charAt(keyword.length()-1));
+            if(KEYWORD_TABLE[h] != null){
+                throw new Error("keyword hash collision: " + keyword);
+            }
+            KEYWORD_TABLE[h] = keyword;
+            KEYWORD_TYPES[h] = types[i];
         }
     }
 
-    private Token lexOperatorOrUnknown() throws TokenizeError {
+    private static int keywordHash(char first, char last){
+        return (first + 2 * last) & 15;
+    }
+
+    private TokenType lexIdentOrKeyword(int start, int end){
+        int len = end - start;
+        int h = keywordHash(it.charAt(start), it.charAt(end-1));
+        String keyword = KEYWORD_TABLE[h];
+        if(keyword != null && keyword.length() == len){
+            int j = 0;
+            while(j < len && keyword.charAt(j) == it.charAt(start + j)){
+                j++;
+            }
+            if(j == len){
+                return KEYWORD_TYPES[h];
+            }
+        }
+        tokenLiteral = interner.intern(it, start, end);
+        return TokenType.IDENT;
+    }
+
+    private TokenType lexOperatorOrUnknown() throws TokenizeError {
         switch (it.peekChar()) {
             case '+':
                 it.nextChar();
-                return new Token(TokenType.PLUS, "+", it.previousPos(), it.currentPos());
+                return TokenType.PLUS;
 
             case '-':
                 it.nextChar();
                 if(it.peekChar() == '>'){
                     it.nextChar();
-                    return new Token(TokenType.ARROW, "->", it.previousPos(), it.currentPos());
+                    return TokenType.ARROW;
                 }
-                return new Token(TokenType.MINUS, "-", it.previousPos(), it.currentPos());
+                return TokenType.MINUS;
 
             case '*':
                 it.nextChar();
-                return new Token(TokenType.MUL, "*", it.previousPos(), it.currentPos());
+                return TokenType.MUL;
 
             case '/':
+                // 注释已经在 skipSpaceCharacters 里跳过了
                 it.nextChar();
-                if(it.peekChar() == '/'){
-                    it.nextChar();
-                    while(it.peekChar() != '\n'){
-                        it.nextChar();
-                    }
-                    return nextToken();
-                }
-                return new Token(TokenType.DIV, "/", it.previousPos(), it.currentPos());
+                return TokenType.DIV;
 
             case '=':
                 it.nextChar();
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.EQ, "==", it.previousPos(), it.currentPos());
+                    return TokenType.EQ;
                 }else{
-                    return new Token(TokenType.ASSIGN, "=", it.previousPos(), it.currentPos());
+                    return TokenType.ASSIGN;
                 }
             case '!':
                 it.nextChar();
                 if(it.peekChar() == '=') {
                     it.nextChar();
-                    return new Token(TokenType.NEQ, "!=", it.previousPos(), it.currentPos());
+                    return TokenType.NEQ;
                 }else{
-                    throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+                    throw error(ErrorCode.InvalidInput, it.offset() - 1);
                 }
             case '<':
                 it.nextChar();
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.LE, "<=", it.previousPos(), it.currentPos());
+                    return TokenType.LE;
                 }else{
-                    return new Token(TokenType.LT, "<", it.previousPos(), it.currentPos());
+                    return TokenType.LT;
                 }
             case '>':
                 it.nextChar();
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.GE, ">=", it.previousPos(), it.currentPos());
+                    return TokenType.GE;
                 }else{
-                    return new Token(TokenType.GT, ">", it.previousPos(), it.currentPos());
+                    return TokenType.GT;
                 }
             case '(':
                 it.nextChar();
-                return new Token(TokenType.L_PAREN, "(", it.previousPos(), it.currentPos());
+                return TokenType.L_PAREN;
             case ')':
                 it.nextChar();
-                return new Token(TokenType.R_PAREN, ")", it.previousPos(), it.currentPos());
+                return TokenType.R_PAREN;
             case '{':
                 it.nextChar();
-                return new Token(TokenType.L_BRACE, "{", it.previousPos(), it.currentPos());
+                return TokenType.L_BRACE;
             case '}':
                 it.nextChar();
-                return new Token(TokenType.R_BRACE, "}", it.previousPos(), it.currentPos());
+                return TokenType.R_BRACE;
             case ',':
                 it.nextChar();
-                return new Token(TokenType.COMMA, ",", it.previousPos(), it.currentPos());
+                return TokenType.COMMA;
             case ':':
                 it.nextChar();
-                return new Token(TokenType.COLON, ":", it.previousPos(), it.currentPos());
+                return TokenType.COLON;
             case ';':
                 it.nextChar();
-                return new Token(TokenType.SEMICOLON, ";", it.previousPos(), it.currentPos());
+                return TokenType.SEMICOLON;
             case '\'':
                 return lexChar();
             case '"':
                 return lexString();
             default:
-                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+                throw error(ErrorCode.InvalidInput, it.offset());
         }
     }
 
-    private Token lexChar() throws TokenizeError{
+    private TokenType lexChar() throws TokenizeError{
         if(it.peekChar() == '\''){
-            Pos startPos = it.currentPos();
             it.nextChar();
             if(it.peekChar() == '\''){ // 连续两个 ‘
-                throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+                throw error(ErrorCode.InvalidInput,it.offset());
             }else if(it.peekChar() == '\\'){ // 遇到转义符
                 it.nextChar(); // 先读取 \
-                String value = "\\";
                 char ch = it.nextChar(); // 读取 \后面的字符
-                value += ch;
                 it.nextChar();
                 if(ch == '\\'){
-                    return new Token(TokenType.UINT_LITERAL,""+(int)'\\',startPos,it.currentPos());
+                    tokenLiteral = '\\';
+                    return TokenType.UINT_LITERAL;
                 }else if(ch == '"'){
-                    return new Token(TokenType.UINT_LITERAL,""+(int)'"',startPos,it.currentPos());
+                    tokenLiteral = '"';
+                    return TokenType.UINT_LITERAL;
                 }else if(ch == '\''){
-                    return new Token(TokenType.UINT_LITERAL,""+(int)'\'',startPos,it.currentPos());
+                    tokenLiteral = '\'';
+                    return TokenType.UINT_LITERAL;
                 }else if(ch == 'n'){
-                    return new Token(TokenType.UINT_LITERAL,""+(int)'\n',startPos,it.currentPos());
+                    tokenLiteral = '\n';
+                    return TokenType.UINT_LITERAL;
                 }else if(ch == 'r'){
-                    return new Token(TokenType.UINT_LITERAL,""+(int)'\r',startPos,it.currentPos());
+                    tokenLiteral = '\r';
+                    return TokenType.UINT_LITERAL;
                 }else if(ch == 't'){
-                    return new Token(TokenType.UINT_LITERAL,""+(int)'\t',startPos,it.currentPos());
+                    tokenLiteral = '\t';
+                    return TokenType.UINT_LITERAL;
                 }else{
-                    throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+                    throw error(ErrorCode.InvalidInput,it.offset());
                 }
             }else{ // 其他正常字符
-                String value = ""+ (int) it.nextChar();
+                tokenLiteral = it.nextChar();
                 if(it.nextChar() != '\''){ // 不是 ' 结尾
-                    throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+                    throw error(ErrorCode.InvalidInput,it.offset());
                 }
-                return new Token(TokenType.UINT_LITERAL,value,startPos,it.currentPos());
+                return TokenType.UINT_LITERAL;
             }
         }else{
-            throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+            throw error(ErrorCode.InvalidInput,it.offset());
         }
     }
 
-    private Token lexString() throws TokenizeError{
-        Pos startPos = it.currentPos();
+    // 这里只检查转义是否合法，真正的字符串值由 unescape 在需要时生成
+    private TokenType lexString() throws TokenizeError{
         if(it.nextChar() != '"'){
-            throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+            throw error(ErrorCode.InvalidInput,it.offset());
         }
         char peek = it.nextChar();
-        String value = "";
         while (peek != '"'){
             if(peek == '\\'){
                 peek = it.nextChar();
-                if(peek == 'n'){
-                    value += '\n';
-                }else if(peek == 'r'){
-                    value += '\r';
-                }else if(peek == 't'){
-                    value += '\t';
-                }else if(peek == '\\'){
-                    value += '\\';
-                }else if(peek == '\"'){
-                    value += '"';
-                }else if(peek == '\''){
-                    value += '\'';
-                }else{
-                    throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+                if(unescape(peek) == 0){
+                    throw error(ErrorCode.InvalidInput,it.offset());
                 }
-            }else {
-                value += peek;
             }
             peek = it.nextChar();
             if(peek == 0){
-                throw new TokenizeError(ErrorCode.InvalidInput,it.currentPos());
+                throw error(ErrorCode.InvalidInput,it.offset());
+            }
+        }
+
+        return TokenType.STRING_LITERAL;
+    }
+
+    /**
+     * 转义符 \ 后面的字符对应的真实字符，不合法时返回 0
+     */
+    private static char unescape(char ch){
+        switch (ch){
+            case 'n':return '\n';
+            case 'r':return '\r';
+            case 't':return '\t';
+            case '\\':return '\\';
+            case '"':return '"';
+            case '\'':return '\'';
+            default:return 0;
+        }
+    }
+
+    /**
+     * 生成 [start, end) 之间字符串字面量（包括两边的引号）的值
+     */
+    static String unescape(StringIter it, int start, int end){
+        StringBuilder sb = new StringBuilder(end - start - 2);
+        for(int i=start+1;i<end-1;i++){
+            char ch = it.charAt(i);
+            if(ch == '\\'){
+                ch = unescape(it.charAt(++i));
             }
+            sb.append(ch);
         }
+        return sb.toString();
+    }
 
-        return new Token(TokenType.STRING_LITERAL,value,startPos,it.currentPos());
+    private TokenizeError error(ErrorCode code, int offset) {
+        return new TokenizeError(code, offset, it.getLineIndex());
     }
+
     private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
+        while (true) {
+            while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
+                it.nextChar();
+            }
+            if (it.peekChar() == '/' && it.charAt(it.offset() + 1) == '/') {
+                while (!it.isEOF() && it.peekChar() != '\n') {
+                    it.nextChar();
+                }
+                continue;
+            }
+            break;
         }
     }
 }
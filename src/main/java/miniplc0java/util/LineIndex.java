@@ -0,0 +1,42 @@
+package miniplc0java.util;
+
+/**
+ * 行首偏移表，在读入源码时建立一次，之后只在需要报告位置时把偏移换算成行列
+ */
+public class LineIndex {
+    // lineStarts[i] 是第 i 行第一个字符的偏移
+    private int[] lineStarts = new int[]{0};
+    private int lineCount = 1;
+
+    public void set(int[] lineStarts, int lineCount) {
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+    }
+
+    public int lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * 第 row 行第一个字符的偏移
+     */
+    public int lineStart(int row) {
+        return lineStarts[row];
+    }
+
+    /**
+     * 二分查找偏移所在的行，换算成行列
+     */
+    public Pos posAt(int offset) {
+        int lo = 0, hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return new Pos(lo, offset - lineStarts[lo]);
+    }
+}
@@ -0,0 +1,125 @@
+package miniplc0java.util;
+
+import java.io.PrintStream;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * 调试输出，全部写到标准错误。
+ * 默认级别是 OFF，调用处先用 phase() / detail() / dumps() 判断，关闭时不会拼接任何字符串
+ */
+public final class Trace {
+    public enum Level {
+        /** 不输出 */
+        OFF,
+        /** 每个阶段的耗时 */
+        PHASE,
+        /** 分析过程中的细节 */
+        DETAIL,
+    }
+
+    /** 可以单独打开的输出内容，和级别无关 */
+    public enum Dump {
+        /** 分析结束时的符号表 */
+        SYMBOLS,
+        /** 优化之后全局变量和各函数的指令 */
+        IR,
+        /** 生成的 o0 文件内容 */
+        BYTES,
+    }
+
+    private static Level level = Level.OFF;
+    private static final EnumSet<Dump> dumps = EnumSet.noneOf(Dump.class);
+    private static PrintStream out = System.err;
+
+    private Trace() {
+    }
+
+    public static void setLevel(Level level) {
+        Trace.level = level;
+    }
+
+    /**
+     * 按名字设置级别，比如 "phase"
+     */
+    public static void setLevel(String name) {
+        setLevel(Level.valueOf(name.toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * 打开逗号分隔的若干输出，比如 "symbols,ir"
+     */
+    public static void enableDumps(String names) {
+        for (String name : names.split(",")) {
+            if (!name.isBlank()) {
+                dumps.add(Dump.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+    }
+
+    public static void setOutput(PrintStream out) {
+        Trace.out = out;
+    }
+
+    public static boolean phase() {
+        return level != Level.OFF;
+    }
+
+    public static boolean detail() {
+        return level == Level.DETAIL;
+    }
+
+    public static boolean dumps(Dump dump) {
+        return dumps.contains(dump);
+    }
+
+    /**
+     * 阶段开始，返回开始时间；没有打开时返回 0
+     */
+    public static long begin() {
+        return phase() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 阶段结束，输出从 begin 开始的耗时
+     */
+    public static void end(String phase, long begin) {
+        if (phase()) {
+            out.printf("[trace] %-10s %8.3f ms%n", phase, (System.nanoTime() - begin) / 1e6);
+        }
+    }
+
+    /**
+     * 输出一条细节，调用前应该先判断 detail()
+     */
+    public static void detail(String message) {
+        if (detail()) {
+            out.println("[trace] " + message);
+        }
+    }
+
+    /**
+     * 输出一项 dump，调用前应该先判断 dumps(dump)
+     */
+    public static void dump(Dump dump, String content) {
+        out.println("[" + dump.name().toLowerCase(Locale.ROOT) + "]");
+        out.println(content);
+    }
+
+    /**
+     * 每行 16 个字节的十六进制
+     */
+    public static void dump(Dump dump, byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 3 + bytes.length / 16 * 10);
+        for (int i = 0; i < bytes.length; i++) {
+            if (i % 16 == 0) {
+                if (i > 0) {
+                    sb.append('\n');
+                }
+                sb.append(String.format("%08x ", i));
+            }
+            sb.append(String.format(" %02x", bytes[i]));
+        }
+        dump(dump, sb.toString());
+    }
+}
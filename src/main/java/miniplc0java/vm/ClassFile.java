@@ -0,0 +1,254 @@
+package miniplc0java.vm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * 拼 class 文件的最小工具，只有 Jit 用到的部分：常量池、静态字段、静态方法、invokedynamic。
+ *
+ * 方法里所有跳转目标的局部变量类型都一样，所以 StackMapTable 在每个目标写同一个 full_frame
+ */
+final class ClassFile {
+    private static final int VERSION = 52;
+
+    private final Bytes pool = new Bytes();
+    private int poolCount = 1;
+    private final Map<String, Integer> constants = new HashMap<>();
+    private final int thisClass;
+    private final Bytes fields = new Bytes();
+    private int fieldCount;
+    private final Bytes methods = new Bytes();
+    private int methodCount;
+    private final Bytes bootstraps = new Bytes();
+    private int bootstrapCount;
+    private final Map<String, Integer> bootstrapIndex = new HashMap<>();
+
+    /**
+     * @param name 内部形式的类名，比如 miniplc0java/vm/Jit$1
+     */
+    ClassFile(String name) {
+        thisClass = classRef(name);
+    }
+
+    // ---- 常量池 ----
+
+    private int constant(String key, int slots, Bytes entry) {
+        Integer index = constants.get(key);
+        if (index == null) {
+            index = poolCount;
+            pool.bytes(entry);
+            poolCount += slots;
+            constants.put(key, index);
+        }
+        return index;
+    }
+
+    int utf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return constant("U" + s, 1, new Bytes().u1(1).u2(bytes.length).bytes(bytes, bytes.length));
+    }
+
+    int classRef(String name) {
+        return constant("C" + name, 1, new Bytes().u1(7).u2(utf8(name)));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, 1, new Bytes().u1(3).u4(value));
+    }
+
+    int longConst(long value) {
+        return constant("J" + value, 2, new Bytes().u1(5).u4((int) (value >>> 32)).u4((int) value));
+    }
+
+    private int nameAndType(String name, String desc) {
+        return constant("N" + name + ' ' + desc, 1, new Bytes().u1(12).u2(utf8(name)).u2(utf8(desc)));
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return constant("M" + owner + '.' + name + ' ' + desc, 1,
+                new Bytes().u1(10).u2(classRef(owner)).u2(nameAndType(name, desc)));
+    }
+
+    /**
+     * invokedynamic 的常量，引导方法是 owner.name，静态参数是一个 int
+     */
+    int invokeDynamic(String owner, String name, String bootstrapDesc, int arg, String callName, String callDesc) {
+        String key = owner + '.' + name + ' ' + arg;
+        Integer bsm = bootstrapIndex.get(key);
+        if (bsm == null) {
+            int handle = constant("H" + owner + '.' + name + ' ' + bootstrapDesc, 1,
+                    new Bytes().u1(15).u1(6).u2(methodRef(owner, name, bootstrapDesc)));
+            bootstraps.u2(handle).u2(1).u2(integer(arg));
+            bsm = bootstrapCount++;
+            bootstrapIndex.put(key, bsm);
+        }
+        return constant("D" + bsm + ' ' + callName + ' ' + callDesc, 1,
+                new Bytes().u1(18).u2(bsm).u2(nameAndType(callName, callDesc)));
+    }
+
+    // ---- 字段和方法 ----
+
+    void addStaticField(String name, String desc) {
+        fields.u2(0x0008).u2(utf8(name)).u2(utf8(desc)).u2(0);
+        fieldCount++;
+    }
+
+    /**
+     * 加一个包内可见的静态方法
+     *
+     * @param frameLocals 跳转目标处的局部变量类型，已经编码好
+     */
+    void addStaticMethod(String name, String desc, Code code, int maxStack, int maxLocals, Bytes frameLocals, int frameLocalCount) {
+        int[] targets = code.frameOffsets();
+        Bytes attr = new Bytes().u2(maxStack).u2(maxLocals).u4(code.size()).bytes(code).u2(0);
+        if (targets.length == 0) {
+            attr.u2(0);
+        } else {
+            Bytes frames = new Bytes().u2(targets.length);
+            int previous = -1;
+            for (int offset : targets) {
+                frames.u1(255).u2(offset - previous - 1).u2(frameLocalCount).bytes(frameLocals).u2(0);
+                previous = offset;
+            }
+            attr.u2(1).u2(utf8("StackMapTable")).u4(frames.size()).bytes(frames);
+        }
+        methods.u2(0x0008).u2(utf8(name)).u2(utf8(desc)).u2(1).u2(utf8("Code")).u4(attr.size()).bytes(attr);
+        methodCount++;
+    }
+
+    byte[] toBytes() {
+        int bootstrapAttr = bootstrapCount > 0 ? utf8("BootstrapMethods") : 0;
+        int superClass = classRef("java/lang/Object");
+        Bytes out = new Bytes().u4(0xcafebabe).u2(0).u2(VERSION);
+        out.u2(poolCount).bytes(pool);
+        out.u2(0x0030).u2(thisClass).u2(superClass).u2(0);
+        out.u2(fieldCount).bytes(fields);
+        out.u2(methodCount).bytes(methods);
+        if (bootstrapCount > 0) {
+            out.u2(1).u2(bootstrapAttr).u4(2 + bootstraps.size()).u2(bootstrapCount).bytes(bootstraps);
+        } else {
+            out.u2(0);
+        }
+        return Arrays.copyOf(out.bytes, out.size);
+    }
+
+    /**
+     * 大端序的字节缓冲
+     */
+    static class Bytes {
+        byte[] bytes = new byte[64];
+        int size;
+
+        int size() {
+            return size;
+        }
+
+        private void grow(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+        }
+
+        Bytes u1(int x) {
+            grow(1);
+            bytes[size++] = (byte) x;
+            return this;
+        }
+
+        Bytes u2(int x) {
+            return u1(x >>> 8).u1(x);
+        }
+
+        Bytes u4(int x) {
+            return u2(x >>> 16).u2(x);
+        }
+
+        Bytes bytes(byte[] from, int n) {
+            grow(n);
+            System.arraycopy(from, 0, bytes, size, n);
+            size += n;
+            return this;
+        }
+
+        Bytes bytes(Bytes from) {
+            return bytes(from.bytes, from.size);
+        }
+    }
+
+    /**
+     * 方法体。跳转先记下标号，resolve 时回填 16 位的偏移。
+     * 跳转目标和紧跟在 goto / return / athrow 后面的标号处都要有 frame
+     */
+    static final class Code extends Bytes {
+        private int[] labels = new int[16];
+        private final List<int[]> jumps = new ArrayList<>();
+        private boolean[] targets = new boolean[16];
+        // 上一条指令不会落到下一条
+        private boolean cut;
+
+        /**
+         * 把标号 label 放在当前位置
+         */
+        void mark(int label) {
+            ensure(label);
+            labels[label] = size;
+            if (cut) {
+                targets[label] = true;
+                cut = false;
+            }
+        }
+
+        /**
+         * 刚写完的是 return 或者 athrow
+         */
+        void end() {
+            cut = true;
+        }
+
+        private void ensure(int label) {
+            if (label >= labels.length) {
+                int n = Math.max(labels.length * 2, label + 1);
+                labels = Arrays.copyOf(labels, n);
+                targets = Arrays.copyOf(targets, n);
+            }
+        }
+
+        /**
+         * 跳转指令，目标是 label
+         */
+        void jump(int opcode, int label) {
+            ensure(label);
+            targets[label] = true;
+            jumps.add(new int[]{size, label});
+            u1(opcode).u2(0);
+            cut = opcode == 0xa7;
+        }
+
+        /**
+         * @return 偏移都能放进 16 位时返回 true
+         */
+        boolean resolve() {
+            for (int[] jump : jumps) {
+                int delta = labels[jump[1]] - jump[0];
+                if (delta != (short) delta) {
+                    return false;
+                }
+                bytes[jump[0] + 1] = (byte) (delta >>> 8);
+                bytes[jump[0] + 2] = (byte) delta;
+            }
+            return true;
+        }
+
+        int[] frameOffsets() {
+            return IntStream.range(0, targets.length)
+                    .filter(label -> targets[label])
+                    .map(label -> labels[label])
+                    .distinct().sorted().toArray();
+        }
+    }
+}
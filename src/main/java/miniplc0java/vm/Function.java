@@ -0,0 +1,29 @@
+package miniplc0java.vm;
+
+/**
+ * 加载好的一个函数，指令拆成操作码和参数两个并列数组
+ */
+final class Function {
+    final int id;
+    final String name;
+    final int returnSize;
+    final int paramSize;
+    final int localSize;
+    final int[] ops;
+    final long[] operands;
+
+    Function(int id, String name, int returnSize, int paramSize, int localSize, int[] ops, long[] operands) {
+        this.id = id;
+        this.name = name;
+        this.returnSize = returnSize;
+        this.paramSize = paramSize;
+        this.localSize = localSize;
+        this.ops = ops;
+        this.operands = operands;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,99 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * 把常见的指令序列合并成一条超级指令，减少解释器的分派次数。
+ *
+ * 序列中除第一条以外的指令如果是跳转目标就不合并；合并后重新计算跳转的偏移
+ */
+final class Fuser {
+    private Fuser() {
+    }
+
+    static Function fuse(Function fun, Set<Fusion> fusions) {
+        int[] ops = fun.ops;
+        long[] imm = fun.operands;
+        int n = ops.length;
+
+        boolean[] target = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (isBranch(ops[i])) {
+                target[i + 1 + (int) imm[i]] = true;
+            }
+        }
+
+        int[] newOps = new int[n];
+        long[] newImm = new long[n];
+        // pos[i]：原来第 i 条指令合并后的位置；end[k]：新的第 k 条指令之后的原位置
+        int[] pos = new int[n];
+        int[] end = new int[n];
+        int m = 0;
+        for (int i = 0; i < n; ) {
+            int op = ops[i];
+            long x = imm[i];
+            int len = 1;
+            if (ops[i] == Opcodes.LOCA && fusions.contains(Fusion.LOCA_LOAD) && load(ops, target, i)) {
+                op = Opcodes.LOCA_LOAD;
+                len = 2;
+            } else if (ops[i] == Opcodes.ARGA && fusions.contains(Fusion.ARGA_LOAD) && load(ops, target, i)) {
+                op = Opcodes.ARGA_LOAD;
+                len = 2;
+            } else if (ops[i] == Opcodes.GLOBA && fusions.contains(Fusion.GLOBA_LOAD) && load(ops, target, i)) {
+                op = Opcodes.GLOBA_LOAD;
+                len = 2;
+            } else if (ops[i] == Opcodes.CMP_I && fusions.contains(Fusion.CMP_BRANCH) && free(target, i, 3)
+                    && (ops[i + 1] == Opcodes.SET_LT || ops[i + 1] == Opcodes.SET_GT) && ops[i + 2] == Opcodes.BR_FALSE) {
+                op = ops[i + 1] == Opcodes.SET_LT ? Opcodes.CMP_LT_BR : Opcodes.CMP_GT_BR;
+                x = imm[i + 2];
+                len = 3;
+            } else if (ops[i] == Opcodes.PUSH && fusions.contains(Fusion.ADD_IMM) && free(target, i, 2)
+                    && (ops[i + 1] == Opcodes.ADD_I || ops[i + 1] == Opcodes.SUB_I)) {
+                op = Opcodes.ADD_IMM;
+                // 补码下减 Long.MIN_VALUE 和加它一样
+                x = ops[i + 1] == Opcodes.ADD_I ? x : -x;
+                len = 2;
+            }
+            pos[i] = m;
+            newOps[m] = op;
+            newImm[m] = x;
+            end[m] = i + len;
+            m++;
+            i += len;
+        }
+        if (m == n) {
+            return fun;
+        }
+
+        for (int k = 0; k < m; k++) {
+            if (isBranch(newOps[k])) {
+                newImm[k] = pos[end[k] + (int) newImm[k]] - (k + 1);
+            }
+        }
+        return new Function(fun.id, fun.name, fun.returnSize, fun.paramSize, fun.localSize,
+                Arrays.copyOf(newOps, m), Arrays.copyOf(newImm, m));
+    }
+
+    private static boolean load(int[] ops, boolean[] target, int i) {
+        return free(target, i, 2) && ops[i + 1] == Opcodes.LOAD64;
+    }
+
+    // 从 i 开始的 len 条指令都在函数内，并且只有第一条可能是跳转目标
+    private static boolean free(boolean[] target, int i, int len) {
+        if (i + len > target.length) {
+            return false;
+        }
+        for (int j = i + 1; j < i + len; j++) {
+            if (target[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isBranch(int op) {
+        return op == Opcodes.BR || op == Opcodes.BR_FALSE || op == Opcodes.BR_TRUE
+                || op == Opcodes.CMP_LT_BR || op == Opcodes.CMP_GT_BR;
+    }
+}
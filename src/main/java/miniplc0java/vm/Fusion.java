@@ -0,0 +1,53 @@
+package miniplc0java.vm;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 加载时可以合并的指令序列，每种都能单独打开或关闭
+ */
+public enum Fusion {
+    /** loca n; load.64 */
+    LOCA_LOAD,
+    /** arga n; load.64 */
+    ARGA_LOAD,
+    /** globa n; load.64 */
+    GLOBA_LOAD,
+    /** cmp.i; set.lt / set.gt; br.false */
+    CMP_BRANCH,
+    /** push c; add.i / sub.i */
+    ADD_IMM,
+    ;
+
+    public static Set<Fusion> all() {
+        return EnumSet.allOf(Fusion.class);
+    }
+
+    public static Set<Fusion> none() {
+        return EnumSet.noneOf(Fusion.class);
+    }
+
+    /**
+     * 解析逗号分隔的列表，比如 "loca-load,cmp-branch"，也可以是 "all" 或 "none"
+     *
+     * @throws IllegalArgumentException 有不认识的名字
+     */
+    public static Set<Fusion> parse(String list) {
+        Set<Fusion> fusions = none();
+        for (String name : list.split(",")) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (name.equals("all")) {
+                fusions.addAll(all());
+            } else if (!name.equals("none") && !name.isEmpty()) {
+                fusions.add(valueOf(name.replace('-', '_').toUpperCase(Locale.ROOT)));
+            }
+        }
+        return fusions;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+}
@@ -0,0 +1,56 @@
+package miniplc0java.vm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 加载好的 o0 程序：全局变量的初始内容和所有函数
+ */
+public final class Image {
+    final byte[][] globals;
+    final Function[] functions;
+    final Function start;
+    // 不剖析时为 null
+    final Profile profile;
+    // 函数名到函数，call_name 用
+    private final Map<String, Function> byName = new HashMap<>();
+
+    Image(byte[][] globals, Function[] functions, Profile profile) throws VmException {
+        this.globals = globals;
+        this.functions = functions;
+        this.profile = profile;
+        for (Function fun : functions) {
+            byName.put(fun.name, fun);
+        }
+        this.start = byName.get("_start");
+        if (start == null) {
+            throw new VmException("no _start function");
+        }
+    }
+
+    /**
+     * @return 叫这个名字的函数，没有时返回 null
+     */
+    Function function(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * 把第 i 个全局变量的内容当作字符串
+     */
+    String globalString(int i) {
+        return new String(globals[i], StandardCharsets.UTF_8);
+    }
+
+    public int functionCount() {
+        return functions.length;
+    }
+
+    /**
+     * @return 用 Loader.loadProfiled 加载时的剖析结果，否则返回 null
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+}
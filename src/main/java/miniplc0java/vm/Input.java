@@ -0,0 +1,75 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * scan.i / scan.f 按空白分隔读一个词，scan.c 读一个字节
+ */
+final class Input {
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int pos;
+    private int limit;
+
+    Input(InputStream in) {
+        this.in = in;
+    }
+
+    long scanInt() throws VmException {
+        String word = word();
+        try {
+            return Long.parseLong(word);
+        } catch (NumberFormatException e) {
+            throw new VmException("not an integer: " + word);
+        }
+    }
+
+    double scanDouble() throws VmException {
+        String word = word();
+        try {
+            return Double.parseDouble(word);
+        } catch (NumberFormatException e) {
+            throw new VmException("not a number: " + word);
+        }
+    }
+
+    /**
+     * @return 下一个字节，读完了返回 -1
+     */
+    long scanChar() throws VmException {
+        return read();
+    }
+
+    private String word() throws VmException {
+        int c = read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        if (c == -1) {
+            throw new VmException("unexpected end of input");
+        }
+        StringBuilder word = new StringBuilder();
+        while (c != -1 && !Character.isWhitespace(c)) {
+            word.append((char) c);
+            c = read();
+        }
+        return word.toString();
+    }
+
+    private int read() throws VmException {
+        if (pos == limit) {
+            try {
+                limit = in.read(buffer);
+            } catch (IOException e) {
+                throw new VmException("cannot read input: " + e.getMessage());
+            }
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++] & 0xff;
+    }
+}
@@ -0,0 +1,612 @@
+package miniplc0java.vm;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * o0 解释器。
+ *
+ * 操作数栈是一个预先分配好的 long 数组，一个槽 8 字节。调用时参数和返回值留在调用者压的位置，
+ * bp 指向返回值（没有返回值时指向第一个参数），lp 指向局部变量；返回时栈顶退回到 bp + 返回值个数。
+ * 栈上的地址是 Memory.STACK_BASE + 槽号 * 8，其余地址交给 Memory。
+ *
+ * 打开 JIT 时热的函数交给 Jit 编译，编译好的代码和解释器可以互相调用，
+ * 这时整个程序在一个栈很大的线程里运行，好让编译好的递归有足够的深度。
+ * 剖析时不用 JIT，剖析的标记指令不计入 getSteps()
+ */
+public final class Interpreter {
+    public static final int DEFAULT_STACK_SLOTS = 1 << 20;
+    public static final int DEFAULT_JIT_THRESHOLD = Jit.DEFAULT_THRESHOLD;
+    // 开 JIT 时每个栈槽给线程留的栈空间
+    private static final long THREAD_STACK_PER_SLOT = 256;
+
+    final Image image;
+    final Memory memory;
+    final long[] stack;
+    final Input in;
+    final PrintStream out;
+    private final Profile profile;
+    private int jitThreshold = DEFAULT_JIT_THRESHOLD;
+    private Jit jit;
+    // 进入编译好的代码时解释器的栈顶和调用深度，编译好的代码再调用解释器时从这里接着用
+    int top;
+    int depth;
+
+    // 调用栈：每层保存调用者的函数、返回地址、bp、lp
+    private Function[] savedFn = new Function[64];
+    private int[] savedPc = new int[64];
+    private int[] savedBp = new int[64];
+    private int[] savedLp = new int[64];
+    private long steps;
+
+    public Interpreter(Image image, InputStream in, PrintStream out) throws VmException {
+        this(image, in, out, DEFAULT_STACK_SLOTS);
+    }
+
+    public Interpreter(Image image, InputStream in, PrintStream out, int stackSlots) throws VmException {
+        this.image = image;
+        this.memory = new Memory(image.globals);
+        this.stack = new long[stackSlots];
+        this.in = new Input(in);
+        this.out = out;
+        this.profile = image.profile;
+    }
+
+    /**
+     * 函数被调用或者循环回跳的次数到 threshold 时编译成 JVM 字节码，0 表示不编译
+     */
+    public void setJitThreshold(int threshold) {
+        this.jitThreshold = threshold;
+    }
+
+    /**
+     * 从 _start 开始运行到它返回
+     */
+    public void run() throws VmException {
+        steps = 0;
+        if (jitThreshold <= 0 || profile != null) {
+            runHere();
+            return;
+        }
+        jit = new Jit(this, image, jitThreshold);
+        Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                runHere();
+            } catch (Throwable e) {
+                thrown[0] = e;
+            }
+        }, "vm", stack.length * THREAD_STACK_PER_SLOT);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VmException("interrupted");
+        }
+        if (thrown[0] instanceof VmException) {
+            throw (VmException) thrown[0];
+        } else if (thrown[0] instanceof RuntimeException) {
+            throw (RuntimeException) thrown[0];
+        } else if (thrown[0] != null) {
+            throw (Error) thrown[0];
+        }
+    }
+
+    private void runHere() throws VmException {
+        try {
+            execute(image.start, 0, 0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new VmException("operand stack overflow");
+        } catch (StackOverflowError e) {
+            throw new VmException("call stack overflow");
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * 解释执行 fn 直到它返回。返回值和参数已经在栈上从 bp 开始放好，
+     * 调用栈从第 floor 层开始用，下面的是外层的解释器
+     */
+    void execute(Function fn, int bp, int floor) throws VmException {
+        final long[] stack = this.stack;
+        int[] ops = fn.ops;
+        long[] imm = fn.operands;
+        int pc = 0;
+        int lp = bp + fn.returnSize + fn.paramSize;
+        Arrays.fill(stack, lp, lp + fn.localSize, 0L);
+        int sp = lp + fn.localSize;
+        int depth = floor;
+        // 执行过的 o0 指令数，融合指令按合并前的条数算
+        long steps = 0;
+
+        try {
+            for (;;) {
+                long x = imm[pc];
+                steps++;
+                switch (ops[pc++]) {
+                    case Opcodes.NOP:
+                        break;
+                    case Opcodes.PUSH:
+                        stack[sp++] = x;
+                        break;
+                    case Opcodes.POP:
+                        sp--;
+                        break;
+                    case Opcodes.POPN:
+                        sp -= (int) x;
+                        break;
+                    case Opcodes.DUP:
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                        break;
+                    case Opcodes.LOCA:
+                        stack[sp++] = Memory.STACK_BASE + ((lp + x) << 3);
+                        break;
+                    case Opcodes.ARGA:
+                        stack[sp++] = Memory.STACK_BASE + ((bp + x) << 3);
+                        break;
+                    case Opcodes.GLOBA:
+                        stack[sp++] = memory.global((int) x);
+                        break;
+                    case Opcodes.LOAD8:
+                        stack[sp - 1] = load(stack[sp - 1], 1);
+                        break;
+                    case Opcodes.LOAD16:
+                        stack[sp - 1] = load(stack[sp - 1], 2);
+                        break;
+                    case Opcodes.LOAD32:
+                        stack[sp - 1] = load(stack[sp - 1], 4);
+                        break;
+                    case Opcodes.LOAD64:
+                        stack[sp - 1] = load(stack[sp - 1], 8);
+                        break;
+                    case Opcodes.STORE8:
+                        sp -= 2;
+                        store(stack[sp], 1, stack[sp + 1]);
+                        break;
+                    case Opcodes.STORE16:
+                        sp -= 2;
+                        store(stack[sp], 2, stack[sp + 1]);
+                        break;
+                    case Opcodes.STORE32:
+                        sp -= 2;
+                        store(stack[sp], 4, stack[sp + 1]);
+                        break;
+                    case Opcodes.STORE64:
+                        sp -= 2;
+                        store(stack[sp], 8, stack[sp + 1]);
+                        break;
+                    case Opcodes.ALLOC:
+                        stack[sp - 1] = memory.alloc(stack[sp - 1]);
+                        break;
+                    case Opcodes.FREE:
+                        memory.free(stack[--sp]);
+                        break;
+                    case Opcodes.STACK_ALLOC:
+                        Arrays.fill(stack, sp, sp + (int) x, 0L);
+                        sp += (int) x;
+                        break;
+                    case Opcodes.ADD_I:
+                        sp--;
+                        stack[sp - 1] += stack[sp];
+                        break;
+                    case Opcodes.SUB_I:
+                        sp--;
+                        stack[sp - 1] -= stack[sp];
+                        break;
+                    case Opcodes.MUL_I:
+                        sp--;
+                        stack[sp - 1] *= stack[sp];
+                        break;
+                    case Opcodes.DIV_I:
+                        sp--;
+                        if (stack[sp] == 0) {
+                            throw new VmException("division by zero");
+                        }
+                        stack[sp - 1] /= stack[sp];
+                        break;
+                    case Opcodes.DIV_U:
+                        sp--;
+                        if (stack[sp] == 0) {
+                            throw new VmException("division by zero");
+                        }
+                        stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], stack[sp]);
+                        break;
+                    case Opcodes.ADD_F:
+                        sp--;
+                        stack[sp - 1] = bits(real(stack[sp - 1]) + real(stack[sp]));
+                        break;
+                    case Opcodes.SUB_F:
+                        sp--;
+                        stack[sp - 1] = bits(real(stack[sp - 1]) - real(stack[sp]));
+                        break;
+                    case Opcodes.MUL_F:
+                        sp--;
+                        stack[sp - 1] = bits(real(stack[sp - 1]) * real(stack[sp]));
+                        break;
+                    case Opcodes.DIV_F:
+                        sp--;
+                        stack[sp - 1] = bits(real(stack[sp - 1]) / real(stack[sp]));
+                        break;
+                    case Opcodes.SHL:
+                        sp--;
+                        stack[sp - 1] <<= stack[sp];
+                        break;
+                    case Opcodes.SHR:
+                        sp--;
+                        stack[sp - 1] >>= stack[sp];
+                        break;
+                    case Opcodes.SHRL:
+                        sp--;
+                        stack[sp - 1] >>>= stack[sp];
+                        break;
+                    case Opcodes.AND:
+                        sp--;
+                        stack[sp - 1] &= stack[sp];
+                        break;
+                    case Opcodes.OR:
+                        sp--;
+                        stack[sp - 1] |= stack[sp];
+                        break;
+                    case Opcodes.XOR:
+                        sp--;
+                        stack[sp - 1] ^= stack[sp];
+                        break;
+                    case Opcodes.NOT:
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case Opcodes.CMP_I:
+                        sp--;
+                        stack[sp - 1] = Long.compare(stack[sp - 1], stack[sp]);
+                        break;
+                    case Opcodes.CMP_U:
+                        sp--;
+                        stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], stack[sp]);
+                        break;
+                    case Opcodes.CMP_F:
+                        sp--;
+                        stack[sp - 1] = compare(real(stack[sp - 1]), real(stack[sp]));
+                        break;
+                    case Opcodes.NEG_I:
+                        stack[sp - 1] = -stack[sp - 1];
+                        break;
+                    case Opcodes.NEG_F:
+                        stack[sp - 1] = bits(-real(stack[sp - 1]));
+                        break;
+                    case Opcodes.ITOF:
+                        stack[sp - 1] = bits((double) stack[sp - 1]);
+                        break;
+                    case Opcodes.FTOI:
+                        stack[sp - 1] = (long) real(stack[sp - 1]);
+                        break;
+                    case Opcodes.SET_LT:
+                        stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                        break;
+                    case Opcodes.SET_GT:
+                        stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                        break;
+                    case Opcodes.BR:
+                        pc += (int) x;
+                        if (x < 0 && jit != null) {
+                            pc = loop(fn, pc, bp, sp, depth);
+                        }
+                        break;
+                    case Opcodes.BR_FALSE:
+                        if (stack[--sp] == 0) {
+                            pc += (int) x;
+                            if (x < 0 && jit != null) {
+                                pc = loop(fn, pc, bp, sp, depth);
+                            }
+                        }
+                        break;
+                    case Opcodes.BR_TRUE:
+                        if (stack[--sp] != 0) {
+                            pc += (int) x;
+                            if (x < 0 && jit != null) {
+                                pc = loop(fn, pc, bp, sp, depth);
+                            }
+                        }
+                        break;
+                    case Opcodes.CALL_NAME:
+                    case Opcodes.CALL: {
+                        Function callee;
+                        if (ops[pc - 1] == Opcodes.CALL) {
+                            callee = image.functions[(int) x];
+                        } else {
+                            String name = image.globalString((int) x);
+                            callee = image.function(name);
+                            if (callee == null) {
+                                sp = builtin(name, sp);
+                                break;
+                            }
+                        }
+                        MethodHandle code = jit != null ? jit.entry(callee) : null;
+                        if (code != null) {
+                            int at = sp - callee.paramSize - callee.returnSize;
+                            long r = jit.invoke(code, at, sp, depth);
+                            if (callee.returnSize > 0) {
+                                stack[at] = r;
+                            }
+                            sp = at + callee.returnSize;
+                            break;
+                        }
+                        if (depth == savedPc.length) {
+                            growCallStack();
+                        }
+                        savedFn[depth] = fn;
+                        savedPc[depth] = pc;
+                        savedBp[depth] = bp;
+                        savedLp[depth] = lp;
+                        depth++;
+                        bp = sp - callee.paramSize - callee.returnSize;
+                        lp = sp;
+                        Arrays.fill(stack, sp, sp + callee.localSize, 0L);
+                        sp += callee.localSize;
+                        fn = callee;
+                        ops = fn.ops;
+                        imm = fn.operands;
+                        pc = 0;
+                        break;
+                    }
+                    case Opcodes.RET:
+                        if (depth == floor) {
+                            return;
+                        }
+                        sp = bp + fn.returnSize;
+                        depth--;
+                        fn = savedFn[depth];
+                        pc = savedPc[depth];
+                        bp = savedBp[depth];
+                        lp = savedLp[depth];
+                        ops = fn.ops;
+                        imm = fn.operands;
+                        break;
+                    case Opcodes.SCAN_I:
+                        stack[sp++] = in.scanInt();
+                        break;
+                    case Opcodes.SCAN_C:
+                        stack[sp++] = in.scanChar();
+                        break;
+                    case Opcodes.SCAN_F:
+                        stack[sp++] = bits(in.scanDouble());
+                        break;
+                    case Opcodes.PRINT_I:
+                        out.print(stack[--sp]);
+                        break;
+                    case Opcodes.PRINT_C:
+                        printChar(stack[--sp]);
+                        break;
+                    case Opcodes.PRINT_F:
+                        out.print(formatDouble(real(stack[--sp])));
+                        break;
+                    case Opcodes.PRINT_S:
+                        printString(stack[--sp]);
+                        break;
+                    case Opcodes.PRINT_LN:
+                        out.println();
+                        break;
+                    case Opcodes.LOCA_LOAD:
+                        stack[sp++] = stack[lp + (int) x];
+                        steps++;
+                        break;
+                    case Opcodes.ARGA_LOAD:
+                        stack[sp++] = stack[bp + (int) x];
+                        steps++;
+                        break;
+                    case Opcodes.GLOBA_LOAD:
+                        stack[sp++] = memory.load(memory.global((int) x), 8);
+                        steps++;
+                        break;
+                    case Opcodes.CMP_LT_BR:
+                        sp -= 2;
+                        steps += 2;
+                        if (stack[sp] >= stack[sp + 1]) {
+                            pc += (int) x;
+                            if (x < 0 && jit != null) {
+                                pc = loop(fn, pc, bp, sp, depth);
+                            }
+                        }
+                        break;
+                    case Opcodes.CMP_GT_BR:
+                        sp -= 2;
+                        steps += 2;
+                        if (stack[sp] <= stack[sp + 1]) {
+                            pc += (int) x;
+                            if (x < 0 && jit != null) {
+                                pc = loop(fn, pc, bp, sp, depth);
+                            }
+                        }
+                        break;
+                    case Opcodes.ADD_IMM:
+                        stack[sp - 1] += x;
+                        steps++;
+                        break;
+                    case Opcodes.PROF_ENTER:
+                        profile.enter((int) x);
+                        steps--;
+                        break;
+                    case Opcodes.PROF_BLOCK:
+                        profile.block((int) x);
+                        steps--;
+                        break;
+                    case Opcodes.PROF_LEAVE:
+                        profile.leave();
+                        steps--;
+                        break;
+                    case Opcodes.PANIC:
+                        throw new VmException("panic in " + fn.name + " at " + (pc - 1));
+                    default:
+                        // 加载时已经检查过操作码
+                        throw new IllegalStateException("unknown opcode " + ops[pc - 1]);
+                }
+            }
+        } finally {
+            this.steps += steps;
+        }
+    }
+
+    /**
+     * 往回跳到 pc 时数一次。函数够热时从 pc 进入编译好的代码把函数跑完，
+     * 返回值放好之后转到最后补的那条 ret
+     *
+     * @return 接下来要执行的指令
+     */
+    private int loop(Function fn, int pc, int bp, int sp, int depth) throws VmException {
+        MethodHandle code = jit.loop(fn, pc);
+        if (code == null) {
+            return pc;
+        }
+        long r = jit.invoke(code, bp, sp, depth);
+        if (fn.returnSize > 0) {
+            stack[bp] = r;
+        }
+        return fn.ops.length - 1;
+    }
+
+    /**
+     * @return 上一次 run 解释执行的 o0 指令条数，不含编译好的代码执行的
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * 标准库函数按名字调用时的约定：有返回值的，调用者已经在参数前压好了返回值的位置
+     *
+     * @return 调用后的栈顶
+     */
+    private int builtin(String name, int sp) throws VmException {
+        switch (name) {
+            case "getint":
+                stack[sp - 1] = in.scanInt();
+                return sp;
+            case "getdouble":
+                stack[sp - 1] = bits(in.scanDouble());
+                return sp;
+            case "getchar":
+                stack[sp - 1] = in.scanChar();
+                return sp;
+            case "putint":
+                out.print(stack[sp - 1]);
+                return sp - 1;
+            case "putdouble":
+                out.print(formatDouble(real(stack[sp - 1])));
+                return sp - 1;
+            case "putchar":
+                printChar(stack[sp - 1]);
+                return sp - 1;
+            case "putstr":
+                printString(stack[sp - 1]);
+                return sp - 1;
+            case "putln":
+                out.println();
+                return sp;
+            default:
+                throw new VmException("no function named " + name);
+        }
+    }
+
+    long load(long addr, int size) throws VmException {
+        if (addr < Memory.STACK_BASE) {
+            return memory.load(addr, size);
+        }
+        long offset = stackOffset(addr, size);
+        if (size == 8 && (offset & 7) == 0) {
+            return stack[(int) (offset >>> 3)];
+        }
+        long value = 0;
+        for (int k = size - 1; k >= 0; k--) {
+            long at = offset + k;
+            value = value << 8 | (stack[(int) (at >>> 3)] >>> ((at & 7) << 3)) & 0xff;
+        }
+        return value;
+    }
+
+    void store(long addr, int size, long value) throws VmException {
+        if (addr < Memory.STACK_BASE) {
+            memory.store(addr, size, value);
+            return;
+        }
+        long offset = stackOffset(addr, size);
+        if (size == 8 && (offset & 7) == 0) {
+            stack[(int) (offset >>> 3)] = value;
+            return;
+        }
+        for (int k = 0; k < size; k++) {
+            long at = offset + k;
+            int slot = (int) (at >>> 3);
+            int shift = (int) (at & 7) << 3;
+            stack[slot] = stack[slot] & ~(0xffL << shift) | (value >>> (k << 3) & 0xff) << shift;
+        }
+    }
+
+    private long stackOffset(long addr, int size) throws VmException {
+        long offset = addr - Memory.STACK_BASE;
+        if (offset > ((long) stack.length << 3) - size) {
+            throw new VmException(String.format("bad address 0x%x", addr));
+        }
+        return offset;
+    }
+
+    private void growCallStack() throws VmException {
+        int depth = savedPc.length;
+        if (depth >= stack.length) {
+            throw new VmException("call stack overflow");
+        }
+        savedFn = Arrays.copyOf(savedFn, depth * 2);
+        savedPc = Arrays.copyOf(savedPc, depth * 2);
+        savedBp = Arrays.copyOf(savedBp, depth * 2);
+        savedLp = Arrays.copyOf(savedLp, depth * 2);
+    }
+
+    void printChar(long c) throws VmException {
+        if (!Character.isValidCodePoint((int) c) || c != (int) c) {
+            throw new VmException("not a character: " + c);
+        }
+        out.print(Character.toChars((int) c));
+    }
+
+    void printString(long global) throws VmException {
+        if (global < 0 || global >= image.globals.length) {
+            throw new VmException("no global " + global);
+        }
+        out.print(image.globalString((int) global));
+    }
+
+    static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    static long bits(double real) {
+        return Double.doubleToRawLongBits(real);
+    }
+
+    // NaN 和任何数比较都当作相等
+    static long compare(double a, double b) {
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+    /**
+     * 保留 6 位小数，和 navm 一样无穷输出 inf，非数输出 NaN
+     */
+    static String formatDouble(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        String text = new BigDecimal(value).setScale(6, RoundingMode.HALF_EVEN).toPlainString();
+        if (text.charAt(0) != '-' && (value < 0 || 1 / value < 0)) {
+            // -0.0 以及舍入成 0 的负数也带负号
+            return "-" + text;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,350 @@
+package miniplc0java.vm;
+
+import miniplc0java.util.Trace;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 第二层：把热的函数翻译成 JVM 字节码。
+ *
+ * 每个函数数被调用和循环回跳的次数，到 threshold 时用 Translator 翻译成一个类，之后的调用直接进编译好的代码；
+ * 解释器正在跑的循环回跳时从循环头切进去（OSR），跑完整个函数再回到解释器。
+ * 编译好的代码调用别的函数经过那个函数的 MutableCallSite，对方还没编译时它指向解释器，编译之后改指向 run。
+ * 编译好的代码不计入 Interpreter.getSteps()
+ */
+final class Jit {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType FRAME_TYPE = MethodType.methodType(long.class, Interpreter.class, long[].class, int.class);
+    private static final MethodHandle INTERPRET;
+    // 生成的类名都不一样
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    static {
+        try {
+            INTERPRET = LOOKUP.findVirtual(Jit.class, "interpret", MethodType.methodType(long.class, int.class, long[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Interpreter vm;
+    private final Image image;
+    private final int threshold;
+    private final int[] counts;
+    private final boolean[] failed;
+    // 编译好的函数从解释器进入的入口，类型是 FRAME_TYPE
+    private final MethodHandle[] entries;
+    private final MutableCallSite[] sites;
+    // (函数 id << 32 | 循环头) 到 osr 入口，编译不了时是 null
+    private final Map<Long, MethodHandle> loops = new HashMap<>();
+
+    Jit(Interpreter vm, Image image, int threshold) {
+        this.vm = vm;
+        this.image = image;
+        this.threshold = threshold;
+        int n = image.functions.length;
+        this.counts = new int[n];
+        this.failed = new boolean[n];
+        this.entries = new MethodHandle[n];
+        this.sites = new MutableCallSite[n];
+    }
+
+    /**
+     * 解释器调用 fn 之前数一次
+     *
+     * @return 编译好的入口，还不够热或者编译不了时返回 null
+     */
+    MethodHandle entry(Function fn) {
+        MethodHandle code = entries[fn.id];
+        if (code == null && !failed[fn.id] && hot(fn)) {
+            code = compile(fn);
+        }
+        return code;
+    }
+
+    /**
+     * 解释器在 fn 里往回跳到 pc 时数一次
+     *
+     * @return 从 pc 开始执行的入口，还不够热或者编译不了时返回 null
+     */
+    MethodHandle loop(Function fn, int pc) {
+        if (failed[fn.id] || !hot(fn)) {
+            return null;
+        }
+        long key = (long) fn.id << 32 | pc;
+        if (loops.containsKey(key)) {
+            return loops.get(key);
+        }
+        MethodHandle code = null;
+        if (entries[fn.id] != null || compile(fn) != null) {
+            code = compileLoop(fn, pc);
+        }
+        loops.put(key, code);
+        return code;
+    }
+
+    private boolean hot(Function fn) {
+        if (counts[fn.id] < threshold) {
+            counts[fn.id]++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 从解释器进入编译好的代码，参数和局部变量在解释器的栈上从 bp 开始，栈顶是 sp
+     */
+    long invoke(MethodHandle code, int bp, int sp, int depth) throws VmException {
+        int top = vm.top;
+        int savedDepth = vm.depth;
+        vm.top = sp;
+        vm.depth = depth;
+        try {
+            return (long) code.invokeExact(vm, vm.stack, bp);
+        } catch (VmException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        } finally {
+            vm.top = top;
+            vm.depth = savedDepth;
+        }
+    }
+
+    /**
+     * 编译好的代码调用还没编译的函数：把参数放到解释器的栈顶上解释执行
+     */
+    private long interpret(int id, long[] args) throws VmException {
+        Function fn = image.functions[id];
+        int bp = vm.top;
+        System.arraycopy(args, 0, vm.stack, bp, args.length);
+        MethodHandle code = entry(fn);
+        if (code != null) {
+            return invoke(code, bp, bp + args.length, vm.depth);
+        }
+        vm.execute(fn, bp, vm.depth);
+        return fn.returnSize > 0 ? vm.stack[bp] : 0;
+    }
+
+    private MutableCallSite site(int id) {
+        if (sites[id] == null) {
+            Function fn = image.functions[id];
+            int n = fn.returnSize + fn.paramSize;
+            Class<?>[] params = new Class<?>[n + 1];
+            params[0] = Interpreter.class;
+            Arrays.fill(params, 1, n + 1, long.class);
+            MethodType type = MethodType.methodType(fn.returnSize > 0 ? long.class : void.class, params);
+            MethodHandle target = MethodHandles.insertArguments(INTERPRET.bindTo(this), 0, id);
+            target = MethodHandles.dropArguments(target, 0, Interpreter.class).asCollector(long[].class, n);
+            sites[id] = new MutableCallSite(target.asType(type));
+        }
+        return sites[id];
+    }
+
+    /**
+     * invokedynamic 的引导方法，调用第 id 个函数的地方都链接到同一个 call site
+     */
+    static CallSite link(MethodHandles.Lookup caller, String name, MethodType type, int id) throws Throwable {
+        Jit jit = (Jit) caller.findStaticVarHandle(caller.lookupClass(), "jit", Jit.class).get();
+        return jit.site(id);
+    }
+
+    private MethodHandle compile(Function fn) {
+        Translator t = Translator.of(image, vm.memory, fn);
+        byte[] bytes = t != null ? t.entryClass(className(fn)) : null;
+        Class<?> c = define(fn, bytes);
+        if (c == null) {
+            return null;
+        }
+        try {
+            int n = fn.returnSize + fn.paramSize;
+            MethodHandle run = LOOKUP.findStatic(c, "run", site(fn.id).type());
+            entries[fn.id] = LOOKUP.findStatic(c, "enter", FRAME_TYPE);
+            sites[fn.id].setTarget(run);
+            if (Trace.detail()) {
+                Trace.detail("jit " + fn.name + ": " + fn.ops.length + " instructions, " + n + " arguments");
+            }
+            return entries[fn.id];
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MethodHandle compileLoop(Function fn, int pc) {
+        Translator t = Translator.of(image, vm.memory, fn);
+        byte[] bytes = t != null && t.canEnterAt(pc) ? t.loopClass(className(fn), pc) : null;
+        Class<?> c = define(fn, bytes);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (Trace.detail()) {
+                Trace.detail("jit " + fn.name + ": loop at " + pc);
+            }
+            return LOOKUP.findStatic(c, "osr", FRAME_TYPE);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 定义生成的类并且把 jit 字段指向自己，这时类会被校验
+     *
+     * @return 翻译或者校验失败时返回 null，这个函数以后都留给解释器
+     */
+    private Class<?> define(Function fn, byte[] bytes) {
+        if (bytes != null) {
+            try {
+                Class<?> c = LOOKUP.defineClass(bytes);
+                LOOKUP.findStaticVarHandle(c, "jit", Jit.class).set(this);
+                return c;
+            } catch (LinkageError | ReflectiveOperationException e) {
+                if (Trace.detail()) {
+                    Trace.detail("jit " + fn.name + ": " + e);
+                }
+            }
+        }
+        failed[fn.id] = true;
+        if (Trace.detail()) {
+            Trace.detail("jit " + fn.name + ": left to the interpreter");
+        }
+        return null;
+    }
+
+    private static String className(Function fn) {
+        return "miniplc0java/vm/Jit$" + classCount.incrementAndGet() + "$" + fn.name;
+    }
+
+    // ---- 生成的代码调用的辅助方法，语义和 Interpreter 里的对应指令一样 ----
+
+    static void reserve(Interpreter vm, int slots) throws VmException {
+        vm.top += slots;
+        if (vm.top > vm.stack.length) {
+            throw new VmException("operand stack overflow");
+        }
+    }
+
+    static void release(Interpreter vm, int slots) {
+        vm.top -= slots;
+    }
+
+    static long load(Interpreter vm, long addr, int size) throws VmException {
+        return vm.load(addr, size);
+    }
+
+    static void store(Interpreter vm, long addr, int size, long value) throws VmException {
+        vm.store(addr, size, value);
+    }
+
+    static long alloc(Interpreter vm, long size) throws VmException {
+        return vm.memory.alloc(size);
+    }
+
+    static void free(Interpreter vm, long addr) throws VmException {
+        vm.memory.free(addr);
+    }
+
+    static long divI(long a, long b) throws VmException {
+        if (b == 0) {
+            throw new VmException("division by zero");
+        }
+        return a / b;
+    }
+
+    static long divU(long a, long b) throws VmException {
+        if (b == 0) {
+            throw new VmException("division by zero");
+        }
+        return Long.divideUnsigned(a, b);
+    }
+
+    static long addF(long a, long b) {
+        return Interpreter.bits(Interpreter.real(a) + Interpreter.real(b));
+    }
+
+    static long subF(long a, long b) {
+        return Interpreter.bits(Interpreter.real(a) - Interpreter.real(b));
+    }
+
+    static long mulF(long a, long b) {
+        return Interpreter.bits(Interpreter.real(a) * Interpreter.real(b));
+    }
+
+    static long divF(long a, long b) {
+        return Interpreter.bits(Interpreter.real(a) / Interpreter.real(b));
+    }
+
+    static long cmpF(long a, long b) {
+        return Interpreter.compare(Interpreter.real(a), Interpreter.real(b));
+    }
+
+    static long not(long a) {
+        return a == 0 ? 1 : 0;
+    }
+
+    static long negF(long a) {
+        return Interpreter.bits(-Interpreter.real(a));
+    }
+
+    static long itof(long a) {
+        return Interpreter.bits((double) a);
+    }
+
+    static long ftoi(long a) {
+        return (long) Interpreter.real(a);
+    }
+
+    static long setLt(long a) {
+        return a < 0 ? 1 : 0;
+    }
+
+    static long setGt(long a) {
+        return a > 0 ? 1 : 0;
+    }
+
+    static long scanI(Interpreter vm) throws VmException {
+        return vm.in.scanInt();
+    }
+
+    static long scanC(Interpreter vm) throws VmException {
+        return vm.in.scanChar();
+    }
+
+    static long scanF(Interpreter vm) throws VmException {
+        return Interpreter.bits(vm.in.scanDouble());
+    }
+
+    static void printI(Interpreter vm, long x) {
+        vm.out.print(x);
+    }
+
+    static void printC(Interpreter vm, long c) throws VmException {
+        vm.printChar(c);
+    }
+
+    static void printF(Interpreter vm, long x) {
+        vm.out.print(Interpreter.formatDouble(Interpreter.real(x)));
+    }
+
+    static void printS(Interpreter vm, long global) throws VmException {
+        vm.printString(global);
+    }
+
+    static void printLn(Interpreter vm) {
+        vm.out.println();
+    }
+
+    static VmException panic(Interpreter vm, int id, int pc) {
+        return new VmException("panic in " + vm.image.functions[id].name + " at " + pc);
+    }
+}
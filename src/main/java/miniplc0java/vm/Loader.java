@@ -0,0 +1,158 @@
+package miniplc0java.vm;
+
+import miniplc0java.instruction.Operation;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * 读 o0 文件，检查之后解码成 Image。
+ *
+ * 加载时检查所有参数：跳转不能跳出函数，call 的函数、loca / arga / globa 的下标都要存在，
+ * 运行时就不用再检查这些。每个函数的最后都补一条 ret，从最后一条指令之后继续执行就是返回。
+ * 检查之后再按需要合并指令，见 Fuser；剖析时改成插入标记，见 Profile
+ */
+public final class Loader {
+    private static final int MAGIC = 0x72303b3e;
+    private static final int VERSION = 1;
+
+    private Loader() {
+    }
+
+    public static Image load(byte[] bytes) throws VmException {
+        return load(bytes, Fusion.all());
+    }
+
+    public static Image load(byte[] bytes, Set<Fusion> fusions) throws VmException {
+        return load(bytes, fusions, false);
+    }
+
+    /**
+     * 加载并插入剖析用的标记，运行之后从 Image.getProfile() 取结果
+     */
+    public static Image loadProfiled(byte[] bytes) throws VmException {
+        return load(bytes, Fusion.none(), true);
+    }
+
+    private static Image load(byte[] bytes, Set<Fusion> fusions, boolean profile) throws VmException {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new VmException("bad magic number");
+            }
+            if (in.getInt() != VERSION) {
+                throw new VmException("unsupported version");
+            }
+
+            byte[][] globals = new byte[count(in)][];
+            for (int i = 0; i < globals.length; i++) {
+                in.get();  // 是否是常量，运行时不区分
+                globals[i] = new byte[count(in)];
+                in.get(globals[i]);
+            }
+
+            Function[] functions = new Function[count(in)];
+            for (int f = 0; f < functions.length; f++) {
+                functions[f] = function(in, f, globals);
+            }
+            if (in.hasRemaining()) {
+                throw new VmException("trailing bytes after the last function");
+            }
+            for (Function fun : functions) {
+                verify(fun, globals.length, functions);
+            }
+            if (!fusions.isEmpty()) {
+                for (int f = 0; f < functions.length; f++) {
+                    functions[f] = Fuser.fuse(functions[f], fusions);
+                }
+            }
+            return new Image(globals, functions, profile ? new Profile(functions) : null);
+        } catch (BufferUnderflowException e) {
+            throw new VmException("unexpected end of file");
+        }
+    }
+
+    private static Function function(ByteBuffer in, int id, byte[][] globals) throws VmException {
+        int nameId = in.getInt();
+        if (nameId < 0 || nameId >= globals.length) {
+            throw new VmException("function " + id + " has no name");
+        }
+        String name = new String(globals[nameId], StandardCharsets.UTF_8);
+        int returnSize = count(in);
+        int paramSize = count(in);
+        int localSize = count(in);
+        int bodySize = count(in);
+
+        int[] ops = new int[bodySize + 1];
+        long[] operands = new long[bodySize + 1];
+        for (int i = 0; i < bodySize; i++) {
+            int opcode = in.get() & 0xff;
+            Operation op = Operation.byOpcode(opcode);
+            if (op == null) {
+                throw new VmException(String.format("%s: unknown opcode 0x%02x at %d", name, opcode, i));
+            }
+            ops[i] = Opcodes.fromO0(opcode);
+            switch (op.getParamSize()) {
+                case 8:
+                    operands[i] = in.getLong();
+                    break;
+                case 4:
+                    operands[i] = in.getInt();
+                    break;
+                default:
+                    break;
+            }
+        }
+        ops[bodySize] = Opcodes.RET;
+        return new Function(id, name, returnSize, paramSize, localSize, ops, operands);
+    }
+
+    private static void verify(Function fun, int globalCount, Function[] functions) throws VmException {
+        int n = fun.ops.length - 1;
+        for (int i = 0; i < n; i++) {
+            long x = fun.operands[i];
+            boolean ok;
+            switch (fun.ops[i]) {
+                case Opcodes.BR:
+                case Opcodes.BR_FALSE:
+                case Opcodes.BR_TRUE:
+                    ok = i + 1 + x >= 0 && i + 1 + x <= n;
+                    break;
+                case Opcodes.CALL:
+                    ok = x >= 0 && x < functions.length;
+                    break;
+                case Opcodes.LOCA:
+                    ok = x >= 0 && x < fun.localSize;
+                    break;
+                case Opcodes.ARGA:
+                    ok = x >= 0 && x < fun.returnSize + fun.paramSize;
+                    break;
+                case Opcodes.GLOBA:
+                case Opcodes.CALL_NAME:
+                    ok = x >= 0 && x < globalCount;
+                    break;
+                case Opcodes.POPN:
+                case Opcodes.STACK_ALLOC:
+                    ok = x >= 0;
+                    break;
+                default:
+                    ok = true;
+                    break;
+            }
+            if (!ok) {
+                throw new VmException(String.format("%s: bad operand %d at %d", fun.name, x, i));
+            }
+        }
+    }
+
+    // 长度和个数都是无符号的 u32，这里不允许超过 int 的范围
+    private static int count(ByteBuffer in) throws VmException {
+        int x = in.getInt();
+        if (x < 0) {
+            throw new VmException("count out of range");
+        }
+        return x;
+    }
+}
@@ -0,0 +1,191 @@
+package miniplc0java.vm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 全局变量和 alloc 出来的内存，放在堆外的一块连续的 direct ByteBuffer 里，按小端序存放。
+ *
+ * 地址 0 留作空指针，全局变量从 8 开始按 8 字节对齐依次放好，之后是堆，用完时整块翻倍搬过去。
+ * 栈不在这里，栈上的地址从 STACK_BASE 开始，由解释器自己处理；所有读写都先检查地址落在已经用到的范围里。
+ *
+ * 堆上每块前面有 8 字节的头：块的容量和一个表示在用还是已释放的标记。
+ * 不超过 MAX_SMALL 字节的块按 2 的幂分成几档，每档一个空闲链表，链表的下一项存在空闲块自己的前 8 字节里；
+ * 更大的块按容量放在 large 里，分配时取够大的里面最小的一块
+ */
+final class Memory {
+    static final long STACK_BASE = 1L << 40;
+    private static final int ALIGN = 8;
+    private static final int HEADER = 8;
+    private static final int MIN_SMALL = 8;
+    private static final int MAX_SMALL = 4096;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SMALL / MIN_SMALL) + 1;
+    private static final int LIVE = 0x4c495645;
+    private static final int FREE = 0x46524545;
+
+    private ByteBuffer bytes = ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private int top = ALIGN;
+    private final long[] globals;
+    // 每档空闲链表的第一块，0 表示空
+    private final long[] small = new long[CLASSES];
+    // 容量到这么大的空闲块
+    private final TreeMap<Integer, Deque<Long>> large = new TreeMap<>();
+
+    Memory(byte[][] init) throws VmException {
+        globals = new long[init.length];
+        for (int i = 0; i < init.length; i++) {
+            globals[i] = reserve(init[i].length);
+            for (int k = 0; k < init[i].length; k++) {
+                bytes.put((int) globals[i] + k, init[i][k]);
+            }
+        }
+    }
+
+    /**
+     * @return 第 i 个全局变量的地址
+     */
+    long global(int i) {
+        return globals[i];
+    }
+
+    /**
+     * 分配 size 字节，内容是 0
+     */
+    long alloc(long size) throws VmException {
+        if (size < 0 || size > Integer.MAX_VALUE - top - HEADER - ALIGN) {
+            throw new VmException("cannot allocate " + size + " bytes");
+        }
+        int capacity;
+        long addr;
+        if (size <= MAX_SMALL) {
+            int c = sizeClass((int) size);
+            capacity = MIN_SMALL << c;
+            addr = small[c];
+            if (addr != 0) {
+                small[c] = bytes.getLong((int) addr);
+            }
+        } else {
+            capacity = (int) ((size + ALIGN - 1) / ALIGN * ALIGN);
+            addr = takeLarge(capacity);
+            if (addr != 0) {
+                capacity = bytes.getInt((int) addr - HEADER);
+            }
+        }
+        if (addr == 0) {
+            addr = reserve(HEADER + (long) capacity) + HEADER;
+        } else {
+            for (int k = 0; k < capacity; k += 8) {
+                bytes.putLong((int) addr + k, 0L);
+            }
+        }
+        bytes.putInt((int) addr - HEADER, capacity);
+        bytes.putInt((int) addr - HEADER + 4, LIVE);
+        return addr;
+    }
+
+    /**
+     * 释放 alloc 返回的块，0 什么也不做
+     */
+    void free(long addr) throws VmException {
+        if (addr == 0) {
+            return;
+        }
+        if (addr < ALIGN + HEADER || addr >= top || (addr & (ALIGN - 1)) != 0
+                || bytes.getInt((int) addr - HEADER + 4) != LIVE) {
+            throw new VmException(String.format("bad free 0x%x", addr));
+        }
+        int capacity = bytes.getInt((int) addr - HEADER);
+        bytes.putInt((int) addr - HEADER + 4, FREE);
+        if (capacity <= MAX_SMALL) {
+            int c = sizeClass(capacity);
+            bytes.putLong((int) addr, small[c]);
+            small[c] = addr;
+        } else {
+            large.computeIfAbsent(capacity, k -> new ArrayDeque<>()).push(addr);
+        }
+    }
+
+    private long takeLarge(int capacity) {
+        Map.Entry<Integer, Deque<Long>> entry = large.ceilingEntry(capacity);
+        if (entry == null) {
+            return 0;
+        }
+        long addr = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            large.remove(entry.getKey());
+        }
+        return addr;
+    }
+
+    // 容量 MIN_SMALL << c 是能放下 size 的最小一档
+    private static int sizeClass(int size) {
+        return size <= MIN_SMALL ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SMALL);
+    }
+
+    /**
+     * 从顶上划出 size 字节，按 8 字节对齐，空间不够时整块翻倍
+     */
+    private long reserve(long size) throws VmException {
+        if (size > Integer.MAX_VALUE - top - ALIGN) {
+            throw new VmException("cannot allocate " + size + " bytes");
+        }
+        long addr = top;
+        int end = (int) (top + (size + ALIGN - 1) / ALIGN * ALIGN);
+        if (end > bytes.capacity()) {
+            int capacity = bytes.capacity();
+            while (capacity < end) {
+                capacity = capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2;
+            }
+            ByteBuffer bigger = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer used = bytes.duplicate();
+            used.position(0).limit(top);
+            bigger.put(used).clear();
+            bytes = bigger;
+        }
+        top = Math.max(end, top + ALIGN);
+        return addr;
+    }
+
+    long load(long addr, int size) throws VmException {
+        int at = check(addr, size);
+        switch (size) {
+            case 1:
+                return bytes.get(at) & 0xffL;
+            case 2:
+                return bytes.getShort(at) & 0xffffL;
+            case 4:
+                return bytes.getInt(at) & 0xffffffffL;
+            default:
+                return bytes.getLong(at);
+        }
+    }
+
+    void store(long addr, int size, long value) throws VmException {
+        int at = check(addr, size);
+        switch (size) {
+            case 1:
+                bytes.put(at, (byte) value);
+                break;
+            case 2:
+                bytes.putShort(at, (short) value);
+                break;
+            case 4:
+                bytes.putInt(at, (int) value);
+                break;
+            default:
+                bytes.putLong(at, value);
+                break;
+        }
+    }
+
+    private int check(long addr, int size) throws VmException {
+        if (addr < ALIGN || addr > top - size) {
+            throw new VmException(String.format("bad address 0x%x", addr));
+        }
+        return (int) addr;
+    }
+}
@@ -0,0 +1,185 @@
+package miniplc0java.vm;
+
+import miniplc0java.instruction.Operation;
+
+import java.util.Arrays;
+
+/**
+ * 解释器内部的操作码。
+ *
+ * 和 o0 的操作码不同，这里从 0 开始连续编号，解释器的 switch 能编成一张跳转表；
+ * 融合指令和剖析用的标记排在最后，分别由 Fuser 和 Profile 在加载时生成
+ */
+final class Opcodes {
+    static final int NOP = 0;
+    static final int PUSH = 1;
+    static final int POP = 2;
+    static final int POPN = 3;
+    static final int DUP = 4;
+    static final int LOCA = 5;
+    static final int ARGA = 6;
+    static final int GLOBA = 7;
+    static final int LOAD8 = 8;
+    static final int LOAD16 = 9;
+    static final int LOAD32 = 10;
+    static final int LOAD64 = 11;
+    static final int STORE8 = 12;
+    static final int STORE16 = 13;
+    static final int STORE32 = 14;
+    static final int STORE64 = 15;
+    static final int ALLOC = 16;
+    static final int FREE = 17;
+    static final int STACK_ALLOC = 18;
+    static final int ADD_I = 19;
+    static final int SUB_I = 20;
+    static final int MUL_I = 21;
+    static final int DIV_I = 22;
+    static final int ADD_F = 23;
+    static final int SUB_F = 24;
+    static final int MUL_F = 25;
+    static final int DIV_F = 26;
+    static final int DIV_U = 27;
+    static final int SHL = 28;
+    static final int SHR = 29;
+    static final int AND = 30;
+    static final int OR = 31;
+    static final int XOR = 32;
+    static final int NOT = 33;
+    static final int CMP_I = 34;
+    static final int CMP_U = 35;
+    static final int CMP_F = 36;
+    static final int NEG_I = 37;
+    static final int NEG_F = 38;
+    static final int ITOF = 39;
+    static final int FTOI = 40;
+    static final int SHRL = 41;
+    static final int SET_LT = 42;
+    static final int SET_GT = 43;
+    static final int BR = 44;
+    static final int BR_FALSE = 45;
+    static final int BR_TRUE = 46;
+    static final int CALL = 47;
+    static final int RET = 48;
+    static final int CALL_NAME = 49;
+    static final int SCAN_I = 50;
+    static final int SCAN_C = 51;
+    static final int SCAN_F = 52;
+    static final int PRINT_I = 53;
+    static final int PRINT_C = 54;
+    static final int PRINT_F = 55;
+    static final int PRINT_S = 56;
+    static final int PRINT_LN = 57;
+    static final int PANIC = 58;
+
+    // 融合指令
+    /** loca n; load.64 */
+    static final int LOCA_LOAD = 59;
+    /** arga n; load.64 */
+    static final int ARGA_LOAD = 60;
+    /** globa n; load.64 */
+    static final int GLOBA_LOAD = 61;
+    /** cmp.i; set.lt; br.false x */
+    static final int CMP_LT_BR = 62;
+    /** cmp.i; set.gt; br.false x */
+    static final int CMP_GT_BR = 63;
+    /** push c; add.i 或 push -c; sub.i */
+    static final int ADD_IMM = 64;
+
+    // 剖析用的标记，不是 o0 指令
+    /** 进入函数 x */
+    static final int PROF_ENTER = 65;
+    /** 第 x 个基本块开始 */
+    static final int PROF_BLOCK = 66;
+    /** 从当前函数返回 */
+    static final int PROF_LEAVE = 67;
+
+    static final int COUNT = 68;
+
+    private static final int[] FROM_O0 = new int[256];
+    private static final Operation[] OPERATIONS = new Operation[COUNT];
+
+    static {
+        Arrays.fill(FROM_O0, -1);
+        FROM_O0[0x00] = NOP;
+        FROM_O0[0x01] = PUSH;
+        FROM_O0[0x02] = POP;
+        FROM_O0[0x03] = POPN;
+        FROM_O0[0x04] = DUP;
+        FROM_O0[0x0a] = LOCA;
+        FROM_O0[0x0b] = ARGA;
+        FROM_O0[0x0c] = GLOBA;
+        FROM_O0[0x10] = LOAD8;
+        FROM_O0[0x11] = LOAD16;
+        FROM_O0[0x12] = LOAD32;
+        FROM_O0[0x13] = LOAD64;
+        FROM_O0[0x14] = STORE8;
+        FROM_O0[0x15] = STORE16;
+        FROM_O0[0x16] = STORE32;
+        FROM_O0[0x17] = STORE64;
+        FROM_O0[0x18] = ALLOC;
+        FROM_O0[0x19] = FREE;
+        FROM_O0[0x1a] = STACK_ALLOC;
+        FROM_O0[0x20] = ADD_I;
+        FROM_O0[0x21] = SUB_I;
+        FROM_O0[0x22] = MUL_I;
+        FROM_O0[0x23] = DIV_I;
+        FROM_O0[0x24] = ADD_F;
+        FROM_O0[0x25] = SUB_F;
+        FROM_O0[0x26] = MUL_F;
+        FROM_O0[0x27] = DIV_F;
+        FROM_O0[0x28] = DIV_U;
+        FROM_O0[0x29] = SHL;
+        FROM_O0[0x2a] = SHR;
+        FROM_O0[0x2b] = AND;
+        FROM_O0[0x2c] = OR;
+        FROM_O0[0x2d] = XOR;
+        FROM_O0[0x2e] = NOT;
+        FROM_O0[0x30] = CMP_I;
+        FROM_O0[0x31] = CMP_U;
+        FROM_O0[0x32] = CMP_F;
+        FROM_O0[0x34] = NEG_I;
+        FROM_O0[0x35] = NEG_F;
+        FROM_O0[0x36] = ITOF;
+        FROM_O0[0x37] = FTOI;
+        FROM_O0[0x38] = SHRL;
+        FROM_O0[0x39] = SET_LT;
+        FROM_O0[0x3a] = SET_GT;
+        FROM_O0[0x41] = BR;
+        FROM_O0[0x42] = BR_FALSE;
+        FROM_O0[0x43] = BR_TRUE;
+        FROM_O0[0x48] = CALL;
+        FROM_O0[0x49] = RET;
+        FROM_O0[0x4a] = CALL_NAME;
+        FROM_O0[0x50] = SCAN_I;
+        FROM_O0[0x51] = SCAN_C;
+        FROM_O0[0x52] = SCAN_F;
+        FROM_O0[0x54] = PRINT_I;
+        FROM_O0[0x55] = PRINT_C;
+        FROM_O0[0x56] = PRINT_F;
+        FROM_O0[0x57] = PRINT_S;
+        FROM_O0[0x58] = PRINT_LN;
+        FROM_O0[0xfe] = PANIC;
+        for (int opcode = 0; opcode < FROM_O0.length; opcode++) {
+            if (FROM_O0[opcode] >= 0) {
+                OPERATIONS[FROM_O0[opcode]] = Operation.byOpcode(opcode);
+            }
+        }
+    }
+
+    private Opcodes() {
+    }
+
+    /**
+     * @return o0 操作码对应的内部操作码，不认识时返回 -1
+     */
+    static int fromO0(int opcode) {
+        return FROM_O0[opcode & 0xff];
+    }
+
+    /**
+     * @return 内部操作码对应的 o0 指令，融合指令和标记返回 null
+     */
+    static Operation operation(int op) {
+        return OPERATIONS[op];
+    }
+}
@@ -0,0 +1,346 @@
+package miniplc0java.vm;
+
+import miniplc0java.instruction.Operation;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 剖析一次运行：每个操作码、每条指令、每个函数执行了多少条指令，以及调用关系。
+ *
+ * 加载时在每个基本块开头、函数入口和每条 ret 前插入标记指令，运行时只数基本块，
+ * 每条指令的次数由所在基本块的次数得到。不剖析时代码里没有这些标记，解释器不用多做任何事。
+ * 剖析的代码不做指令融合，也不交给 JIT
+ */
+public final class Profile {
+    /** 调用树超过这么多层时，更深的调用算在最深的那层上，只影响 writeStacks */
+    static final int MAX_TREE_DEPTH = 512;
+
+    // 原来的（插入标记前的）函数
+    private final Function[] functions;
+    // 每个基本块所在的函数和 [start, end)
+    private int[] blockFn = new int[16];
+    private int[] blockStart = new int[16];
+    private int[] blockEnd = new int[16];
+    private int blockCount;
+    private long[] blockHits;
+
+    // 调用关系
+    private final long[] calls;
+    private final long[] inclusive;
+    private final long[] since;
+    private final int[] active;
+    private final Map<Long, long[]> edges = new HashMap<>();
+    private int[] callStack = new int[64];
+    private int callDepth;
+    // 到现在执行过的指令数
+    private long executed;
+
+    private final Node root = new Node(-1, null);
+    private Node current = root;
+    private int treeDepth;
+    // 超过 MAX_TREE_DEPTH 还没返回的调用层数
+    private int overflow;
+
+    /**
+     * 在 functions 里的每个函数插入标记，原地替换
+     */
+    Profile(Function[] functions) {
+        this.functions = functions.clone();
+        for (int f = 0; f < functions.length; f++) {
+            functions[f] = instrument(functions[f]);
+        }
+        blockHits = new long[blockCount];
+        calls = new long[functions.length];
+        inclusive = new long[functions.length];
+        since = new long[functions.length];
+        active = new int[functions.length];
+    }
+
+    private Function instrument(Function fun) {
+        int[] ops = fun.ops;
+        long[] imm = fun.operands;
+        int n = ops.length;
+        boolean[] leader = new boolean[n];
+        leader[0] = true;
+        int rets = 0;
+        for (int i = 0; i < n; i++) {
+            if (Fuser.isBranch(ops[i])) {
+                leader[i + 1 + (int) imm[i]] = true;
+            }
+            if ((Fuser.isBranch(ops[i]) || ops[i] == Opcodes.RET || ops[i] == Opcodes.PANIC) && i + 1 < n) {
+                leader[i + 1] = true;
+            }
+            if (ops[i] == Opcodes.RET) {
+                rets++;
+            }
+        }
+        int leaders = 0;
+        for (boolean l : leader) {
+            if (l) {
+                leaders++;
+            }
+        }
+
+        // 入口一个标记，每个基本块一个，每条 ret 前一个
+        int size = 1 + leaders + rets + n;
+        int[] newOps = new int[size];
+        long[] newImm = new long[size];
+        // pos[i]：原来第 i 条指令所在基本块的标记的位置，跳转都跳到这里；at[i]：原来第 i 条指令的位置
+        int[] pos = new int[n];
+        int[] at = new int[n];
+        int m = 0;
+        newOps[m] = Opcodes.PROF_ENTER;
+        newImm[m++] = fun.id;
+        for (int i = 0; i < n; i++) {
+            if (leader[i]) {
+                int end = i + 1;
+                while (end < n && !leader[end]) {
+                    end++;
+                }
+                newOps[m] = Opcodes.PROF_BLOCK;
+                newImm[m] = addBlock(fun.id, i, end);
+                pos[i] = m++;
+            }
+            if (ops[i] == Opcodes.RET) {
+                newOps[m++] = Opcodes.PROF_LEAVE;
+            }
+            at[i] = m;
+            newOps[m] = ops[i];
+            newImm[m++] = imm[i];
+        }
+        for (int i = 0; i < n; i++) {
+            if (Fuser.isBranch(ops[i])) {
+                newImm[at[i]] = pos[i + 1 + (int) imm[i]] - (at[i] + 1);
+            }
+        }
+        return new Function(fun.id, fun.name, fun.returnSize, fun.paramSize, fun.localSize, newOps, newImm);
+    }
+
+    private int addBlock(int fn, int start, int end) {
+        if (blockCount == blockFn.length) {
+            blockFn = Arrays.copyOf(blockFn, blockCount * 2);
+            blockStart = Arrays.copyOf(blockStart, blockCount * 2);
+            blockEnd = Arrays.copyOf(blockEnd, blockCount * 2);
+        }
+        blockFn[blockCount] = fn;
+        blockStart[blockCount] = start;
+        blockEnd[blockCount] = end;
+        return blockCount++;
+    }
+
+    // ---- 解释器执行标记时调用 ----
+
+    void enter(int fn) {
+        calls[fn]++;
+        if (callDepth > 0) {
+            long key = (long) callStack[callDepth - 1] << 32 | fn;
+            edges.computeIfAbsent(key, k -> new long[1])[0]++;
+        }
+        if (callDepth == callStack.length) {
+            callStack = Arrays.copyOf(callStack, callDepth * 2);
+        }
+        callStack[callDepth++] = fn;
+        if (active[fn]++ == 0) {
+            since[fn] = executed;
+        }
+
+        if (treeDepth == MAX_TREE_DEPTH) {
+            overflow++;
+            return;
+        }
+        current = current.child(fn);
+        treeDepth++;
+    }
+
+    void block(int id) {
+        blockHits[id]++;
+        int size = blockEnd[id] - blockStart[id];
+        executed += size;
+        current.self += size;
+    }
+
+    void leave() {
+        int fn = callStack[--callDepth];
+        if (--active[fn] == 0) {
+            inclusive[fn] += executed - since[fn];
+        }
+        if (overflow > 0) {
+            overflow--;
+            return;
+        }
+        current = current.parent;
+        treeDepth--;
+    }
+
+    // ---- 结果 ----
+
+    /**
+     * @return 执行过的 o0 指令条数
+     */
+    public long executed() {
+        return executed;
+    }
+
+    /**
+     * @return 叫 name 的函数被调用的次数，没有这个函数时返回 -1
+     */
+    public long calls(String name) {
+        for (Function fun : functions) {
+            if (fun.name.equals(name)) {
+                return calls[fun.id];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 每条指令执行的次数，下标是函数 id 和指令在函数里的位置
+     */
+    private long[][] instructionHits() {
+        long[][] hits = new long[functions.length][];
+        for (Function fun : functions) {
+            hits[fun.id] = new long[fun.ops.length];
+        }
+        for (int b = 0; b < blockCount; b++) {
+            Arrays.fill(hits[blockFn[b]], blockStart[b], blockEnd[b], blockHits[b]);
+        }
+        return hits;
+    }
+
+    // 还没返回的函数也算到现在为止
+    private long inclusive(int fn) {
+        return active[fn] > 0 ? inclusive[fn] + executed - since[fn] : inclusive[fn];
+    }
+
+    /**
+     * 文字报告：函数、调用关系、操作码，最后是每条执行过的指令
+     */
+    public void writeReport(PrintStream out) {
+        long[][] hits = instructionHits();
+        out.printf("instructions executed: %d%n%n", executed);
+
+        long[] exclusive = new long[functions.length];
+        long[] opcodes = new long[Opcodes.COUNT];
+        for (Function fun : functions) {
+            for (int pc = 0; pc < fun.ops.length; pc++) {
+                exclusive[fun.id] += hits[fun.id][pc];
+                opcodes[fun.ops[pc]] += hits[fun.id][pc];
+            }
+        }
+
+        out.printf("%-20s %12s %14s %14s%n", "function", "calls", "exclusive", "inclusive");
+        Integer[] order = new Integer[functions.length];
+        for (int f = 0; f < order.length; f++) {
+            order[f] = f;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(exclusive[b], exclusive[a]));
+        for (int f : order) {
+            if (calls[f] > 0) {
+                out.printf("%-20s %12d %14d %14d%n", functions[f].name, calls[f], exclusive[f], inclusive(f));
+            }
+        }
+
+        out.printf("%n%-41s %12s%n", "call graph", "calls");
+        List<Map.Entry<Long, long[]>> sorted = new ArrayList<>(edges.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for (Map.Entry<Long, long[]> edge : sorted) {
+            String caller = functions[(int) (edge.getKey() >>> 32)].name;
+            String callee = functions[(int) (long) edge.getKey()].name;
+            out.printf("%-20s -> %-17s %12d%n", caller, callee, edge.getValue()[0]);
+        }
+
+        out.printf("%n%-20s %12s %7s%n", "opcode", "count", "share");
+        Integer[] ops = new Integer[Opcodes.COUNT];
+        for (int op = 0; op < ops.length; op++) {
+            ops[op] = op;
+        }
+        Arrays.sort(ops, (a, b) -> Long.compare(opcodes[b], opcodes[a]));
+        for (int op : ops) {
+            if (opcodes[op] > 0) {
+                out.printf("%-20s %12d %6.2f%%%n", Opcodes.operation(op), opcodes[op], 100.0 * opcodes[op] / executed);
+            }
+        }
+
+        out.printf("%ninstructions%n");
+        for (Function fun : functions) {
+            if (calls[fun.id] == 0) {
+                continue;
+            }
+            out.printf("%s:%n", fun.name);
+            for (int pc = 0; pc < fun.ops.length; pc++) {
+                Operation op = Opcodes.operation(fun.ops[pc]);
+                String text = op.hasParam() ? op + " " + fun.operands[pc] : op.toString();
+                out.printf("  %5d  %-24s %12d%n", pc, text, hits[fun.id][pc]);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 折叠的调用栈，每行是 "_start;main;fib 指令数"，可以直接交给 flamegraph.pl
+     */
+    public void writeStacks(PrintStream out) {
+        // 不用递归，调用树可能很深
+        Deque<Node> nodes = new ArrayDeque<>();
+        Deque<Integer> lengths = new ArrayDeque<>();
+        StringBuilder path = new StringBuilder();
+        for (Node child = root.child; child != null; child = child.sibling) {
+            nodes.push(child);
+            lengths.push(0);
+        }
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            path.setLength(lengths.pop());
+            if (path.length() > 0) {
+                path.append(';');
+            }
+            path.append(functions[node.fn].name);
+            if (node.self > 0) {
+                out.print(path);
+                out.print(' ');
+                out.println(node.self);
+            }
+            for (Node child = node.child; child != null; child = child.sibling) {
+                nodes.push(child);
+                lengths.push(path.length());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 调用树的一个节点：从根到这里的一条调用路径
+     */
+    private static final class Node {
+        final int fn;
+        final Node parent;
+        Node child;
+        Node sibling;
+        // 在这条路径上、不算调用的函数时执行的指令数
+        long self;
+
+        Node(int fn, Node parent) {
+            this.fn = fn;
+            this.parent = parent;
+        }
+
+        Node child(int fn) {
+            for (Node c = child; c != null; c = c.sibling) {
+                if (c.fn == fn) {
+                    return c;
+                }
+            }
+            Node c = new Node(fn, this);
+            c.sibling = child;
+            child = c;
+            return c;
+        }
+    }
+}
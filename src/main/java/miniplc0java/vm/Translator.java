@@ -0,0 +1,834 @@
+package miniplc0java.vm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * 把一个加载好的函数翻译成 JVM 字节码，结果由 Jit 定义成类。
+ *
+ * 先沿控制流算出每条指令前操作数栈的样子，返回值、参数、局部变量和操作数栈的每一层各占一个 long 局部变量，
+ * 每条 o0 指令翻译完 JVM 的操作数栈都是空的。loca / arga 压的地址不存下来，只记住它指向哪个变量，
+ * 之后的 load.64 / store.64 直接读写那个变量。地址被拿去做别的事、栈深度对不上、返回值多于一个时放弃翻译，
+ * 函数留给解释器
+ */
+final class Translator {
+    static final String VM = "miniplc0java/vm/Interpreter";
+    static final String JIT = "miniplc0java/vm/Jit";
+    /** enter 和 osr 的描述符：(解释器, 解释器的栈, bp) 返回值 */
+    static final String FRAME_DESC = "(L" + VM + ";[JI)J";
+    private static final String LINK_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+            + "Ljava/lang/invoke/MethodType;I)Ljava/lang/invoke/CallSite;";
+    private static final int MAX_DEPTH = 1024;
+    private static final int MAX_ARGS = 127;
+    // JVM 的局部变量最多 65535 个，long 占两个
+    private static final int MAX_LOCALS = 0xffff / 2 - MAX_ARGS - MAX_DEPTH - 2;
+
+    private final Image image;
+    private final Memory memory;
+    private final Function fn;
+    // 返回值和参数的个数，它们在局部变量之前
+    private final int args;
+    // 每条指令执行前的操作数栈，0 表示普通的值，k > 0 表示指向第 k - 1 个变量的地址；不可达时为 null
+    private final int[][] stacks;
+    private int maxDepth;
+    private int maxCallArgs;
+
+    private Translator(Image image, Memory memory, Function fn) {
+        this.image = image;
+        this.memory = memory;
+        this.fn = fn;
+        this.args = fn.returnSize + fn.paramSize;
+        this.stacks = new int[fn.ops.length][];
+    }
+
+    /**
+     * @return 翻译不了时返回 null
+     */
+    static Translator of(Image image, Memory memory, Function fn) {
+        Translator t = new Translator(image, memory, fn);
+        if (fn.returnSize > 1 || t.args > MAX_ARGS || fn.localSize > MAX_LOCALS || !t.analyse()) {
+            return null;
+        }
+        return t;
+    }
+
+    /**
+     * @return 能从第 pc 条指令切进来时返回 true
+     */
+    boolean canEnterAt(int pc) {
+        return stacks[pc] != null;
+    }
+
+    static String desc(int returnSize, int argCount) {
+        StringBuilder sb = new StringBuilder("(L" + VM + ";");
+        for (int i = 0; i < argCount; i++) {
+            sb.append('J');
+        }
+        return sb.append(returnSize > 0 ? ")J" : ")V").toString();
+    }
+
+    // ---- 分析 ----
+
+    private boolean analyse() {
+        int n = fn.ops.length;
+        stacks[0] = new int[0];
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int pc = work.pop();
+            int op = fn.ops[pc];
+            int[] out = transfer(op, fn.operands[pc], stacks[pc]);
+            if (out == null) {
+                return false;
+            }
+            maxDepth = Math.max(maxDepth, out.length);
+            if (maxDepth > MAX_DEPTH) {
+                return false;
+            }
+            if (Fuser.isBranch(op) && !flow(pc + 1 + (int) fn.operands[pc], out, work)) {
+                return false;
+            }
+            if (op != Opcodes.BR && op != Opcodes.RET && op != Opcodes.PANIC && (pc + 1 >= n || !flow(pc + 1, out, work))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean flow(int pc, int[] stack, Deque<Integer> work) {
+        if (stacks[pc] == null) {
+            stacks[pc] = stack;
+            work.push(pc);
+            return true;
+        }
+        return Arrays.equals(stacks[pc], stack);
+    }
+
+    /**
+     * @return 执行之后的栈；指令用到了不支持的东西时返回 null
+     */
+    private int[] transfer(int op, long x, int[] in) {
+        int d = in.length;
+        switch (op) {
+            case Opcodes.NOP:
+            case Opcodes.BR:
+            case Opcodes.RET:
+            case Opcodes.PANIC:
+            case Opcodes.PRINT_LN:
+                return in;
+            case Opcodes.PUSH:
+            case Opcodes.GLOBA:
+            case Opcodes.SCAN_I:
+            case Opcodes.SCAN_C:
+            case Opcodes.SCAN_F:
+            case Opcodes.LOCA_LOAD:
+            case Opcodes.ARGA_LOAD:
+            case Opcodes.GLOBA_LOAD:
+                return push(in, 0);
+            case Opcodes.POP:
+                return d >= 1 ? Arrays.copyOf(in, d - 1) : null;
+            case Opcodes.POPN:
+                return d >= x ? Arrays.copyOf(in, d - (int) x) : null;
+            case Opcodes.DUP:
+                return d >= 1 ? push(in, in[d - 1]) : null;
+            case Opcodes.LOCA:
+                return push(in, 1 + args + (int) x);
+            case Opcodes.ARGA:
+                return push(in, 1 + (int) x);
+            case Opcodes.LOAD64:
+                if (d >= 1 && in[d - 1] != 0) {
+                    return replaceTop(in, 1);
+                }
+                return values(in, 1) ? in : null;
+            case Opcodes.LOAD8:
+            case Opcodes.LOAD16:
+            case Opcodes.LOAD32:
+            case Opcodes.ALLOC:
+            case Opcodes.NOT:
+            case Opcodes.NEG_I:
+            case Opcodes.NEG_F:
+            case Opcodes.ITOF:
+            case Opcodes.FTOI:
+            case Opcodes.SET_LT:
+            case Opcodes.SET_GT:
+            case Opcodes.ADD_IMM:
+                return values(in, 1) ? in : null;
+            case Opcodes.STORE64:
+                if (d >= 2 && in[d - 2] != 0 && in[d - 1] == 0) {
+                    return Arrays.copyOf(in, d - 2);
+                }
+                return values(in, 2) ? Arrays.copyOf(in, d - 2) : null;
+            case Opcodes.STORE8:
+            case Opcodes.STORE16:
+            case Opcodes.STORE32:
+            case Opcodes.CMP_LT_BR:
+            case Opcodes.CMP_GT_BR:
+                return values(in, 2) ? Arrays.copyOf(in, d - 2) : null;
+            case Opcodes.FREE:
+            case Opcodes.BR_FALSE:
+            case Opcodes.BR_TRUE:
+            case Opcodes.PRINT_I:
+            case Opcodes.PRINT_C:
+            case Opcodes.PRINT_F:
+            case Opcodes.PRINT_S:
+                return values(in, 1) ? Arrays.copyOf(in, d - 1) : null;
+            case Opcodes.STACK_ALLOC:
+                return x <= MAX_DEPTH ? Arrays.copyOf(in, d + (int) x) : null;
+            case Opcodes.ADD_I:
+            case Opcodes.SUB_I:
+            case Opcodes.MUL_I:
+            case Opcodes.DIV_I:
+            case Opcodes.DIV_U:
+            case Opcodes.ADD_F:
+            case Opcodes.SUB_F:
+            case Opcodes.MUL_F:
+            case Opcodes.DIV_F:
+            case Opcodes.SHL:
+            case Opcodes.SHR:
+            case Opcodes.SHRL:
+            case Opcodes.AND:
+            case Opcodes.OR:
+            case Opcodes.XOR:
+            case Opcodes.CMP_I:
+            case Opcodes.CMP_U:
+            case Opcodes.CMP_F:
+                return values(in, 2) ? Arrays.copyOf(in, d - 1) : null;
+            case Opcodes.CALL:
+                return call(in, image.functions[(int) x]);
+            case Opcodes.CALL_NAME: {
+                String name = image.globalString((int) x);
+                Function callee = image.function(name);
+                if (callee != null) {
+                    return call(in, callee);
+                }
+                switch (name) {
+                    case "getint":
+                    case "getdouble":
+                    case "getchar":
+                        return values(in, 1) ? in : null;
+                    case "putint":
+                    case "putdouble":
+                    case "putchar":
+                    case "putstr":
+                        return values(in, 1) ? Arrays.copyOf(in, d - 1) : null;
+                    case "putln":
+                        return in;
+                    default:
+                        return null;
+                }
+            }
+            default:
+                return null;
+        }
+    }
+
+    private int[] call(int[] in, Function callee) {
+        int n = callee.returnSize + callee.paramSize;
+        if (callee.returnSize > 1 || n > MAX_ARGS || !values(in, n)) {
+            return null;
+        }
+        maxCallArgs = Math.max(maxCallArgs, n);
+        return Arrays.copyOf(in, in.length - callee.paramSize);
+    }
+
+    // 栈顶 k 个都是普通的值
+    private static boolean values(int[] in, int k) {
+        if (in.length < k) {
+            return false;
+        }
+        for (int i = in.length - k; i < in.length; i++) {
+            if (in[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] push(int[] in, int tag) {
+        int[] out = Arrays.copyOf(in, in.length + 1);
+        out[in.length] = tag;
+        return out;
+    }
+
+    private static int[] replaceTop(int[] in, int k) {
+        int[] out = Arrays.copyOf(in, in.length);
+        for (int i = in.length - k; i < in.length; i++) {
+            out[i] = 0;
+        }
+        return out;
+    }
+
+    // ---- 生成 ----
+
+    /**
+     * 普通入口：run 是函数本身，参数按顺序对应返回值和参数；enter 从解释器的栈上取参数调用 run
+     *
+     * @return class 文件；方法太大时返回 null
+     */
+    byte[] entryClass(String name) {
+        ClassFile cf = new ClassFile(name);
+        cf.addStaticField("jit", "L" + JIT + ";");
+        String runDesc = desc(fn.returnSize, args);
+        Body run = new Body(cf, name, 1, -1);
+        if (!run.emit()) {
+            return null;
+        }
+        run.addTo("run", runDesc);
+
+        ClassFile.Code enter = new ClassFile.Code();
+        enter.u1(0x2a);
+        for (int v = 0; v < args; v++) {
+            enter.u1(0x2b).u1(0x1c);
+            iconst(cf, enter, v);
+            enter.u1(0x60).u1(0x2f);
+        }
+        enter.u1(0xb8).u2(cf.methodRef(name, "run", runDesc));
+        if (fn.returnSize == 0) {
+            enter.u1(0x09);
+        }
+        enter.u1(0xad);
+        cf.addStaticMethod("enter", FRAME_DESC, enter, 1 + 2 * args + 3, 3, null, 0);
+        return cf.toBytes();
+    }
+
+    /**
+     * 从第 pc 条指令开始执行的入口 osr：先把解释器栈帧里的变量和操作数栈读进来，再跳到 pc。
+     * 函数返回时返回值留给解释器处理
+     *
+     * @return class 文件；方法太大时返回 null
+     */
+    byte[] loopClass(String name, int pc) {
+        ClassFile cf = new ClassFile(name);
+        cf.addStaticField("jit", "L" + JIT + ";");
+        Body osr = new Body(cf, name, 3, pc);
+        if (!osr.emit()) {
+            return null;
+        }
+        osr.addTo("osr", FRAME_DESC);
+        return cf.toBytes();
+    }
+
+    private static void iconst(ClassFile cf, ClassFile.Code code, int v) {
+        if (v >= -1 && v <= 5) {
+            code.u1(0x03 + v);
+        } else if (v == (byte) v) {
+            code.u1(0x10).u1(v);
+        } else if (v == (short) v) {
+            code.u1(0x11).u2(v);
+        } else {
+            code.u1(0x13).u2(cf.integer(v));
+        }
+    }
+
+    /**
+     * 一个方法的代码。JVM 局部变量从 base 开始，先是返回值和参数，然后是局部变量，最后是操作数栈
+     */
+    private final class Body {
+        private final ClassFile cf;
+        private final String className;
+        private final int base;
+        // 切进来的位置，普通入口是 -1
+        private final int entry;
+        private final ClassFile.Code code = new ClassFile.Code();
+        // 解释器里一个栈帧占的槽数，普通入口进出时在解释器的栈上预留
+        private final int frameSlots;
+
+        Body(ClassFile cf, String className, int base, int entry) {
+            this.cf = cf;
+            this.className = className;
+            this.base = base;
+            this.entry = entry;
+            this.frameSlots = Math.max(1, fn.localSize + maxDepth);
+        }
+
+        private int var(int v) {
+            return base + 2 * v;
+        }
+
+        private int slot(int d) {
+            return base + 2 * (args + fn.localSize + d);
+        }
+
+        private int longs() {
+            return args + fn.localSize + maxDepth;
+        }
+
+        private void lload(int index) {
+            local(0x16, index);
+        }
+
+        private void lstore(int index) {
+            local(0x37, index);
+        }
+
+        private void local(int opcode, int index) {
+            if (index <= 0xff) {
+                code.u1(opcode).u1(index);
+            } else {
+                code.u1(0xc4).u1(opcode).u2(index);
+            }
+        }
+
+        private void lconst(long v) {
+            if (v == 0 || v == 1) {
+                code.u1(0x09 + (int) v);
+            } else {
+                code.u1(0x14).u2(cf.longConst(v));
+            }
+        }
+
+        private void iconst(int v) {
+            Translator.iconst(cf, code, v);
+        }
+
+        private void vm() {
+            code.u1(0x2a);
+        }
+
+        private void invoke(String owner, String name, String desc) {
+            code.u1(0xb8).u2(cf.methodRef(owner, name, desc));
+        }
+
+        private void helper(String name, String desc) {
+            invoke(JIT, name, desc);
+        }
+
+        // 从解释器栈帧的第 offset 个槽读到 JVM 局部变量 index
+        private void fromFrame(int offset, int index) {
+            code.u1(0x2b).u1(0x1c);
+            iconst(offset);
+            code.u1(0x60).u1(0x2f);
+            lstore(index);
+        }
+
+        /**
+         * @return 代码放得下时返回 true
+         */
+        boolean emit() {
+            if (entry < 0) {
+                vm();
+                iconst(frameSlots);
+                helper("reserve", "(L" + VM + ";I)V");
+                for (int v = args; v < longs(); v++) {
+                    lconst(0);
+                    lstore(var(v));
+                }
+            } else {
+                int[] stack = stacks[entry];
+                for (int v = 0; v < longs(); v++) {
+                    int d = v - args - fn.localSize;
+                    if (d < 0 || d < stack.length && stack[d] == 0) {
+                        fromFrame(v, var(v));
+                    } else {
+                        lconst(0);
+                        lstore(var(v));
+                    }
+                }
+                code.jump(0xa7, entry);
+            }
+            for (int pc = 0; pc < fn.ops.length; pc++) {
+                if (stacks[pc] != null) {
+                    code.mark(pc);
+                    instruction(pc, fn.ops[pc], fn.operands[pc], stacks[pc]);
+                }
+            }
+            return code.size() <= Short.MAX_VALUE && code.resolve();
+        }
+
+        void addTo(String name, String desc) {
+            ClassFile.Bytes frame = new ClassFile.Bytes().u1(7).u2(cf.classRef(VM));
+            int count = 1;
+            if (base == 3) {
+                frame.u1(7).u2(cf.classRef("[J")).u1(1);
+                count += 2;
+            }
+            for (int v = 0; v < longs(); v++) {
+                frame.u1(4);
+            }
+            count += longs();
+            int maxStack = Math.max(8, 1 + 2 * maxCallArgs);
+            cf.addStaticMethod(name, desc, code, maxStack, base + 2 * longs(), frame, count);
+        }
+
+        private void unary(int opcode, int d) {
+            lload(slot(d - 1));
+            code.u1(opcode);
+            lstore(slot(d - 1));
+        }
+
+        private void unary(String helper, int d) {
+            lload(slot(d - 1));
+            helper(helper, "(J)J");
+            lstore(slot(d - 1));
+        }
+
+        private void binary(int opcode, int d) {
+            lload(slot(d - 2));
+            lload(slot(d - 1));
+            code.u1(opcode);
+            lstore(slot(d - 2));
+        }
+
+        private void shift(int opcode, int d) {
+            lload(slot(d - 2));
+            lload(slot(d - 1));
+            code.u1(0x88).u1(opcode);
+            lstore(slot(d - 2));
+        }
+
+        private void binary(String helper, int d) {
+            lload(slot(d - 2));
+            lload(slot(d - 1));
+            helper(helper, "(JJ)J");
+            lstore(slot(d - 2));
+        }
+
+        private void read(String helper, int slot) {
+            vm();
+            helper(helper, "(L" + VM + ";)J");
+            lstore(slot);
+        }
+
+        private void write(String helper, int d) {
+            vm();
+            lload(slot(d - 1));
+            helper(helper, "(L" + VM + ";J)V");
+        }
+
+        private void load(int size, int d) {
+            vm();
+            lload(slot(d - 1));
+            iconst(size);
+            helper("load", "(L" + VM + ";JI)J");
+            lstore(slot(d - 1));
+        }
+
+        private void store(int size, int d) {
+            vm();
+            lload(slot(d - 2));
+            iconst(size);
+            lload(slot(d - 1));
+            helper("store", "(L" + VM + ";JIJ)V");
+        }
+
+        private void branch(int opcode, int d, int target) {
+            lload(slot(d - 1));
+            code.u1(0x09).u1(0x94);
+            code.jump(opcode, target);
+        }
+
+        private void compareBranch(int opcode, int d, int target) {
+            lload(slot(d - 2));
+            lload(slot(d - 1));
+            code.u1(0x94);
+            code.jump(opcode, target);
+        }
+
+        private void call(Function callee, int d) {
+            int n = callee.returnSize + callee.paramSize;
+            String desc = desc(callee.returnSize, n);
+            vm();
+            for (int k = d - n; k < d; k++) {
+                lload(slot(k));
+            }
+            if (callee == fn && entry < 0) {
+                invoke(className, "run", desc);
+            } else {
+                code.u1(0xba).u2(cf.invokeDynamic(JIT, "link", LINK_DESC, callee.id, "call", desc)).u2(0);
+            }
+            if (callee.returnSize > 0) {
+                lstore(slot(d - n));
+            }
+        }
+
+        private void ret() {
+            if (entry < 0) {
+                vm();
+                iconst(frameSlots);
+                helper("release", "(L" + VM + ";I)V");
+            }
+            if (fn.returnSize > 0) {
+                lload(var(0));
+                code.u1(0xad);
+            } else if (entry < 0) {
+                code.u1(0xb1);
+            } else {
+                code.u1(0x09).u1(0xad);
+            }
+            code.end();
+        }
+
+        private void instruction(int pc, int op, long x, int[] in) {
+            int d = in.length;
+            int target = pc + 1 + (int) x;
+            switch (op) {
+                case Opcodes.NOP:
+                case Opcodes.POP:
+                case Opcodes.POPN:
+                case Opcodes.LOCA:
+                case Opcodes.ARGA:
+                    break;
+                case Opcodes.PUSH:
+                    lconst(x);
+                    lstore(slot(d));
+                    break;
+                case Opcodes.DUP:
+                    if (in[d - 1] == 0) {
+                        lload(slot(d - 1));
+                        lstore(slot(d));
+                    }
+                    break;
+                case Opcodes.GLOBA:
+                    lconst(memory.global((int) x));
+                    lstore(slot(d));
+                    break;
+                case Opcodes.LOAD8:
+                    load(1, d);
+                    break;
+                case Opcodes.LOAD16:
+                    load(2, d);
+                    break;
+                case Opcodes.LOAD32:
+                    load(4, d);
+                    break;
+                case Opcodes.LOAD64:
+                    if (in[d - 1] != 0) {
+                        lload(var(in[d - 1] - 1));
+                        lstore(slot(d - 1));
+                    } else {
+                        load(8, d);
+                    }
+                    break;
+                case Opcodes.STORE8:
+                    store(1, d);
+                    break;
+                case Opcodes.STORE16:
+                    store(2, d);
+                    break;
+                case Opcodes.STORE32:
+                    store(4, d);
+                    break;
+                case Opcodes.STORE64:
+                    if (in[d - 2] != 0) {
+                        lload(slot(d - 1));
+                        lstore(var(in[d - 2] - 1));
+                    } else {
+                        store(8, d);
+                    }
+                    break;
+                case Opcodes.ALLOC:
+                    vm();
+                    lload(slot(d - 1));
+                    helper("alloc", "(L" + VM + ";J)J");
+                    lstore(slot(d - 1));
+                    break;
+                case Opcodes.FREE:
+                    write("free", d);
+                    break;
+                case Opcodes.STACK_ALLOC:
+                    for (int k = 0; k < x; k++) {
+                        lconst(0);
+                        lstore(slot(d + k));
+                    }
+                    break;
+                case Opcodes.ADD_I:
+                    binary(0x61, d);
+                    break;
+                case Opcodes.SUB_I:
+                    binary(0x65, d);
+                    break;
+                case Opcodes.MUL_I:
+                    binary(0x69, d);
+                    break;
+                case Opcodes.AND:
+                    binary(0x7f, d);
+                    break;
+                case Opcodes.OR:
+                    binary(0x81, d);
+                    break;
+                case Opcodes.XOR:
+                    binary(0x83, d);
+                    break;
+                case Opcodes.SHL:
+                    shift(0x79, d);
+                    break;
+                case Opcodes.SHR:
+                    shift(0x7b, d);
+                    break;
+                case Opcodes.SHRL:
+                    shift(0x7d, d);
+                    break;
+                case Opcodes.DIV_I:
+                    binary("divI", d);
+                    break;
+                case Opcodes.DIV_U:
+                    binary("divU", d);
+                    break;
+                case Opcodes.ADD_F:
+                    binary("addF", d);
+                    break;
+                case Opcodes.SUB_F:
+                    binary("subF", d);
+                    break;
+                case Opcodes.MUL_F:
+                    binary("mulF", d);
+                    break;
+                case Opcodes.DIV_F:
+                    binary("divF", d);
+                    break;
+                case Opcodes.CMP_I:
+                    lload(slot(d - 2));
+                    lload(slot(d - 1));
+                    code.u1(0x94).u1(0x85);
+                    lstore(slot(d - 2));
+                    break;
+                case Opcodes.CMP_U:
+                    lload(slot(d - 2));
+                    lload(slot(d - 1));
+                    invoke("java/lang/Long", "compareUnsigned", "(JJ)I");
+                    code.u1(0x85);
+                    lstore(slot(d - 2));
+                    break;
+                case Opcodes.CMP_F:
+                    binary("cmpF", d);
+                    break;
+                case Opcodes.NOT:
+                    unary("not", d);
+                    break;
+                case Opcodes.NEG_I:
+                    unary(0x75, d);
+                    break;
+                case Opcodes.NEG_F:
+                    unary("negF", d);
+                    break;
+                case Opcodes.ITOF:
+                    unary("itof", d);
+                    break;
+                case Opcodes.FTOI:
+                    unary("ftoi", d);
+                    break;
+                case Opcodes.SET_LT:
+                    unary("setLt", d);
+                    break;
+                case Opcodes.SET_GT:
+                    unary("setGt", d);
+                    break;
+                case Opcodes.BR:
+                    code.jump(0xa7, target);
+                    break;
+                case Opcodes.BR_FALSE:
+                    branch(0x99, d, target);
+                    break;
+                case Opcodes.BR_TRUE:
+                    branch(0x9a, d, target);
+                    break;
+                case Opcodes.CMP_LT_BR:
+                    compareBranch(0x9c, d, target);
+                    break;
+                case Opcodes.CMP_GT_BR:
+                    compareBranch(0x9e, d, target);
+                    break;
+                case Opcodes.CALL:
+                    call(image.functions[(int) x], d);
+                    break;
+                case Opcodes.CALL_NAME: {
+                    String name = image.globalString((int) x);
+                    Function callee = image.function(name);
+                    if (callee != null) {
+                        call(callee, d);
+                        break;
+                    }
+                    switch (name) {
+                        case "getint":
+                            read("scanI", slot(d - 1));
+                            break;
+                        case "getdouble":
+                            read("scanF", slot(d - 1));
+                            break;
+                        case "getchar":
+                            read("scanC", slot(d - 1));
+                            break;
+                        case "putint":
+                            write("printI", d);
+                            break;
+                        case "putdouble":
+                            write("printF", d);
+                            break;
+                        case "putchar":
+                            write("printC", d);
+                            break;
+                        case "putstr":
+                            write("printS", d);
+                            break;
+                        default:
+                            vm();
+                            helper("printLn", "(L" + VM + ";)V");
+                            break;
+                    }
+                    break;
+                }
+                case Opcodes.RET:
+                    ret();
+                    break;
+                case Opcodes.SCAN_I:
+                    read("scanI", slot(d));
+                    break;
+                case Opcodes.SCAN_C:
+                    read("scanC", slot(d));
+                    break;
+                case Opcodes.SCAN_F:
+                    read("scanF", slot(d));
+                    break;
+                case Opcodes.PRINT_I:
+                    write("printI", d);
+                    break;
+                case Opcodes.PRINT_C:
+                    write("printC", d);
+                    break;
+                case Opcodes.PRINT_F:
+                    write("printF", d);
+                    break;
+                case Opcodes.PRINT_S:
+                    write("printS", d);
+                    break;
+                case Opcodes.PRINT_LN:
+                    vm();
+                    helper("printLn", "(L" + VM + ";)V");
+                    break;
+                case Opcodes.PANIC:
+                    vm();
+                    iconst(fn.id);
+                    iconst(pc);
+                    helper("panic", "(L" + VM + ";II)Lminiplc0java/vm/VmException;");
+                    code.u1(0xbf);
+                    code.end();
+                    break;
+                case Opcodes.LOCA_LOAD:
+                    lload(var(args + (int) x));
+                    lstore(slot(d));
+                    break;
+                case Opcodes.ARGA_LOAD:
+                    lload(var((int) x));
+                    lstore(slot(d));
+                    break;
+                case Opcodes.GLOBA_LOAD:
+                    vm();
+                    lconst(memory.global((int) x));
+                    iconst(8);
+                    helper("load", "(L" + VM + ";JI)J");
+                    lstore(slot(d));
+                    break;
+                case Opcodes.ADD_IMM:
+                    lload(slot(d - 1));
+                    lconst(x);
+                    code.u1(0x61);
+                    lstore(slot(d - 1));
+                    break;
+                default:
+                    // 分析时已经排除
+                    throw new IllegalStateException("unexpected opcode " + op);
+            }
+        }
+    }
+}
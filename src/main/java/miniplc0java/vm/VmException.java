@@ -0,0 +1,13 @@
+package miniplc0java.vm;
+
+/**
+ * 加载或运行 o0 时的错误，比如格式不对、除以零、栈溢出、panic
+ */
+public class VmException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public VmException(String message) {
+        super(message);
+    }
+}
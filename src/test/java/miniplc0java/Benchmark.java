@@ -0,0 +1,198 @@
+package miniplc0java;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Globaldef;
+import miniplc0java.program.O0Writer;
+import miniplc0java.program.Program;
+import miniplc0java.tokenizer.ParallelTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.Fusion;
+import miniplc0java.vm.Image;
+import miniplc0java.vm.Interpreter;
+import miniplc0java.vm.Loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 手动运行的性能测试，不是单元测试
+ */
+public class Benchmark {
+    public static void main(String[] args) throws Exception {
+        String source = Files.readString(Paths.get(args.length > 0 ? args[0] : "in.txt"));
+        tokenize(repeat(source, 32 << 20));
+        emit();
+        interpret();
+    }
+
+    /**
+     * 把 source 重复到至少 size 个字符
+     */
+    static String repeat(String source, int size) {
+        StringBuilder sb = new StringBuilder(size + source.length());
+        while (sb.length() < size) {
+            sb.append(source).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static long time(Task task) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long begin = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        return best;
+    }
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * 顺序分析和不同线程数的并行分析，每次都重新读入，计时包括换行的规范化
+     */
+    static void tokenize(String source) throws Exception {
+        System.out.printf("tokenize %d chars%n", source.length());
+        long sequential = time(() -> new TokenBuffer(new Tokenizer(new StringIter(source))).lexAll());
+        System.out.printf("  sequential  %8.1f ms%n", sequential / 1e6);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long parallel = time(() -> new ParallelTokenizer(pool).tokenize(new StringIter(source)));
+            pool.shutdown();
+            System.out.printf("  %2d threads  %8.1f ms  x%.2f%n", threads, parallel / 1e6, (double) sequential / parallel);
+        }
+    }
+
+    /**
+     * 生成大约 size 字节的 o0 文件对应的 Program
+     */
+    static Program program(long size) {
+        Program program = new Program();
+        int perFunction = 1 << 16;
+        int functions = (int) Math.max(1, size / (perFunction * 5L));
+        for (int f = 0; f < functions; f++) {
+            Functiondef fun = new Functiondef();
+            fun.name = "f" + f;
+            fun.id = f;
+            fun.name_id = f;
+            for (int i = 0; i < perFunction / 2; i++) {
+                fun.code.add(Operation.PUSH, 42);
+                fun.code.add(Operation.ADD_I);
+            }
+            fun.bodySize = fun.code.size();
+            program.addFunc(fun);
+            program.addGlobal(new Globaldef(true, fun.name));
+        }
+        return program;
+    }
+
+    /**
+     * 输出从 1MB 到 100MB，分别写到内存和文件，每字节的耗时应该基本不变
+     */
+    static void emit() throws Exception {
+        System.out.println("emit o0");
+        Path file = Files.createTempFile("bench", ".o0");
+        for (long size : new long[]{1 << 20, 10 << 20, 50 << 20, 100 << 20}) {
+            Program program = program(size);
+            long bytes = program.toBytes().length;
+            long memory = time(() -> program.toBytes());
+            long channel = time(() -> {
+                try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    new O0Writer(out).write(program);
+                } catch (IOException e) {
+                    throw new Error(e);
+                }
+            });
+            System.out.printf("  %6.1f MB  memory %8.1f ms (%.2f ns/B)  file %8.1f ms (%.2f ns/B)%n",
+                    bytes / 1048576.0, memory / 1e6, (double) memory / bytes, channel / 1e6, (double) channel / bytes);
+        }
+        Files.delete(file);
+    }
+
+    private static final String LOOPS = String.join("\n",
+            "fn fib(n: int) -> int {",
+            "    if n < 2 { return n; }",
+            "    return fib(n - 1) + fib(n - 2);",
+            "}",
+            "fn main() -> void {",
+            "    let i: int = 0;",
+            "    let j: int;",
+            "    let s: int = 0;",
+            "    while i < 1000 {",
+            "        j = 0;",
+            "        while j < 1000 {",
+            "            s = s + i * j - s / 3;",
+            "            j = j + 1;",
+            "        }",
+            "        i = i + 1;",
+            "    }",
+            "    putint(s); putln();",
+            "    putint(fib(25)); putln();",
+            "}");
+
+    /**
+     * 解释器在不同的指令融合下每秒执行的 o0 指令数，融合指令按合并前的条数算；
+     * 最后和打开 JIT 时的总时间比较
+     */
+    static void interpret() throws Exception {
+        Program program = new Analyser(new TokenBuffer(new Tokenizer(new StringIter(LOOPS))), 1).analyse();
+        new Optimizer(1).optimize(program);
+        byte[] o0 = program.toBytes();
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        List<Set<Fusion>> configs = new ArrayList<>();
+        configs.add(Fusion.none());
+        for (Fusion fusion : Fusion.values()) {
+            configs.add(EnumSet.of(fusion));
+        }
+        configs.add(Fusion.all());
+
+        System.out.println("interpret");
+        double base = 0;
+        for (Set<Fusion> fusions : configs) {
+            Image image = Loader.load(o0, fusions);
+            long[] steps = new long[1];
+            long nanos = time(() -> {
+                Interpreter interpreter = new Interpreter(image, InputStream.nullInputStream(), sink);
+                interpreter.setJitThreshold(0);
+                interpreter.run();
+                steps[0] = interpreter.getSteps();
+            });
+            double rate = steps[0] * 1e9 / nanos;
+            if (base == 0) {
+                base = rate;
+            }
+            System.out.printf("  %-14s %8.1f ms  %7.1f M instr/s  x%.2f%n",
+                    fusions.isEmpty() ? "none" : fusions.equals(Fusion.all()) ? "all" : fusions, nanos / 1e6, rate / 1e6, rate / base);
+        }
+
+        Image image = Loader.load(o0, Fusion.all());
+        long interpreted = time(() -> {
+            Interpreter interpreter = new Interpreter(image, InputStream.nullInputStream(), sink);
+            interpreter.setJitThreshold(0);
+            interpreter.run();
+        });
+        long compiled = time(() -> new Interpreter(image, InputStream.nullInputStream(), sink).run());
+        System.out.printf("  %-14s %8.1f ms  x%.2f%n", "jit", compiled / 1e6, (double) interpreted / compiled);
+    }
+}
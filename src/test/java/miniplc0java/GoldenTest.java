@@ -0,0 +1,42 @@
+package miniplc0java;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.program.Program;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * 把 golden 目录下的每个 .c0 在 -O0 编译，和旁边的 .o0 逐字节比较。
+ * 词法、符号表、Program 和 CodeBuffer 的重构都不应该改变 -O0 的输出
+ */
+public class GoldenTest {
+
+    static final String[] NAMES = {"calls", "loops", "scopes"};
+
+    static byte[] resource(String name) throws IOException {
+        try (InputStream in = GoldenTest.class.getResourceAsStream("/golden/" + name)) {
+            assertNotNull(name, in);
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void unoptimizedOutputMatchesGolden() throws Exception {
+        for (String name : NAMES) {
+            String source = new String(resource(name + ".c0"), StandardCharsets.UTF_8);
+            TokenBuffer tokens = new TokenBuffer(new Tokenizer(new StringIter(source)));
+            Program program = new Analyser(tokens, 0).analyse();
+            new Optimizer(0).optimize(program);
+            assertArrayEquals(name, resource(name + ".o0"), program.toBytes());
+        }
+    }
+}
@@ -0,0 +1,693 @@
+package miniplc0java;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.instruction.CodeBuffer;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.ControlFlowGraph;
+import miniplc0java.optimizer.Inliner;
+import miniplc0java.optimizer.JumpOptimizer;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.optimizer.Peephole;
+import miniplc0java.optimizer.SlotAllocator;
+import miniplc0java.program.Functiondef;
+import miniplc0java.program.Program;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.VmException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static miniplc0java.instruction.Operation.*;
+import static org.junit.Assert.*;
+
+public class OptimizerTest {
+
+    /**
+     * code 里是 Operation 和跟在它后面的参数
+     */
+    private static CodeBuffer code(Object... code) {
+        CodeBuffer buffer = new CodeBuffer();
+        for (int i = 0; i < code.length; i++) {
+            Operation op = (Operation) code[i];
+            if (op.hasParam()) {
+                buffer.add(op, ((Number) code[++i]).longValue());
+            } else {
+                buffer.add(op);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * 只有一个函数的程序，没有参数和返回值，有 4 个局部变量
+     */
+    private static Program single(CodeBuffer code) {
+        Program program = new Program();
+        Functiondef fun = new Functiondef();
+        fun.name = "f";
+        fun.localSize = 4;
+        fun.code = code;
+        fun.bodySize = code.size();
+        program.addFunc(fun);
+        return program;
+    }
+
+    private static void assertCode(CodeBuffer expected, CodeBuffer actual) {
+        List<Instruction> want = expected.toInstructions();
+        List<Instruction> got = actual.toInstructions();
+        assertEquals(want.toString(), got.toString());
+    }
+
+    private static CodeBuffer peephole(CodeBuffer code) {
+        Program program = single(code);
+        new Peephole(program).run();
+        return program.functiondefList.get(0).code;
+    }
+
+    private static CodeBuffer jumps(CodeBuffer code) {
+        Program program = single(code);
+        new JumpOptimizer(program).run();
+        return program.functiondefList.get(0).code;
+    }
+
+    /**
+     * 在有 slots 个局部变量的函数上分配位置
+     *
+     * @return 分配之后的函数
+     */
+    private static Functiondef slots(int slots, CodeBuffer code) {
+        Program program = single(code);
+        Functiondef fun = program.functiondefList.get(0);
+        fun.localSize = slots;
+        new SlotAllocator(program).run();
+        return fun;
+    }
+
+    /**
+     * 在 -O2 编译，内联的阈值是 maxSize 和 budget
+     */
+    private static Program inlined(String source, int maxSize, int budget) throws Exception {
+        TokenBuffer tokens = new TokenBuffer(new Tokenizer(new StringIter(source)));
+        Analyser analyser = new Analyser(tokens, 2);
+        analyser.setInlineLimits(maxSize, budget);
+        Program program = analyser.analyse();
+        new Optimizer(2).optimize(program);
+        return program;
+    }
+
+    private static Functiondef function(Program program, String name) {
+        for (Functiondef fun : program.functiondefList) {
+            if (fun.name.equals(name)) {
+                return fun;
+            }
+        }
+        throw new AssertionError("no function " + name);
+    }
+
+    /**
+     * caller 里调用 callee 的次数
+     */
+    private static int calls(Program program, String caller, String callee) {
+        Functiondef from = function(program, caller);
+        int id = function(program, callee).id;
+        int n = 0;
+        for (int i = 0; i < from.code.size(); i++) {
+            if (from.code.op(i) == CALL && from.code.operand(i) == id) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    static Program program(String source, int optimize) throws Exception {
+        TokenBuffer tokens = new TokenBuffer(new Tokenizer(new StringIter(source)));
+        Program program = new Analyser(tokens, optimize).analyse();
+        new Optimizer(optimize).optimize(program);
+        return program;
+    }
+
+    static int size(Program program) {
+        int n = 0;
+        for (Functiondef fun : program.functiondefList) {
+            n += fun.code.size();
+        }
+        return n;
+    }
+
+    private static String golden(String name) throws Exception {
+        return new String(GoldenTest.resource(name + ".c0"), StandardCharsets.UTF_8);
+    }
+
+    // ---- Peephole ----
+
+    @Test
+    public void peepholeFlipsNegatedBranch() {
+        assertCode(code(LOCA, 0, LOAD64, BR_TRUE, 2, PUSH, 1, PRINT_I, PUSH, 2, PRINT_I),
+                peephole(code(LOCA, 0, LOAD64, NOT, BR_FALSE, 2, PUSH, 1, PRINT_I, PUSH, 2, PRINT_I)));
+        assertCode(code(LOCA, 0, LOAD64, BR_TRUE, 2, PUSH, 1, PRINT_I, PUSH, 2, PRINT_I),
+                peephole(code(LOCA, 0, LOAD64, NOT, NOT, BR_TRUE, 2, PUSH, 1, PRINT_I, PUSH, 2, PRINT_I)));
+    }
+
+    @Test
+    public void peepholeRewritesIntegerUnaryMinusOnly() {
+        assertCode(code(LOCA, 0, LOAD64, NEG_I, PRINT_I),
+                peephole(code(PUSH, 0, LOCA, 0, LOAD64, SUB_I, PRINT_I)));
+        CodeBuffer real = code(PUSH, 0, LOCA, 0, LOAD64, SUB_F, PRINT_F);
+        assertCode(real, peephole(code(PUSH, 0, LOCA, 0, LOAD64, SUB_F, PRINT_F)));
+    }
+
+    @Test
+    public void peepholeDuplicatesRepeatedLoad() {
+        assertCode(code(LOCA, 1, LOAD64, DUP, MUL_I, PRINT_I),
+                peephole(code(LOCA, 1, LOAD64, LOCA, 1, LOAD64, MUL_I, PRINT_I)));
+    }
+
+    @Test
+    public void peepholeFixesBranchOffsets() {
+        // 删掉 br 0 之后，前后的跳转都要重新算偏移
+        assertCode(code(PUSH, 1, BR_FALSE, 3, PUSH, 5, PRINT_I, BR, -5),
+                peephole(code(PUSH, 1, BR_FALSE, 4, BR, 0, PUSH, 5, PRINT_I, BR, -6)));
+    }
+
+    @Test
+    public void peepholeKeepsPatternsWithInnerTargets() {
+        CodeBuffer loop = code(PUSH, 0, LOCA, 0, LOAD64, SUB_I, PRINT_I, BR, -5);
+        assertCode(loop, peephole(code(PUSH, 0, LOCA, 0, LOAD64, SUB_I, PRINT_I, BR, -5)));
+    }
+
+    @Test
+    public void unaryMinusOnZeroPrintsTheSameAtEveryLevel() throws Exception {
+        String source = String.join("\n",
+                "fn main() -> void {",
+                "    let x: int = 0;",
+                "    let y: double = 0.0;",
+                "    putdouble(-(x as double)); putln();",
+                "    putdouble(0.0 - y); putln();",
+                "    putdouble(-y); putln();",
+                "}");
+        String expected = VmTest.run(VmTest.compile(source, 0), "");
+        assertEquals("0.000000\n0.000000\n0.000000\n", expected);
+        for (int optimize = 1; optimize <= 2; optimize++) {
+            assertEquals("-O" + optimize, expected, VmTest.run(VmTest.compile(source, optimize), ""));
+        }
+    }
+
+    @Test
+    public void foldedAndRuntimeUnaryMinusAgree() throws Exception {
+        String source = String.join("\n",
+                "const z: double = 0.0;",
+                "fn main() -> void {",
+                "    let x: double = 0.0;",
+                "    putdouble(-z); putchar(32); putdouble(-x); putln();",
+                "    putdouble(-(1.5 * z)); putchar(32); putdouble(-(1.5 * x)); putln();",
+                "}");
+        for (int optimize = 0; optimize <= 2; optimize++) {
+            assertEquals("-O" + optimize, "0.000000 0.000000\n0.000000 0.000000\n",
+                    VmTest.run(VmTest.compile(source, optimize), ""));
+        }
+    }
+
+    @Test
+    public void peepholeShrinksCorpusAndKeepsOutput() throws Exception {
+        for (String name : GoldenTest.NAMES) {
+            Program program = program(golden(name), 0);
+            String expected = VmTest.run(program.toBytes(), "10");
+            int before = size(program);
+            int removed = new Peephole(program).run();
+            assertTrue(name + " removed " + removed, removed > 0);
+            assertEquals(name, before - removed, size(program));
+            assertEquals(name, expected, VmTest.run(program.toBytes(), "10"));
+        }
+    }
+
+    @Test
+    public void everyLevelKeepsCorpusOutput() throws Exception {
+        for (String name : GoldenTest.NAMES) {
+            Program plain = program(golden(name), 0);
+            String expected = VmTest.run(plain.toBytes(), "10");
+            Program o1 = program(golden(name), 1);
+            assertTrue(name + ": " + size(o1) + " >= " + size(plain), size(o1) < size(plain));
+            assertEquals(name + " -O1", expected, VmTest.run(o1.toBytes(), "10"));
+            // -O2 内联之后指令可能变多，只比较输出
+            assertEquals(name + " -O2", expected, VmTest.run(program(golden(name), 2).toBytes(), "10"));
+        }
+    }
+
+    // ---- ControlFlowGraph / JumpOptimizer ----
+
+    @Test
+    public void graphSplitsBlocksAtBranchesAndTargets() {
+        ControlFlowGraph cfg = new ControlFlowGraph(code(
+                LOCA, 0, LOAD64, BR_FALSE, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I, PUSH, 3));
+        assertEquals("[B0[0,3), B1[3,6), B2[6,9)]", cfg.getBlocks().toString());
+        assertEquals("[B2[6,9), B1[3,6)]", cfg.getBlocks().get(0).getSuccessors().toString());
+        assertTrue(cfg.getBlocks().get(1).getSuccessors().isEmpty());
+    }
+
+    @Test
+    public void jumpsDropCodeAfterReturn() {
+        assertCode(code(PUSH, 1, PRINT_I, RET),
+                jumps(code(PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I, RET)));
+    }
+
+    @Test
+    public void jumpsDropCodeAfterBreakAndContinue() {
+        // while a { if b { break; 死代码 } if c { continue; 死代码 } putln(); } putint(7);
+        CodeBuffer loop = code(
+                LOCA, 0, LOAD64, BR_FALSE, 12,
+                LOCA, 1, LOAD64, BR_FALSE, 2, BR, 8, PRINT_LN,
+                LOCA, 2, LOAD64, BR_FALSE, 2, BR, -12, PRINT_LN,
+                PRINT_LN, BR, -15,
+                PUSH, 7, PRINT_I);
+        // 删掉死代码之后，只跳过一条 br 的条件跳转也反过来了
+        assertCode(code(
+                LOCA, 0, LOAD64, BR_FALSE, 8,
+                LOCA, 1, LOAD64, BR_TRUE, 5,
+                LOCA, 2, LOAD64, BR_TRUE, -9,
+                PRINT_LN, BR, -11,
+                PUSH, 7, PRINT_I), jumps(loop));
+    }
+
+    @Test
+    public void jumpsThreadBranchToBranch() {
+        assertCode(code(LOCA, 0, LOAD64, BR_FALSE, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I, RET),
+                jumps(code(LOCA, 0, LOAD64, BR_FALSE, 6, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I, RET, BR, -4)));
+        // 跳到 ret 的 br 直接换成 ret
+        assertCode(code(LOCA, 0, LOAD64, BR_FALSE, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I, RET),
+                jumps(code(LOCA, 0, LOAD64, BR_FALSE, 3, PUSH, 1, PRINT_I, BR, 2, PUSH, 2, PRINT_I, RET)));
+    }
+
+    @Test
+    public void jumpsInvertBranchOverBranch() {
+        assertCode(code(LOCA, 0, LOAD64, BR_FALSE, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I),
+                jumps(code(LOCA, 0, LOAD64, BR_TRUE, 1, BR, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I)));
+    }
+
+    @Test
+    public void jumpsResolveConstantConditions() {
+        // 不会跳
+        assertCode(code(PUSH, 1, PRINT_I, RET),
+                jumps(code(PUSH, 1, BR_FALSE, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I)));
+        // 一定跳
+        assertCode(code(PUSH, 2, PRINT_I),
+                jumps(code(PUSH, 0, BR_FALSE, 3, PUSH, 1, PRINT_I, RET, PUSH, 2, PRINT_I)));
+        // 往回的条件跳转变成 br，偏移重新计算
+        assertCode(code(LOCA, 0, LOAD64, PRINT_I, BR, -4),
+                jumps(code(LOCA, 0, LOAD64, PRINT_I, PUSH, 1, BR_TRUE, -5)));
+    }
+
+    @Test
+    public void jumpsLeaveNoUnreachableBlocks() throws Exception {
+        String source = String.join("\n",
+                "fn f(n: int) -> int {",
+                "    let i: int = 0;",
+                "    while i < n {",
+                "        i = i + 1;",
+                "        if i == 3 { continue; putint(-1); }",
+                "        if i > 5 { break; putint(-2); }",
+                "        putint(i);",
+                "    }",
+                "    return i;",
+                "    putint(-3);",
+                "}",
+                "fn main() -> void {",
+                "    putint(f(getint())); putln();",
+                "    if 1 < 2 { putint(1); } else { putint(2); }",
+                "    while 0 > 1 { putint(3); }",
+                "    putln();",
+                "}");
+        String expected = VmTest.run(VmTest.compile(source, 0), "9");
+        assertEquals("12456\n1\n", expected);
+        Program program = program(source, 1);
+        assertEquals(expected, VmTest.run(program.toBytes(), "9"));
+        assertTrue(size(program) < size(program(source, 0)));
+        for (Functiondef fun : program.functiondefList) {
+            ControlFlowGraph cfg = new ControlFlowGraph(fun.code);
+            boolean[] reachable = cfg.reachable();
+            for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()) {
+                assertTrue(fun.name + " " + block, reachable[block.getId()]);
+            }
+            for (int i = 0; i < fun.code.size(); i++) {
+                Operation op = fun.code.op(i);
+                if (op == BR || op == BR_FALSE || op == BR_TRUE) {
+                    long to = i + 1 + fun.code.operand(i);
+                    assertTrue(fun.name + " " + i, to >= 0 && to <= fun.code.size());
+                }
+            }
+        }
+    }
+
+    // ---- SlotAllocator ----
+
+    @Test
+    public void slotsShareDisjointRanges() {
+        Functiondef fun = slots(2, code(
+                LOCA, 0, PUSH, 1, STORE64, LOCA, 0, LOAD64, PRINT_I,
+                LOCA, 1, PUSH, 2, STORE64, LOCA, 1, LOAD64, PRINT_I));
+        assertEquals(1, fun.localSize);
+        assertCode(code(
+                LOCA, 0, PUSH, 1, STORE64, LOCA, 0, LOAD64, PRINT_I,
+                LOCA, 0, PUSH, 2, STORE64, LOCA, 0, LOAD64, PRINT_I), fun.code);
+    }
+
+    @Test
+    public void slotsKeepOverlappingRangesApart() {
+        CodeBuffer straight = code(
+                LOCA, 0, PUSH, 1, STORE64, LOCA, 1, PUSH, 2, STORE64,
+                LOCA, 0, LOAD64, LOCA, 1, LOAD64, ADD_I, PRINT_I);
+        Functiondef fun = slots(2, straight);
+        assertEquals(2, fun.localSize);
+        assertCode(code(
+                LOCA, 0, PUSH, 1, STORE64, LOCA, 1, PUSH, 2, STORE64,
+                LOCA, 0, LOAD64, LOCA, 1, LOAD64, ADD_I, PRINT_I), fun.code);
+
+        // 0 在整个循环里都活跃，1 在循环里写
+        fun = slots(2, code(
+                LOCA, 0, PUSH, 3, STORE64,
+                LOCA, 1, LOCA, 0, LOAD64, STORE64,
+                LOCA, 1, LOAD64, PRINT_I,
+                LOCA, 0, LOAD64, BR_TRUE, -13));
+        assertEquals(2, fun.localSize);
+    }
+
+    @Test
+    public void slotsPinEscapingAddress() {
+        // 0 用 store32 写，地址不只是给 load64 / store64 用
+        Functiondef fun = slots(2, code(
+                LOCA, 0, PUSH, 5, STORE32, LOCA, 0, LOAD64, PRINT_I,
+                LOCA, 1, PUSH, 2, STORE64, LOCA, 1, LOAD64, PRINT_I));
+        assertEquals(2, fun.localSize);
+        assertNotEquals(fun.code.operand(0), fun.code.operand(9));
+    }
+
+    @Test
+    public void slotsPinReadBeforeWrite() {
+        Functiondef fun = slots(2, code(
+                LOCA, 0, LOAD64, PRINT_I, LOCA, 0, PUSH, 1, STORE64,
+                LOCA, 1, PUSH, 2, STORE64, LOCA, 1, LOAD64, PRINT_I));
+        assertEquals(2, fun.localSize);
+
+        // 只在一条路径上写过
+        fun = slots(3, code(
+                LOCA, 2, PUSH, 0, STORE64,
+                LOCA, 2, LOAD64, BR_FALSE, 3, LOCA, 0, PUSH, 1, STORE64,
+                LOCA, 0, LOAD64, PRINT_I,
+                LOCA, 1, PUSH, 2, STORE64, LOCA, 1, LOAD64, PRINT_I));
+        long zero = fun.code.operand(6);
+        assertEquals(zero, fun.code.operand(9));
+        for (int i = 0; i < fun.code.size(); i++) {
+            if (fun.code.op(i) == LOCA && i != 6 && i != 9) {
+                assertNotEquals("instruction " + i, zero, fun.code.operand(i));
+            }
+        }
+    }
+
+    @Test
+    public void slotsShrinkFramesAndKeepOutput() throws Exception {
+        String source = String.join("\n",
+                "fn main() -> void {",
+                "    let a: int = 0;",
+                "    a = getint();",
+                "    putint(a * 2);",
+                "    let b: int = a + 1;",
+                "    let c: double = 1.5;",
+                "    putint(b); putdouble(c);",
+                "    let d: int = 0;",
+                "    while d < 3 { let e: int = d * d; putint(e); d = d + 1; }",
+                "    putln();",
+                "}");
+        String expected = VmTest.run(VmTest.compile(source, 0), "4");
+        Program plain = program(source, 0);
+        Program optimized = program(source, 2);
+        assertEquals(expected, VmTest.run(optimized.toBytes(), "4"));
+        Functiondef before = plain.functiondefList.get(plain.functiondefList.size() - 1);
+        Functiondef after = optimized.functiondefList.get(optimized.functiondefList.size() - 1);
+        assertEquals("main", after.name);
+        assertTrue(after.localSize + " >= " + before.localSize, after.localSize < before.localSize);
+    }
+
+    // ---- Inliner ----
+
+    private static final String SMALL = String.join("\n",
+            "fn sq(x: int) -> int { return x * x; }",
+            "fn absv(x: int) -> int {",
+            "    if x < 0 { return -x; }",
+            "    return x;",
+            "}",
+            "fn fact(n: int) -> int {",
+            "    if n < 2 { return 1; }",
+            "    return n * fact(n - 1);",
+            "}",
+            "fn main() -> void {",
+            "    let a: int = 0;",
+            "    a = getint();",
+            "    putint(sq(a)); putchar(32);",
+            "    putint(absv(a - 10)); putchar(32);",
+            "    putint(absv(10 - a)); putchar(32);",
+            "    putint(sq(absv(-a))); putchar(32);",
+            "    putint(fact(a)); putln();",
+            "}");
+
+    @Test
+    public void inlinerKeepsReturnValueOnStack() throws Exception {
+        Program program = program(SMALL, 0);
+        Inliner inliner = new Inliner(program);
+        Functiondef main = function(program, "main");
+        Functiondef sq = function(program, "sq");
+        assertTrue(inliner.shouldInline(main, sq));
+        CodeBuffer into = new CodeBuffer();
+        // sq 的返回值和参数放在调用者的 4、5 号局部变量
+        assertTrue(inliner.inline(into, main, sq, 4, 6));
+        assertCode(code(LOCA, 5, LOAD64, LOCA, 5, LOAD64, MUL_I), into);
+    }
+
+    @Test
+    public void inlinerTurnsEveryReturnIntoJump() throws Exception {
+        Program program = program(SMALL, 0);
+        Inliner inliner = new Inliner(program);
+        Functiondef absv = function(program, "absv");
+        int rets = 0;
+        for (int i = 0; i < absv.code.size(); i++) {
+            rets += absv.code.op(i) == RET ? 1 : 0;
+        }
+        assertTrue(rets >= 2);
+        CodeBuffer into = new CodeBuffer();
+        into.add(NOP);
+        assertFalse(inliner.inline(into, function(program, "main"), absv, 4, 6));
+        assertEquals(absv.code.size() + 1, into.size());
+        for (int i = 1; i < into.size(); i++) {
+            Operation op = into.op(i);
+            assertNotEquals(RET, op);
+            assertNotEquals(ARGA, op);
+            if (op == BR || op == BR_FALSE || op == BR_TRUE) {
+                long to = i + 1 + into.operand(i);
+                assertTrue("instruction " + i, to > 0 && to <= into.size());
+            }
+        }
+        // 原来的 ret 都跳到复制的指令之后
+        for (int i = 0; i < absv.code.size(); i++) {
+            if (absv.code.op(i) == RET) {
+                assertEquals(BR, into.op(i + 1));
+                assertEquals(into.size(), i + 2 + into.operand(i + 1));
+            }
+        }
+    }
+
+    @Test
+    public void inlinerRejectsRecursiveAndUnbalancedCallees() throws Exception {
+        Program program = program(SMALL, 0);
+        Inliner inliner = new Inliner(program);
+        Functiondef main = function(program, "main");
+        assertFalse(inliner.shouldInline(main, function(program, "fact")));
+
+        // ret 之前栈上还有值
+        Functiondef leaky = new Functiondef();
+        leaky.name = "leaky";
+        leaky.id = program.functiondefList.size();
+        leaky.code = code(PUSH, 1, RET);
+        program.addFunc(leaky);
+        assertFalse(inliner.shouldInline(main, leaky));
+
+        // 从最后一条指令之后继续执行
+        Functiondef open = new Functiondef();
+        open.name = "open";
+        open.id = program.functiondefList.size();
+        open.code = code(PUSH, 1, PRINT_I);
+        program.addFunc(open);
+        assertFalse(inliner.shouldInline(main, open));
+
+        Program compiled = inlined(SMALL, Inliner.DEFAULT_SIZE, Inliner.DEFAULT_BUDGET);
+        assertEquals(1, calls(compiled, "main", "fact"));
+        assertEquals(0, calls(compiled, "main", "sq"));
+        assertEquals(0, calls(compiled, "main", "absv"));
+    }
+
+    @Test
+    public void inlinerHonoursSizeAndBudget() throws Exception {
+        int sq = function(program(SMALL, 0), "sq").code.size();
+        int absv = function(program(SMALL, 0), "absv").code.size();
+        assertTrue(sq < absv);
+
+        // 只有 sq 够小
+        Program small = inlined(SMALL, sq, Inliner.DEFAULT_BUDGET);
+        assertEquals(0, calls(small, "main", "sq"));
+        assertEquals(3, calls(small, "main", "absv"));
+
+        // 预算只够内联一次 sq，第二次调用留着
+        Program tight = inlined(SMALL, sq, sq);
+        assertEquals(1, calls(tight, "main", "sq"));
+        assertEquals(3, calls(tight, "main", "absv"));
+
+        Program none = inlined(SMALL, 0, Inliner.DEFAULT_BUDGET);
+        assertEquals(2, calls(none, "main", "sq"));
+    }
+
+    @Test
+    public void inlinedOutputMatchesUnoptimized() throws Exception {
+        for (String input : new String[]{"0", "3", "12", "-4"}) {
+            String expected = VmTest.run(VmTest.compile(SMALL, 0), input);
+            for (int[] limits : new int[][]{{Inliner.DEFAULT_SIZE, Inliner.DEFAULT_BUDGET}, {100, 12}, {0, 0}}) {
+                Program program = inlined(SMALL, limits[0], limits[1]);
+                assertEquals(input + " " + Arrays.toString(limits), expected, VmTest.run(program.toBytes(), input));
+            }
+        }
+    }
+
+    @Test
+    public void inlinedCalleeStartsWithZeroedLocals() throws Exception {
+        String source = String.join("\n",
+                "fn g(n: int) -> int {",
+                "    let x: int;",
+                "    if n == 1 { x = 5; }",
+                "    return x;",
+                "}",
+                "fn main() -> void {",
+                "    let i: int = 0;",
+                "    while i < 3 { putint(g(1 - i)); i = i + 1; }",
+                "    putln();",
+                "}");
+        assertEquals("500\n", VmTest.run(VmTest.compile(source, 0), ""));
+        Program program = program(source, 0);
+        Inliner inliner = new Inliner(program);
+        Functiondef g = function(program, "g");
+        CodeBuffer into = new CodeBuffer();
+        // 返回值留在栈上少了 arga、store64、ret，多了清零的三条
+        assertTrue(inliner.inline(into, function(program, "main"), g, 4, 6));
+        assertEquals(g.code.size(), into.size());
+        // g 的 x 放在 6 号局部变量
+        assertEquals(LOCA, into.op(0));
+        assertEquals(6, into.operand(0));
+        assertEquals(PUSH, into.op(1));
+        assertEquals(0, into.operand(1));
+        assertEquals(STORE64, into.op(2));
+
+        Program compiled = inlined(source, Inliner.DEFAULT_SIZE, Inliner.DEFAULT_BUDGET);
+        assertEquals(0, calls(compiled, "main", "g"));
+        assertEquals("500\n", VmTest.run(compiled.toBytes(), ""));
+    }
+
+    // ---- 尾调用 ----
+
+    @Test
+    public void tailCallRunsInConstantStack() throws Exception {
+        String source = String.join("\n",
+                "fn count(n: int, acc: int) -> int {",
+                "    if n == 0 { return acc; }",
+                "    return count(n - 1, acc + 1);",
+                "}",
+                "fn main() -> void { putint(count(1000000, 0)); putln(); }");
+        try {
+            VmTest.run(VmTest.compile(source, 0), "");
+            fail();
+        } catch (VmException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("overflow"));
+        }
+        for (int optimize = 1; optimize <= 2; optimize++) {
+            Program program = program(source, optimize);
+            assertEquals(0, calls(program, "count", "count"));
+            assertEquals("1000000\n", VmTest.run(program.toBytes(), ""));
+        }
+    }
+
+    @Test
+    public void tailCallArgumentsReadOldParameters() throws Exception {
+        String source = String.join("\n",
+                "fn swap(a: int, b: int, k: int) -> int {",
+                "    if k == 0 { return a * 10 + b; }",
+                "    return swap(b, a, k - 1);",
+                "}",
+                "fn fib(n: int, a: int, b: int) -> int {",
+                "    if n == 0 { return a; }",
+                "    return fib(n - 1, b, a + b);",
+                "}",
+                "fn mix(a: int, b: int, c: int) -> int {",
+                "    if a > 100 { return a * 10000 + b * 100 + c; }",
+                "    return mix(b + c, c * 2 - a, a + b + c);",
+                "}",
+                "fn main() -> void {",
+                "    putint(swap(1, 2, 1)); putchar(32);",
+                "    putint(swap(1, 2, 2)); putchar(32);",
+                "    putint(swap(1, 2, 7)); putchar(32);",
+                "    putint(fib(90, 0, 1)); putchar(32);",
+                "    putint(mix(1, 2, 3)); putln();",
+                "}");
+        String expected = VmTest.run(VmTest.compile(source, 0), "");
+        assertTrue(expected, expected.startsWith("21 12 21 2880067194370816120 "));
+        for (int optimize = 1; optimize <= 2; optimize++) {
+            Program program = program(source, optimize);
+            for (String name : new String[]{"swap", "fib", "mix"}) {
+                assertEquals(name + " -O" + optimize, 0, calls(program, name, name));
+            }
+            assertEquals("-O" + optimize, expected, VmTest.run(program.toBytes(), ""));
+        }
+    }
+
+    @Test
+    public void tailCallStartsWithZeroedLocals() throws Exception {
+        String source = String.join("\n",
+                "fn f(n: int) -> int {",
+                "    let x: int;",
+                "    if n == 3 { x = 7; }",
+                "    putint(x);",
+                "    if n == 0 { return 0; }",
+                "    return f(n - 1);",
+                "}",
+                "fn g(n: int) -> int {",
+                "    let y: int;",
+                "    y = n * 2;",
+                "    putint(y);",
+                "    if n == 0 { return 0; }",
+                "    return g(n - 1);",
+                "}",
+                "fn main() -> void { putint(f(3)); putln(); putint(g(2)); putln(); }");
+        assertEquals("70000\n4200\n", VmTest.run(VmTest.compile(source, 0), ""));
+        for (int optimize = 1; optimize <= 2; optimize++) {
+            Program program = program(source, optimize);
+            assertEquals(0, calls(program, "f", "f"));
+            assertEquals(0, calls(program, "g", "g"));
+            assertEquals("-O" + optimize, 1, zeroStores(function(program, "f")));
+            // 先写后读的变量不用清零
+            assertEquals("-O" + optimize, 0, zeroStores(function(program, "g")));
+            assertEquals("-O" + optimize, "70000\n4200\n", VmTest.run(program.toBytes(), ""));
+        }
+    }
+
+    /**
+     * fun 里 loca; push 0; store64 的次数
+     */
+    private static int zeroStores(Functiondef fun) {
+        int n = 0;
+        for (int i = 0; i + 2 < fun.code.size(); i++) {
+            if (fun.code.op(i) == LOCA && fun.code.op(i + 1) == PUSH && fun.code.operand(i + 1) == 0
+                    && fun.code.op(i + 2) == STORE64) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -1,8 +1,198 @@
 package miniplc0java;
 
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.IncrementalTokenizer;
+import miniplc0java.tokenizer.ParallelTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TextEdit;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
 import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.Assert.*;
 
 public class TokenizerTest {
 
+    private static final String[] PIECES = {
+            "fn", "let", "const", "while", "if", "else", "return", "as", "int", "double",
+            "a", "b1", "_tmp", "counter", "x", "0", "42", "3.14", "1.5e-3",
+            "+", "-", "*", "/", "=", "==", "!=", "<", "<=", ">", ">=", "->",
+            "(", ")", "{", "}", ",", ":", ";",
+            "'a'", "'\\n'", "'\n'", "\"str\"", "\"two\nlines\"", "\"esc \\\" \\n\"",
+            "\"//not a comment\"", "// comment \"with quote\n", "\n", "\n\n", " ", "\t",
+            "\"\n\n\n\n\n\n\n\n\"",
+    };
+
+    private static String randomSource(Random random, int pieces) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pieces; i++) {
+            sb.append(PIECES[random.nextInt(PIECES.length)]);
+            // 相邻的单词之间要有空白，否则会粘成一个
+            sb.append(random.nextInt(4) == 0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameTokens(TokenBuffer expected, TokenBuffer actual) throws TokenizeError {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.type(i), actual.type(i));
+            assertEquals(expected.start(i), actual.start(i));
+            assertEquals(expected.end(i), actual.end(i));
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void asciiAndUnicodeInputsShareLineBreaking() {
+        for (String text : new String[]{"a\r\nbc\rd\n\ne", "a\r\nbc\rd\n\ne\n", "a\r\r\n", ""}) {
+            StringIter ascii = new StringIter(text);
+            // 末尾加一个非 ASCII 字符，走字符缓冲区
+            StringIter unicode = new StringIter(text + "\u00e9");
+            ascii.readAll();
+            unicode.readAll();
+            assertTrue(ascii.isAscii());
+            assertFalse(unicode.isAscii());
+            String normalized = text.replace("\r\n", "\n").replace('\r', '\n');
+            if (!normalized.isEmpty() && !normalized.endsWith("\n")) {
+                normalized += "\n";
+            }
+            assertEquals(normalized, ascii.slice(0, ascii.length()));
+            assertEquals(normalized.length(), ascii.length());
+            for (int offset = 0; offset < ascii.length(); offset++) {
+                assertEquals(ascii.posAt(offset).row, unicode.posAt(offset).row);
+                assertEquals(ascii.posAt(offset).col, unicode.posAt(offset).col);
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws TokenizeError {
+        Random random = new Random(7);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int round = 0; round < 50; round++) {
+            String source = randomSource(random, 2000);
+            TokenBuffer expected = new TokenBuffer(new Tokenizer(new StringIter(source))).lexAll();
+            // 很小的段长，让切分点经常落在字符串里
+            TokenBuffer actual = new ParallelTokenizer(pool, 64).tokenize(new StringIter(source));
+            assertSameTokens(expected, actual);
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void parallelReportsFirstError() {
+        Random random = new Random(11);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int round = 0; round < 20; round++) {
+            String source = randomSource(random, 2000) + " $ " + randomSource(random, 500) + " $ ";
+            String expected = null;
+            String actual = null;
+            try {
+                new TokenBuffer(new Tokenizer(new StringIter(source))).lexAll();
+            } catch (TokenizeError e) {
+                expected = e.toString();
+            }
+            try {
+                new ParallelTokenizer(pool, 64).tokenize(new StringIter(source));
+            } catch (TokenizeError e) {
+                actual = e.toString();
+            }
+            assertNotNull(expected);
+            assertEquals(expected, actual);
+        }
+        pool.shutdown();
+    }
+
+    private static final String TYPED = "ab1_ .=<>-/\"'\n(){};";
+
+    private static TextEdit randomEdit(Random random, int length) {
+        int offset = random.nextInt(length + 1);
+        int removed = random.nextInt(Math.min(8, length - offset) + 1);
+        String inserted;
+        switch (random.nextInt(4)) {
+            case 0:
+                inserted = "";
+                break;
+            case 1:
+                // 单个字符，模拟打字
+                inserted = String.valueOf(TYPED.charAt(random.nextInt(TYPED.length())));
+                break;
+            default:
+                inserted = " " + PIECES[random.nextInt(PIECES.length)] + " ";
+                break;
+        }
+        return new TextEdit(offset, removed, inserted);
+    }
+
+    @Test
+    public void incrementalMatchesFullRelex() throws TokenizeError {
+        Random random = new Random(3);
+        int checked = 0;
+        int partial = 0;
+        IncrementalTokenizer incremental = null;
+        for (int step = 0; step < 5000; step++) {
+            if (incremental == null) {
+                String text = randomSource(random, 300);
+                incremental = new IncrementalTokenizer(new TokenBuffer(new Tokenizer(new StringIter(text))));
+            }
+            int length = incremental.getSource().length();
+            List<TextEdit> edits = new ArrayList<>();
+            int n = 1 + random.nextInt(3);
+            for (int k = 0; k < n; k++) {
+                TextEdit edit = randomEdit(random, length);
+                edits.add(edit);
+                length += edit.inserted.length() - edit.removed;
+            }
+
+            String expectedError = null;
+            String actualError = null;
+            TokenBuffer actual = null;
+            try {
+                actual = incremental.apply(edits);
+            } catch (TokenizeError e) {
+                actualError = e.toString();
+            }
+            StringIter source = incremental.getSource();
+            String newText = source.slice(0, source.length());
+            TokenBuffer expected = null;
+            try {
+                expected = new TokenBuffer(new Tokenizer(new StringIter(newText))).lexAll();
+            } catch (TokenizeError e) {
+                expectedError = e.toString();
+            }
+
+            assertEquals(expectedError, actualError);
+            if (expected != null) {
+                assertSameTokens(expected, actual);
+                checked++;
+                if (incremental.getRelexed() < expected.size()) {
+                    partial++;
+                }
+            } else {
+                // 随机修改很难再把错误改回来，换一段新的源码继续
+                incremental = null;
+            }
+        }
+        assertTrue(checked > 1000);
+        assertTrue(partial > checked / 2);
+    }
+
+    @Test
+    public void incrementalStopsAfterResync() throws TokenizeError {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("let a").append(i).append(": int = ").append(i).append(";\n");
+        }
+        var incremental = new IncrementalTokenizer(new TokenBuffer(new Tokenizer(new StringIter(sb.toString()))));
+        int offset = sb.indexOf("a500");
+        TokenBuffer tokens = incremental.apply(List.of(new TextEdit(offset + 1, 3, "bc")));
+        assertEquals("abc", tokens.get(500 * 7 + 1).getValue());
+        assertTrue(incremental.getRelexed() < 10);
+    }
 }
@@ -0,0 +1,291 @@
+package miniplc0java;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.program.Program;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.Fusion;
+import miniplc0java.vm.Image;
+import miniplc0java.vm.Interpreter;
+import miniplc0java.vm.Loader;
+import miniplc0java.vm.Profile;
+import miniplc0java.vm.VmException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class VmTest {
+
+    private static final String FIB = String.join("\n",
+            "fn fib(n: int) -> int {",
+            "    if n < 2 { return n; }",
+            "    return fib(n - 1) + fib(n - 2);",
+            "}",
+            "fn sum(n: int, acc: int) -> int {",
+            "    if n == 0 { return acc; }",
+            "    return sum(n - 1, acc + n);",
+            "}",
+            "fn main() -> void {",
+            "    let n: int = getint();",
+            "    putint(fib(n)); putln();",
+            "    putint(sum(n * 1000, 0)); putln();",
+            "    putdouble(1.0 / 3.0); putln();",
+            "    putstr(\"done\"); putln();",
+            "}");
+
+    private static final String LOOPS = String.join("\n",
+            "let total: int = 0;",
+            "let scale: double = 0.5;",
+            "fn mix(a: int, b: int) -> int {",
+            "    return a * 31 - b / 7 + -a;",
+            "}",
+            "fn area(r: double) -> double {",
+            "    return r * r * 3.14159 * scale;",
+            "}",
+            "fn count(n: int) -> void {",
+            "    let i: int = 0;",
+            "    while i < n {",
+            "        i = i + 1;",
+            "        if i / 3 * 3 == i { continue; }",
+            "        if i > 500 { break; }",
+            "        total = total + mix(i, n - i);",
+            "    }",
+            "}",
+            "fn main() -> void {",
+            "    let k: int = 0;",
+            "    let sum: double = 0.0;",
+            "    while k < 40 {",
+            "        count(k * 20);",
+            "        sum = sum + area(k as double);",
+            "        k = k + 1;",
+            "    }",
+            "    putint(total); putln();",
+            "    putdouble(sum); putln();",
+            "    putint(sum as int); putchar(33); putln();",
+            "}");
+
+    static byte[] compile(String source, int optimize) throws Exception {
+        TokenBuffer tokens = new TokenBuffer(new Tokenizer(new StringIter(source)));
+        Program program = new Analyser(tokens, optimize).analyse();
+        new Optimizer(optimize).optimize(program);
+        return program.toBytes();
+    }
+
+    /**
+     * 只有 _start 一个函数的 o0 文件，code 里是 Operation 和跟在它后面的 long 参数
+     */
+    private static byte[] startOnly(Object... code) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x72303b3e);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeByte(1);
+        out.writeInt(6);
+        out.writeBytes("_start");
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt((int) Arrays.stream(code).filter(x -> x instanceof Operation).count());
+        for (Object x : code) {
+            if (x instanceof Operation) {
+                out.writeByte(((Operation) x).getOpcode());
+            } else {
+                out.writeLong((Long) x);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static String run(byte[] o0, String input) throws VmException {
+        return run(o0, input, Fusion.all());
+    }
+
+    private static String run(byte[] o0, String input, Set<Fusion> fusions) throws VmException {
+        return run(o0, input, fusions, Interpreter.DEFAULT_JIT_THRESHOLD);
+    }
+
+    private static String run(byte[] o0, String input, Set<Fusion> fusions, int jitThreshold) throws VmException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+        Interpreter interpreter = new Interpreter(Loader.load(o0, fusions), new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        interpreter.setJitThreshold(jitThreshold);
+        interpreter.run();
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void runsCompiledProgram() throws Exception {
+        assertEquals("55\n50005000\n0.333333\ndone\n", run(compile(FIB, 0), "10"));
+    }
+
+    @Test
+    public void sameOutputAtEveryLevel() throws Exception {
+        String expected = run(compile(FIB, 0), "15");
+        for (int optimize = 1; optimize <= 2; optimize++) {
+            assertEquals("-O" + optimize, expected, run(compile(FIB, optimize), "15"));
+        }
+    }
+
+    @Test
+    public void fusionKeepsOutput() throws Exception {
+        for (int optimize = 0; optimize <= 2; optimize++) {
+            byte[] o0 = compile(FIB, optimize);
+            String expected = run(o0, "12", Fusion.none());
+            for (Fusion fusion : Fusion.values()) {
+                assertEquals(fusion + " -O" + optimize, expected, run(o0, "12", EnumSet.of(fusion)));
+            }
+        }
+    }
+
+    @Test
+    public void jitKeepsOutput() throws Exception {
+        for (String source : new String[]{FIB, LOOPS}) {
+            for (int optimize = 0; optimize <= 2; optimize++) {
+                byte[] o0 = compile(source, optimize);
+                String expected = run(o0, "12", Fusion.none(), 0);
+                for (int threshold : new int[]{1, 2, 50}) {
+                    String what = "-O" + optimize + " threshold " + threshold;
+                    assertEquals(what, expected, run(o0, "12", Fusion.none(), threshold));
+                    assertEquals(what + " fused", expected, run(o0, "12", Fusion.all(), threshold));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void profileCountsEveryInstruction() throws Exception {
+        byte[] o0 = compile(FIB, 0);
+        Interpreter plain = new Interpreter(Loader.load(o0, Fusion.none()), new ByteArrayInputStream("10".getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(new ByteArrayOutputStream()));
+        plain.setJitThreshold(0);
+        plain.run();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Image image = Loader.loadProfiled(o0);
+        Interpreter interpreter = new Interpreter(image, new ByteArrayInputStream("10".getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(bytes, false, StandardCharsets.UTF_8));
+        interpreter.run();
+        assertEquals("55\n50005000\n0.333333\ndone\n", bytes.toString(StandardCharsets.UTF_8));
+        assertEquals(plain.getSteps(), interpreter.getSteps());
+
+        Profile profile = image.getProfile();
+        assertEquals(plain.getSteps(), profile.executed());
+        assertEquals(177, profile.calls("fib"));
+        assertEquals(10001, profile.calls("sum"));
+
+        ByteArrayOutputStream stacks = new ByteArrayOutputStream();
+        profile.writeStacks(new PrintStream(stacks, false, StandardCharsets.UTF_8));
+        long total = 0;
+        for (String line : stacks.toString(StandardCharsets.UTF_8).split("\n")) {
+            assertTrue(line, line.startsWith("_start"));
+            total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        assertEquals(profile.executed(), total);
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        profile.writeReport(new PrintStream(report, false, StandardCharsets.UTF_8));
+        assertTrue(report.toString(StandardCharsets.UTF_8).contains("main                 -> fib"));
+    }
+
+    @Test
+    public void profileHandlesEarlyReturns() throws Exception {
+        String[] sources = {
+                "fn main() -> void { return; }",
+                "fn sign(x: int) -> int { if x < 0 { return -1; } if x == 0 { return 0; } return 1; }"
+                        + " fn main() -> void { putint(sign(-5)); putint(sign(0)); putint(sign(7)); return; }",
+        };
+        for (String source : sources) {
+            for (int optimize = 0; optimize <= 2; optimize++) {
+                byte[] o0 = compile(source, optimize);
+                Interpreter plain = new Interpreter(Loader.load(o0, Fusion.none()), new ByteArrayInputStream(new byte[0]),
+                        new PrintStream(new ByteArrayOutputStream()));
+                plain.setJitThreshold(0);
+                plain.run();
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Image image = Loader.loadProfiled(o0);
+                Interpreter interpreter = new Interpreter(image, new ByteArrayInputStream(new byte[0]),
+                        new PrintStream(bytes, false, StandardCharsets.UTF_8));
+                interpreter.run();
+                assertEquals(run(o0, ""), bytes.toString(StandardCharsets.UTF_8));
+                assertEquals("-O" + optimize, plain.getSteps(), image.getProfile().executed());
+            }
+        }
+    }
+
+    @Test
+    public void freedMemoryIsReused() throws Exception {
+        byte[] o0 = startOnly(
+                Operation.PUSH, 16L, Operation.ALLOC, Operation.DUP, Operation.PUSH, 7L, Operation.STORE64, Operation.FREE,
+                Operation.PUSH, 16L, Operation.ALLOC, Operation.LOAD64, Operation.PRINT_I,
+                Operation.PUSH, 100L, Operation.ALLOC, Operation.DUP, Operation.FREE,
+                Operation.PUSH, 100L, Operation.ALLOC, Operation.CMP_I, Operation.PRINT_I,
+                Operation.PUSH, 10000L, Operation.ALLOC, Operation.DUP, Operation.FREE,
+                Operation.PUSH, 9000L, Operation.ALLOC, Operation.CMP_I, Operation.PRINT_I);
+        assertEquals("000", run(o0, ""));
+
+        try {
+            run(startOnly(Operation.PUSH, 8L, Operation.ALLOC, Operation.DUP, Operation.FREE, Operation.FREE), "");
+            fail();
+        } catch (VmException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("bad free"));
+        }
+    }
+
+    @Test
+    public void divisionByZeroStops() throws Exception {
+        String source = "fn div(a: int, b: int) -> int { return a / b; } fn main() -> void { putint(div(7, 0)); }";
+        for (int threshold : new int[]{0, 1}) {
+            try {
+                run(compile(source, 0), "", Fusion.all(), threshold);
+                fail();
+            } catch (VmException e) {
+                assertEquals("division by zero", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void deepRecursionOverflows() throws Exception {
+        String source = "fn f(n: int) -> int { return f(n + 1) + 1; } fn main() -> void { putint(f(0)); }";
+        for (int threshold : new int[]{0, 1}) {
+            try {
+                run(compile(source, 0), "", Fusion.all(), threshold);
+                fail();
+            } catch (VmException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("overflow"));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedFiles() throws Exception {
+        byte[] o0 = compile(FIB, 0);
+        byte[] badMagic = o0.clone();
+        badMagic[0] = 0;
+        byte[] truncated = Arrays.copyOf(o0, o0.length - 3);
+        for (byte[] bad : new byte[][]{badMagic, truncated}) {
+            try {
+                Loader.load(bad);
+                fail();
+            } catch (VmException e) {
+                // 期望加载失败
+            }
+        }
+    }
+}